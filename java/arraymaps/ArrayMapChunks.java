@@ -0,0 +1,863 @@
+package arraymaps;
+
+import common.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads any number of files, directories or glob patterns instead of just measurements.txt.
+ * <p>
+ * Every file is split into newline-aligned chunks before we start, and they all go into a
+ * single queue which the threads take work from, so there are no fragments to join up at the
+ * end. Small files are batched together so they don't each cost a hand-off to a thread.
+ * Each thread keeps one array-backed map for the whole run, so there is only one merge at the
+ * end however many files there are, instead of running the whole thing once per file.
+ * <p>
+ * -Dthreads and -Dchunk.size (in bytes) override the number of threads and the chunk size.
+ * -Dio=direct reads the files with O_DIRECT so they don't fill up the page cache, see
+ * DirectReader, with -Ddirect.buffer setting the size of each thread's aligned buffer.
+ * <p>
+ * -Ddictionary=stations.txt uses a perfect hash over a known list of stations (see
+ * StationDictionary), so those go straight into their own slot of a plain array and only
+ * stations which aren't in the list go through the usual map. -Ddictionary.record=stations.txt
+ * writes that list out at the end of a run.
+ * <p>
+ * -Dstats=variance,above:30,below:0,seen works out more figures for each station in the same
+ * pass (see Statistics) and writes them to -Dstats.file, default stats.csv.
+ * <p>
+ * The main loop only copes with name;-?d?d.d\n, but checks each row as it goes for anything
+ * else (see process()). The rest of a chunk which doesn't look like that is read the slow way,
+ * which skips byte order marks, \r\n line endings and blank lines, and any rows it still can't
+ * make sense of are counted and left out.
+ * <p>
+ * -Dcursors=2 or 3 splits each chunk into that many parts and reads a row from each of them
+ * in turn in the same loop (see parseInterleaved()), so the CPU has more than one row's worth
+ * of work it can be getting on with at once. CursorBenchmark compares them.
+ */
+public class ArrayMapChunks {
+
+    static final int THREADS = Integer.getInteger("threads", Runtime.getRuntime().availableProcessors());
+    static final long CHUNK_SIZE = Long.getLong("chunk.size", 4 * 1024 * 1024);
+    // -Dhistogram=true also counts each station's readings in whole-degree buckets.
+    // static final so the JIT removes the histogram code completely when it's off.
+    static final boolean HISTOGRAM = Boolean.getBoolean("histogram");
+    static final boolean DIRECT_IO = "direct".equals(System.getProperty("io"));
+    static final int DIRECT_BUFFER = Integer.getInteger("direct.buffer", 1024 * 1024);
+    // -Dreport.firstByte=true prints the time when the first chunk is ready to parse to stderr,
+    // so StartupBenchmark can see how much of the run was spent getting going.
+    static final boolean REPORT_FIRST_BYTE = Boolean.getBoolean("report.firstByte");
+    // -Dcursors=2 or 3 reads that many parts of each chunk in the same loop, see parseInterleaved()
+    static final int CURSORS = cursors();
+    private static final AtomicBoolean firstByte = new AtomicBoolean();
+    // static final so the JIT drops the dictionary check completely when there isn't one
+    static final StationDictionary DICTIONARY = loadDictionary();
+
+    public static void main(String[] args) throws Exception {
+        long startTime = System.currentTimeMillis();
+        List<Path> files = InputFiles.resolve(args.length == 0 ? new String[]{"measurements.txt"} : args);
+
+        // the cache is keyed on a single file, and doesn't keep the extra statistics
+        ResultCache cache = files.size() == 1 && !Statistics.ENABLED ? ResultCache.fromSystemProperties() : null;
+        Results results = cache == null ? null : cache.lookup(files.get(0));
+        if (results == null) {
+            results = new ArrayMapChunks().go(files);
+            if (cache != null) {
+                cache.store(files.get(0), results);
+            }
+        }
+        String record = System.getProperty("dictionary.record");
+        if (record != null) {
+            StationDictionary.record(results, Path.of(record));
+        }
+        if (Statistics.ENABLED) {
+            Statistics.write(results, Path.of(System.getProperty("stats.file", "stats.csv")));
+        }
+        ResultWriter.write(results);
+        long endTime = System.currentTimeMillis();
+        System.out.printf("Took %.2f s\n", (endTime - startTime) / 1000.0);
+    }
+
+    private static int cursors() {
+        int cursors = Integer.getInteger("cursors", 1);
+        if (cursors < 1 || cursors > 3) {
+            throw new IllegalArgumentException("-Dcursors has to be 1, 2 or 3, not " + cursors);
+        }
+        return cursors;
+    }
+
+    private static StationDictionary loadDictionary() {
+        String file = System.getProperty("dictionary");
+        if (file == null) {
+            return null;
+        }
+        try {
+            return StationDictionary.load(Path.of(file));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    Results go(List<Path> files) throws Exception {
+        return go(ChunkPlanner.plan(files, CHUNK_SIZE));
+    }
+
+    Results go(Chunk[][] tasks) throws Exception {
+        // one spare byte in case the last row of a file has no newline
+        int bufferSize = ChunkPlanner.longest(tasks) + 1;
+        AtomicInteger nextTask = new AtomicInteger();
+
+        long totalBytes = 0;
+        for (Chunk[] task : tasks) {
+            for (Chunk chunk : task) {
+                totalBytes += chunk.length();
+            }
+        }
+        Progress progress = new Progress(THREADS, totalBytes).start();
+
+        // For -Dstats=seen, a row's place in the input is its offset in the file plus the file's
+        // number (in the order they're planned, which is the order they were given) << 40.
+        Map<Path, Long> fileStarts = new HashMap<>();
+        for (Chunk[] task : tasks) {
+            for (Chunk chunk : task) {
+                fileStarts.putIfAbsent(chunk.file(), (long) fileStarts.size() << 40);
+            }
+        }
+
+        ProcessData[] processors = new ProcessData[THREADS];
+        Future<?>[] runningThreads = new Future<?>[THREADS];
+        try (ExecutorService threadPoolExecutor = Executors.newFixedThreadPool(THREADS)) {
+            for (int i = 0; i < THREADS; i++) {
+                ProcessData p = new ProcessData(bufferSize, i, progress, fileStarts);
+                processors[i] = p;
+                runningThreads[i] = threadPoolExecutor.submit(() -> p.run(tasks, nextTask));
+            }
+            for (Future<?> f : runningThreads) {
+                f.get();
+            }
+        }
+        progress.stop();
+
+        Events.ResultsMerged event = null;
+        if (Events.ENABLED) {
+            event = new Events.ResultsMerged();
+            event.begin();
+        }
+        Results results = new Results();
+        long malformed = 0;
+        for (ProcessData p : processors) {
+            p.addTo(results);
+            malformed += p.malformed;
+        }
+        if (event != null && event.shouldCommit()) {
+            event.stations = results.size();
+            event.commit();
+        }
+        if (malformed > 0) {
+            System.err.printf("Skipped %,d malformed rows%n", malformed);
+        }
+        return results;
+    }
+
+    // one instance per thread, takes chunks from the queue until there are none left.
+    static class ProcessData {
+
+        // larger values have fewer collisions but the increased array size takes longer to traverse
+        private static final int HASH_SPACE = 8192;
+        private static final int COLLISION = 2; // number of extra spaces needed for hash collisions
+        private final Station[] records = new Station[HASH_SPACE + COLLISION];
+        // stations which didn't fit in records, only needed if we're very unlucky
+        private Results overflow;
+        private long[] oneReading;
+
+        // the stations from the dictionary, one per slot
+        private final long[] counts;
+        private final long[] totals;
+        private final int[] mins;
+        private final int[] maxs;
+        private final long[] histograms;
+        private final long[] statistics;
+
+        private final byte[] buffer;
+
+        // lookups which didn't find the station in its first slot, for the flight recorder
+        private long collisions;
+        // the furthest past its first slot a lookup went in this chunk, and the rows which went in
+        // the overflow table, also for the flight recorder
+        private int longestProbe;
+        private long overflowed;
+        // rows the careful parser couldn't read
+        private long malformed;
+        // where each of parseInterleaved's parts start, and where they'd got up to
+        private final int[] partStarts = new int[CURSORS + 1];
+        private final int[] partsDone = new int[CURSORS];
+
+        // keep the last file open, consecutive chunks are usually from the same one.
+        private Path openFile;
+        private FileChannel channel;
+        private DirectReader directReader;
+
+        // which thread this is, for the progress counters
+        private final int worker;
+        private final Progress progress;
+        private final Map<Path, Long> fileStarts;
+
+        ProcessData(int bufferSize, int worker, Progress progress, Map<Path, Long> fileStarts) {
+            this.buffer = new byte[bufferSize];
+            this.worker = worker;
+            this.progress = progress;
+            this.fileStarts = fileStarts;
+            int slots = DICTIONARY == null ? 0 : DICTIONARY.size();
+            this.counts = new long[slots];
+            this.totals = new long[slots];
+            this.mins = new int[slots];
+            this.maxs = new int[slots];
+            this.histograms = HISTOGRAM ? new long[slots * Results.HISTOGRAM_BUCKETS] : null;
+            this.statistics = Statistics.ENABLED ? Statistics.create(slots) : null;
+            Arrays.fill(mins, Integer.MAX_VALUE);
+            Arrays.fill(maxs, Integer.MIN_VALUE);
+        }
+
+        Void run(Chunk[][] tasks, AtomicInteger nextTask) throws IOException {
+            try {
+                int task;
+                while ((task = nextTask.getAndIncrement()) < tasks.length) {
+                    for (Chunk chunk : tasks[task]) {
+                        process(chunk);
+                    }
+                }
+            } finally {
+                close();
+            }
+            return null;
+        }
+
+        void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+                openFile = null;
+            }
+        }
+
+        private int read(Chunk chunk) throws IOException {
+            if (!chunk.file().equals(openFile)) {
+                if (channel != null) {
+                    channel.close();
+                }
+                if (DIRECT_IO) {
+                    channel = DirectReader.open(chunk.file());
+                    int blockSize = DirectReader.blockSize(chunk.file());
+                    if (directReader == null || directReader.blockSize() != blockSize) {
+                        directReader = new DirectReader(blockSize, DIRECT_BUFFER);
+                    }
+                } else {
+                    channel = FileChannel.open(chunk.file(), StandardOpenOption.READ);
+                }
+                openFile = chunk.file();
+            }
+            if (DIRECT_IO) {
+                directReader.read(channel, chunk, buffer);
+                return chunk.length();
+            }
+            ByteBuffer bb = ByteBuffer.wrap(buffer, 0, chunk.length());
+            long position = chunk.start();
+            while (bb.hasRemaining()) {
+                int read = channel.read(bb, position);
+                if (read == -1) {
+                    throw new IOException(chunk.file() + " is shorter than when we started");
+                }
+                position += read;
+            }
+            return chunk.length();
+        }
+
+        void process(Chunk chunk) throws IOException {
+            Events.ChunkRead readEvent = null;
+            if (Events.ENABLED) {
+                readEvent = new Events.ChunkRead();
+                readEvent.begin();
+            }
+            int limit = read(chunk);
+            if (readEvent != null && readEvent.shouldCommit()) {
+                readEvent.offset = chunk.start();
+                readEvent.bytes = limit;
+                readEvent.commit();
+            }
+            Events.ChunkParsed parseEvent = null;
+            if (Events.ENABLED) {
+                parseEvent = new Events.ChunkParsed();
+                parseEvent.begin();
+            }
+            long collisionsBefore = collisions;
+            long overflowedBefore = overflowed;
+            longestProbe = 0;
+            long malformedBefore = malformed;
+            if (REPORT_FIRST_BYTE && !firstByte.getAndSet(true)) {
+                System.err.println("first byte " + System.currentTimeMillis());
+            }
+            // where the chunk starts in the input, only needed for -Dstats=seen
+            long base = Statistics.SEEN ? fileStarts.get(chunk.file()) + chunk.start() : 0;
+            byte[] array = buffer;
+            if (array[limit - 1] != '\n') {
+                array[limit++] = '\n'; // last row of a file which doesn't end with a newline
+            }
+
+            int rows = CURSORS > 1 ? parseInterleaved(array, limit, chunk.start() == 0, base)
+                    : parseRange(array, 0, limit, chunk.start() == 0, base);
+            if (parseEvent != null && parseEvent.shouldCommit()) {
+                parseEvent.offset = chunk.start();
+                parseEvent.bytes = limit;
+                parseEvent.rows = rows;
+                parseEvent.collisions = collisions - collisionsBefore;
+                parseEvent.longestProbe = longestProbe;
+                parseEvent.overflowed = overflowed - overflowedBefore;
+                parseEvent.malformed = malformed - malformedBefore;
+                parseEvent.commit();
+            }
+            progress.add(worker, chunk.length(), rows);
+        }
+
+        /**
+         * The main loop, one row at a time from from to limit, which has to be the start of a row
+         * and just after a newline. The rest of the range goes to parseCarefully() from the first
+         * row which isn't the usual shape.
+         *
+         * @return the number of rows it could read.
+         */
+        private int parseRange(byte[] array, int from, int limit, boolean startOfFile, long base) {
+            int rows = 0;
+            int bufferPosition = from;
+            int nameStart = from;
+            int nameEnd = 0;
+            boolean readingName = true;
+            long h = NameHash.SEED;
+            // inlining the decimal conversion
+            int sign = 1;
+            int temperature = 0;
+            // goes negative if the temperature has anything other than digits in it, apart from
+            // the '.' and a '-' straight after the ';'
+            int check = 0;
+            int dots = 0;
+
+            while (bufferPosition < limit) {
+                byte b = array[bufferPosition++];
+                // read until we get to the delimiter and the newline
+                if (b == ';') {
+                    readingName = false;
+                    nameEnd = bufferPosition - 1;
+                } else if (readingName) {
+                    h = (h ^ b) * NameHash.PRIME; // calculate the hash of the name, see NameHash
+                } else if (b != '\n') {
+                    if (b == '-') {
+                        sign = -1;
+                        check |= nameEnd + 2 - bufferPosition; // anywhere else is wrong
+                    } else if (b == '.') {
+                        dots++;
+                    } else {
+                        temperature = temperature * 10 + (b - '0');
+                        check |= (b - '0') | ('9' - b);
+                    }
+                } else {    // end of line
+                    // Anything which isn't -?d?d.d (a \r, a third digit, no decimal point, two of
+                    // them, a '-' in the middle...) goes the slow way, along with the rest of the
+                    // chunk. The one '.' has to be just before the last digit, with a digit before
+                    // it rather than the '-'. A name with a newline in it (a blank line, or a row
+                    // without a ';') is caught when it's added.
+                    if ((check | (999 - temperature)) < 0 || dots != 1 || bufferPosition - nameEnd < 5
+                            || array[bufferPosition - 3] != '.' || array[bufferPosition - 4] == '-') {
+                        break;
+                    }
+                    int slot = DICTIONARY == null ? -1 : DICTIONARY.slotOf(h);
+                    if (slot >= 0) {
+                        addKnown(slot, sign * temperature, base + nameStart);
+                    } else if (!addOrMerge(h, array, nameStart, nameEnd, sign * temperature, base + nameStart)) {
+                        break;
+                    }
+                    rows++;
+                    temperature = 0;
+                    sign = 1;
+                    check = 0;
+                    dots = 0;
+                    nameStart = bufferPosition;
+                    readingName = true;
+                    h = NameHash.SEED;
+                }
+            }
+            // either we stopped at something odd, or there's a row with no ';' at the end
+            if (nameStart < limit) {
+                rows += parseCarefully(array, nameStart, limit, startOfFile && nameStart == 0, base);
+            }
+            return rows;
+        }
+
+        /**
+         * The same as parseRange() over the whole chunk, but in two or three parts, split at the
+         * start of a row, with a row from each part on each time round the loop. Reading a row
+         * one byte at a time is one long chain of steps which each need the one before, so
+         * most of the time the CPU is waiting for the last step rather than doing anything. The
+         * rows in the other parts don't depend on it, so it can be working on those at the same
+         * time. Only rows in the usual name;-?d?d.d\n form are read this way, and each part
+         * stops at the first one which isn't, leaving the rest of it to parseRange().
+         *
+         * @return the number of rows it could read.
+         */
+        private int parseInterleaved(byte[] array, int limit, boolean startOfFile, long base) {
+            int[] starts = partStarts;
+            starts[0] = 0;
+            for (int c = 1; c < CURSORS; c++) {
+                int split = Math.max(starts[c - 1], (int) ((long) limit * c / CURSORS));
+                while (split > 0 && split < limit && array[split - 1] != '\n') {
+                    split++;
+                }
+                starts[c] = split;
+            }
+            starts[CURSORS] = limit;
+            int rows = CURSORS == 2 ? interleave2(array, starts, partsDone, base)
+                    : interleave3(array, starts, partsDone, base);
+            for (int c = 0; c < CURSORS; c++) {
+                if (partsDone[c] < starts[c + 1]) {
+                    rows += parseRange(array, partsDone[c], starts[c + 1], startOfFile, base);
+                }
+            }
+            return rows;
+        }
+
+        private int interleave2(byte[] array, int[] starts, int[] done, long base) {
+            int rows = 0;
+            int p0 = starts[0];
+            int p1 = starts[1];
+            int end0 = starts[1];
+            int end1 = starts[2];
+            while (p0 < end0 && p1 < end1) {
+                long h0 = NameHash.SEED;
+                long h1 = NameHash.SEED;
+                int i0 = p0;
+                int i1 = p1;
+                byte b0 = array[i0];
+                byte b1 = array[i1];
+                // both names together until one of them gets to the ';' (or a newline, if it
+                // hasn't got one, which is as far as it can go as each part ends with one)
+                while (b0 != ';' && b0 != '\n' && b1 != ';' && b1 != '\n') {
+                    h0 = (h0 ^ b0) * NameHash.PRIME;
+                    h1 = (h1 ^ b1) * NameHash.PRIME;
+                    b0 = array[++i0];
+                    b1 = array[++i1];
+                }
+                while (b0 != ';' && b0 != '\n') {
+                    h0 = (h0 ^ b0) * NameHash.PRIME;
+                    b0 = array[++i0];
+                }
+                while (b1 != ';' && b1 != '\n') {
+                    h1 = (h1 ^ b1) * NameHash.PRIME;
+                    b1 = array[++i1];
+                }
+                long r0 = b0 == ';' ? reading(array, i0, end0) : ODD;
+                long r1 = b1 == ';' ? reading(array, i1, end1) : ODD;
+                boolean ok0 = r0 != ODD && add(h0, array, p0, i0, (int) (r0 >> 32), base + p0);
+                boolean ok1 = r1 != ODD && add(h1, array, p1, i1, (int) (r1 >> 32), base + p1);
+                if (ok0) {
+                    p0 = (int) r0;
+                    rows++;
+                }
+                if (ok1) {
+                    p1 = (int) r1;
+                    rows++;
+                }
+                if (!ok0 || !ok1) {
+                    break;
+                }
+            }
+            done[0] = p0;
+            done[1] = p1;
+            return rows;
+        }
+
+        private int interleave3(byte[] array, int[] starts, int[] done, long base) {
+            int rows = 0;
+            int p0 = starts[0];
+            int p1 = starts[1];
+            int p2 = starts[2];
+            int end0 = starts[1];
+            int end1 = starts[2];
+            int end2 = starts[3];
+            while (p0 < end0 && p1 < end1 && p2 < end2) {
+                long h0 = NameHash.SEED;
+                long h1 = NameHash.SEED;
+                long h2 = NameHash.SEED;
+                int i0 = p0;
+                int i1 = p1;
+                int i2 = p2;
+                byte b0 = array[i0];
+                byte b1 = array[i1];
+                byte b2 = array[i2];
+                while (b0 != ';' && b0 != '\n' && b1 != ';' && b1 != '\n' && b2 != ';' && b2 != '\n') {
+                    h0 = (h0 ^ b0) * NameHash.PRIME;
+                    h1 = (h1 ^ b1) * NameHash.PRIME;
+                    h2 = (h2 ^ b2) * NameHash.PRIME;
+                    b0 = array[++i0];
+                    b1 = array[++i1];
+                    b2 = array[++i2];
+                }
+                while (b0 != ';' && b0 != '\n') {
+                    h0 = (h0 ^ b0) * NameHash.PRIME;
+                    b0 = array[++i0];
+                }
+                while (b1 != ';' && b1 != '\n') {
+                    h1 = (h1 ^ b1) * NameHash.PRIME;
+                    b1 = array[++i1];
+                }
+                while (b2 != ';' && b2 != '\n') {
+                    h2 = (h2 ^ b2) * NameHash.PRIME;
+                    b2 = array[++i2];
+                }
+                long r0 = b0 == ';' ? reading(array, i0, end0) : ODD;
+                long r1 = b1 == ';' ? reading(array, i1, end1) : ODD;
+                long r2 = b2 == ';' ? reading(array, i2, end2) : ODD;
+                boolean ok0 = r0 != ODD && add(h0, array, p0, i0, (int) (r0 >> 32), base + p0);
+                boolean ok1 = r1 != ODD && add(h1, array, p1, i1, (int) (r1 >> 32), base + p1);
+                boolean ok2 = r2 != ODD && add(h2, array, p2, i2, (int) (r2 >> 32), base + p2);
+                if (ok0) {
+                    p0 = (int) r0;
+                    rows++;
+                }
+                if (ok1) {
+                    p1 = (int) r1;
+                    rows++;
+                }
+                if (ok2) {
+                    p2 = (int) r2;
+                    rows++;
+                }
+                if (!ok0 || !ok1 || !ok2) {
+                    break;
+                }
+            }
+            done[0] = p0;
+            done[1] = p1;
+            done[2] = p2;
+            return rows;
+        }
+
+        // what reading() returns for anything other than -?d?d.d\n
+        private static final long ODD = Long.MIN_VALUE;
+
+        /**
+         * The reading after the ';' at i, if it's -?d?d.d\n and finishes by end.
+         *
+         * @return the temperature in tenths in the top half and where the next row starts in the
+         * bottom half, or ODD.
+         */
+        private static long reading(byte[] array, int i, int end) {
+            int q = i + 1;
+            int sign = 1;
+            if (q < end && array[q] == '-') {
+                sign = -1;
+                q++;
+            }
+            if (q + 4 <= end && array[q + 1] == '.' && array[q + 3] == '\n') {
+                int d0 = array[q] - '0';
+                int d1 = array[q + 2] - '0';
+                if ((d0 | d1 | (9 - d0) | (9 - d1)) < 0) {
+                    return ODD;
+                }
+                return ((long) (sign * (d0 * 10 + d1)) << 32) | (q + 4);
+            }
+            if (q + 5 <= end && array[q + 2] == '.' && array[q + 4] == '\n') {
+                int d0 = array[q] - '0';
+                int d1 = array[q + 1] - '0';
+                int d2 = array[q + 3] - '0';
+                if ((d0 | d1 | d2 | (9 - d0) | (9 - d1) | (9 - d2)) < 0) {
+                    return ODD;
+                }
+                return ((long) (sign * (d0 * 100 + d1 * 10 + d2)) << 32) | (q + 5);
+            }
+            return ODD;
+        }
+
+        // One row from parseInterleaved(), false if it's a new name which isn't a proper one
+        private boolean add(long h, byte[] array, int nameStart, int nameEnd, int temperature, long position) {
+            int slot = DICTIONARY == null ? -1 : DICTIONARY.slotOf(h);
+            if (slot >= 0) {
+                addKnown(slot, temperature, position);
+                return true;
+            }
+            return addOrMerge(h, array, nameStart, nameEnd, temperature, position);
+        }
+
+        /**
+         * The slow way, for the rest of a chunk once the main loop has found something it wasn't
+         * expecting. One line at a time, allowing for a byte order mark at the start of the file,
+         * \r\n line endings, blank lines (which are skipped) and temperatures with any number of
+         * digits and at most one after the decimal point. Anything else is counted in malformed.
+         *
+         * @return the number of rows it could read.
+         */
+        private int parseCarefully(byte[] array, int from, int limit, boolean startOfFile, long base) {
+            int rows = 0;
+            int lineStart = from;
+            if (startOfFile && limit - from >= 3 && array[from] == (byte) 0xEF
+                    && array[from + 1] == (byte) 0xBB && array[from + 2] == (byte) 0xBF) {
+                lineStart += 3;
+            }
+            while (lineStart < limit) {
+                int lineEnd = lineStart;
+                while (lineEnd < limit && array[lineEnd] != '\n') {
+                    lineEnd++;
+                }
+                int end = lineEnd;
+                if (end > lineStart && array[end - 1] == '\r') {
+                    end--;
+                }
+                if (end > lineStart) {
+                    int semicolon = lineStart;
+                    while (semicolon < end && array[semicolon] != ';') {
+                        semicolon++;
+                    }
+                    int temperature = semicolon < end ? parseTenths(array, semicolon + 1, end) : Integer.MIN_VALUE;
+                    boolean added = false;
+                    if (semicolon > lineStart && temperature != Integer.MIN_VALUE) {
+                        long h = NameHash.hash(array, lineStart, semicolon - lineStart);
+                        int slot = DICTIONARY == null ? -1 : DICTIONARY.slotOf(h);
+                        if (slot >= 0) {
+                            addKnown(slot, temperature, base + lineStart);
+                            added = true;
+                        } else {
+                            added = addOrMerge(h, array, lineStart, semicolon, temperature, base + lineStart);
+                        }
+                    }
+                    if (added) {
+                        rows++;
+                    } else {
+                        malformed++;
+                    }
+                }
+                lineStart = lineEnd + 1;
+            }
+            return rows;
+        }
+
+        // -?d+(.d)? in tenths of a degree, or Integer.MIN_VALUE if it isn't a number like that
+        static int parseTenths(byte[] array, int start, int end) {
+            int i = start;
+            int sign = 1;
+            if (i < end && array[i] == '-') {
+                sign = -1;
+                i++;
+            }
+            int digits = 0;
+            int tenths = 0;
+            while (i < end && array[i] >= '0' && array[i] <= '9' && digits < 6) {
+                tenths = tenths * 10 + (array[i++] - '0');
+                digits++;
+            }
+            if (digits == 0) {
+                return Integer.MIN_VALUE;
+            }
+            tenths *= 10;
+            if (i + 2 == end && array[i] == '.' && array[i + 1] >= '0' && array[i + 1] <= '9') {
+                tenths += array[i + 1] - '0';
+            } else if (i != end) {
+                return Integer.MIN_VALUE;
+            }
+            return sign * tenths;
+        }
+
+        // Only checked the first time a thread sees a name, so the rows after that don't pay for it
+        static boolean validName(byte[] buffer, int start, int end) {
+            if (end == start || end - start >= 3 && buffer[start] == (byte) 0xEF
+                    && buffer[start + 1] == (byte) 0xBB && buffer[start + 2] == (byte) 0xBF) {
+                return false;
+            }
+            for (int i = start; i < end; i++) {
+                byte b = buffer[i];
+                if (b == '\n' || b == '\r' || b == ';') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // A station from the dictionary, which already has a slot to itself
+        private void addKnown(int slot, int temperature, long position) {
+            counts[slot]++;
+            totals[slot] += temperature;
+            if (temperature < mins[slot]) {
+                mins[slot] = temperature;
+            }
+            if (temperature > maxs[slot]) {
+                maxs[slot] = temperature;
+            }
+            if (HISTOGRAM) {
+                histograms[slot * Results.HISTOGRAM_BUCKETS + Results.histogramBucket(temperature)]++;
+            }
+            if (Statistics.ENABLED) {
+                Statistics.add(statistics, slot * Statistics.SIZE, temperature, position);
+            }
+        }
+
+        // Called during the main processing loop. Returns false, without adding it, if this is the
+        // first time we've seen the name and it isn't a proper one.
+        private boolean addOrMerge(long nameHash, byte[] buffer, int startIndex, int endIndex, int temperature,
+                                   long position) {
+            int key = NameHash.spread(nameHash) & (HASH_SPACE - 1);
+            Station[] r = records;
+            // Search forwards look for the entry or a gap
+            for (int probe = 0; probe <= COLLISION; probe++, key++) {
+                Station entry = r[key];
+                if (entry == null) {
+                    if (!validName(buffer, startIndex, endIndex)) {
+                        return false;
+                    }
+                    byte[] nameArray = Arrays.copyOfRange(buffer, startIndex, endIndex);
+                    r[key] = new Station(nameArray, nameHash, temperature, position);
+                    return true;
+                }
+                if (entry.hash == nameHash) {
+                    entry.add_measurement(temperature, position);
+                    return true;
+                }
+                collisions++;
+                if (probe < COLLISION && probe >= longestProbe) {
+                    longestProbe = probe + 1;
+                }
+            }
+            // Too many names wanting the same few slots. With a random hash that's unlikely rather
+            // than something anyone can arrange, but instead of falling over put them somewhere
+            // which can cope.
+            if (!validName(buffer, startIndex, endIndex)) {
+                return false;
+            }
+            overflowed++;
+            addToOverflow(buffer, startIndex, endIndex, temperature, position);
+            return true;
+        }
+
+        private void addToOverflow(byte[] buffer, int startIndex, int endIndex, int temperature, long position) {
+            if (overflow == null) {
+                overflow = new Results();
+                oneReading = new long[Results.HISTOGRAM_BUCKETS];
+            }
+            int index = overflow.add(buffer, startIndex, endIndex - startIndex, 1, temperature, temperature, temperature);
+            if (HISTOGRAM) {
+                int bucket = Results.histogramBucket(temperature);
+                oneReading[bucket] = 1;
+                overflow.addHistogram(index, oneReading);
+                oneReading[bucket] = 0;
+            }
+            if (Statistics.ENABLED) {
+                long[] s = Statistics.create(1);
+                Statistics.add(s, 0, temperature, position);
+                overflow.addStatistics(index, s, 0);
+            }
+        }
+
+        /**
+         * Hand over everything added so far and start again from nothing, for RangeIndex which
+         * wants the figures for each chunk on their own.
+         */
+        Results takeResults() {
+            Results results = new Results();
+            addTo(results);
+            Arrays.fill(records, null);
+            overflow = null;
+            Arrays.fill(counts, 0);
+            Arrays.fill(totals, 0);
+            Arrays.fill(mins, Integer.MAX_VALUE);
+            Arrays.fill(maxs, Integer.MIN_VALUE);
+            if (HISTOGRAM) {
+                Arrays.fill(histograms, 0);
+            }
+            if (Statistics.ENABLED) {
+                System.arraycopy(Statistics.create(counts.length), 0, statistics, 0, statistics.length);
+            }
+            return results;
+        }
+
+        void addTo(Results results) {
+            for (int slot = 0; slot < counts.length; slot++) {
+                if (counts[slot] > 0) {
+                    int index = results.add(DICTIONARY.name(slot), counts[slot], totals[slot], mins[slot], maxs[slot]);
+                    if (HISTOGRAM) {
+                        int from = slot * Results.HISTOGRAM_BUCKETS;
+                        results.addHistogram(index, Arrays.copyOfRange(histograms, from, from + Results.HISTOGRAM_BUCKETS));
+                    }
+                    if (Statistics.ENABLED) {
+                        results.addStatistics(index, statistics, slot * Statistics.SIZE);
+                    }
+                }
+            }
+            for (Station s : records) {
+                if (s != null) {
+                    int index = results.add(s.name, s.measurements, s.total, s.minT, s.maxT);
+                    if (HISTOGRAM) {
+                        results.addHistogram(index, s.histogram);
+                    }
+                    if (Statistics.ENABLED) {
+                        results.addStatistics(index, s.statistics, 0);
+                    }
+                }
+            }
+            if (overflow != null) {
+                results.merge(overflow);
+            }
+        }
+    }
+
+    static class Station {
+        public final byte[] name;
+        public long measurements;
+        public long total;
+        public int maxT;
+        public int minT;
+        public final long hash;
+        public final long[] histogram;
+        public final long[] statistics;
+
+        Station(byte[] name, long hash, int temp, long position) {
+            this.name = name;
+            this.hash = hash;
+            this.total = temp;
+            this.measurements = 1;
+            this.minT = temp;
+            this.maxT = temp;
+            this.histogram = HISTOGRAM ? new long[Results.HISTOGRAM_BUCKETS] : null;
+            if (HISTOGRAM) {
+                histogram[Results.histogramBucket(temp)]++;
+            }
+            this.statistics = Statistics.ENABLED ? Statistics.create(1) : null;
+            if (Statistics.ENABLED) {
+                Statistics.add(statistics, 0, temp, position);
+            }
+        }
+
+        void add_measurement(int temp, long position) {
+            total += temp;
+            measurements++;
+            if (HISTOGRAM) {
+                histogram[Results.histogramBucket(temp)]++;
+            }
+            if (Statistics.ENABLED) {
+                Statistics.add(statistics, 0, temp, position);
+            }
+            if (temp > maxT) {
+                maxT = temp;
+            } else if (temp < minT) {
+                minT = temp;
+            }
+        }
+    }
+}
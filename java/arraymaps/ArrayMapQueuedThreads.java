@@ -1,16 +1,22 @@
 package arraymaps;
 
+import common.Events;
+import common.FragmentJoiner;
+import common.NameHash;
+import common.ResultCache;
+import common.ResultWriter;
+import common.Results;
+
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
-import java.util.Map;
-import java.util.TreeMap;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Submit all the jobs at once.
@@ -18,8 +24,20 @@ import java.util.concurrent.*;
  * Should allow all threads to execute simultaneously.
  * <p>
  * Not faster than the one which waits for each thread to finish - possibly because
- * the other one shares buffers and results storage but this needs to instantiate fresh
+ * the other one shares buffers and results storage but this needed to instantiate fresh
  * ones for each block
+ * <p>
+ * It now only lets two blocks per thread in at a time, each with a buffer and a table from a
+ * fixed set which are handed back when the block's done, so the memory it uses doesn't
+ * depend on what the scheduler does or how big the file is. Each of the set is its own task,
+ * handed to the pool again for every block it reads, so there isn't a Future for every block
+ * either; the first thing to go wrong in any block is kept for the end instead, and no more
+ * blocks are started after it. Once it's going it hardly allocates anything. With
+ * -Dmemory.budget=&lt;bytes&gt; the blocks are made smaller than 1Mb if that's what it takes to fit
+ * them all in half the budget, rather than leaving threads with nothing to do.
+ * <p>
+ * Names are hashed with NameHash, and any station which can't find room in the few slots it
+ * wants goes in an overflow table instead of stopping the run, the same as ArrayMapChunks.
  */
 public class ArrayMapQueuedThreads {
 
@@ -31,6 +49,17 @@ public class ArrayMapQueuedThreads {
 
     public static int NUM_BLOCKS;
 
+    // how much of the heap we're allowed, 0 for as much as it likes
+    static final long MEMORY_BUDGET = Long.getLong("memory.budget", 0);
+    // roughly what a block's table of stations takes up, on top of its buffer
+    static final int TABLE_BYTES = 64 * 1024;
+    // plenty for any row, so the fragments at each end of a block can't meet
+    static final int MIN_BLOCK = 64 * 1024;
+
+    // Give up if it takes longer than this. Defaults to waiting as long as it takes, since
+    // 100Gb+ files can take much longer than the 13Gb one.
+    static final long TIMEOUT_SECONDS = Long.getLong("timeout", Long.MAX_VALUE);
+
     public static void main(String[] args) throws Exception {
         long startTime = System.currentTimeMillis();
         new ArrayMapQueuedThreads().go();
@@ -38,89 +67,75 @@ public class ArrayMapQueuedThreads {
         System.out.printf("Took %.2f s\n", (endTime - startTime) / 1000.0);
     }
 
-    private void go() throws IOException, InterruptedException, TimeoutException {
-        long size = Files.size(Paths.get(file));
-        NUM_BLOCKS = 1 + (int) (size / BUFFERSIZE);
+    private void go() throws IOException, InterruptedException, TimeoutException, ExecutionException {
+        // if we've already processed this exact file, don't bother reading it again
+        ResultCache cache = ResultCache.fromSystemProperties();
+        Path path = Paths.get(file);
+        Results cached = cache == null ? null : cache.lookup(path);
+        if (cached != null) {
+            sortAndDisplay(cached);
+            return;
+        }
+
+        long size = Files.size(path);
+        int blockSize = BUFFERSIZE;
+        // two per thread, so there's always another block waiting when one finishes
+        int inFlight = 2 * threads;
+        if (MEMORY_BUDGET > 0) {
+            long share = MEMORY_BUDGET / 2 / inFlight - TABLE_BYTES;
+            blockSize = (int) Math.max(MIN_BLOCK, Math.min(BUFFERSIZE, share));
+            if (share < MIN_BLOCK) {
+                inFlight = (int) Math.max(1, MEMORY_BUDGET / 2 / (MIN_BLOCK + TABLE_BYTES));
+                if (inFlight < threads) {
+                    System.err.println("Only room for " + inFlight + " blocks at once, some threads will be idle");
+                }
+            }
+        }
+        NUM_BLOCKS = Math.toIntExact(1 + size / blockSize);
         threadPoolExecutor = Executors.newFixedThreadPool(threads);
         CombineResultsCallback c = new CombineResultsCallback();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
 
-        for (int i = 0; i < NUM_BLOCKS; i++) {
-            threadPoolExecutor.submit(new ProcessData(i, c)::process);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            BlockingQueue<ProcessData> free = new ArrayBlockingQueue<>(inFlight);
+            for (int i = 0; i < inFlight; i++) {
+                free.add(new ProcessData(blockSize, c, channel, new ListOfCities(ByteBuffer.allocate(blockSize)),
+                        free, failure));
+            }
+            for (int i = 0; i < NUM_BLOCKS && failure.get() == null; i++) {
+                // waits here for a block to be finished with
+                ProcessData p = free.take();
+                p.blockNumber = i;
+                threadPoolExecutor.execute(p);
+            }
+            // Now wait for all the threads to finish
+            threadPoolExecutor.shutdown();
+            if (!threadPoolExecutor.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new TimeoutException("Job took too long to run.");
+            }
         }
-        // Now wait for all the threads to finish
-        threadPoolExecutor.shutdown();
-        if (!threadPoolExecutor.awaitTermination(25, TimeUnit.SECONDS)) {
-            throw new TimeoutException("Job took too long to run.");
+        // pass on anything which went wrong in a block (eg. running out of memory), rather
+        // than finding out from the fragments not joining up
+        if (failure.get() != null) {
+            throw new ExecutionException("A block failed", failure.get());
         }
 
-        c.dataStore.mergeFragments();
-        sortAndDisplay(c.dataStore.overallResults);
-    }
-
-    private void sortAndDisplay(ListOfCities overallResults) {
-        TreeMap<String, Station> sortedCities = new TreeMap<>();
-        for (Station s : overallResults.records) {
-            if (s != null) {
-                sortedCities.put(
-                        new String(s.name, StandardCharsets.UTF_8),
-                        s);
-            }
+        Results results = c.dataStore.getResults();
+        sortAndDisplay(results);
+        if (cache != null) {
+            cache.store(path, results);
         }
+    }
 
-        int count = 0;
-        for (Map.Entry<String, Station> e : sortedCities.entrySet()) {
-            Station city = e.getValue();
-            AppendableByteArray output = new AppendableByteArray();
-            output.addDelimiter();
-            output.appendArray(numberToString(city.minT));
-            output.addDelimiter();
-            output.appendArray(String.format("%.1f;", city.total / (city.measurements * 10.0)).getBytes(StandardCharsets.UTF_8));
-//            System.out.printf("%s;%s;%.1f;%s\n",
-//                    e.getKey(), new String(numberToString(city.minT), StandardCharsets.UTF_8),
-//                    city.total / (city.measurements * 10.0),
-//                    new String(numberToString(city.maxT), StandardCharsets.UTF_8));
-
-            output.appendArray(numberToString(city.maxT));
-            System.out.print(e.getKey());
-//            System.out.printf(" (%d)", city.measurements);
-            System.out.println(output.asString());
-            count += city.measurements;
-        }
-        System.out.println("length = " + sortedCities.size());
+    private static void sortAndDisplay(Results results) throws IOException {
+        ResultWriter.write(results);
+        long count = results.totalCount();
+        System.out.println("length = " + results.size());
         System.out.println("count = " + count);
-        assert (sortedCities.size() == 413);
+        assert (results.size() == 413);
         assert count == 1_000_000_000;
     }
 
-    // Only used in the final display
-    static byte[] numberToString(int number) {
-        int length;
-        byte[] bytes;
-        if (number < 0) { // eg. -9 (-0.9), -99 (-9.9), -999 (-99.9)
-            number = -number;  // negative
-            if (number >= 100) {
-                length = 5;
-                bytes = new byte[5]; // 3 digits, 5 characters
-            } else {
-                length = 4;
-                bytes = new byte[4];
-            }
-            bytes[0] = (byte) '-';
-        } else { // positive
-            length = number >= 100 ? 4 : 3;
-            bytes = new byte[length];
-        }
-        bytes[length - 1] = (byte) ('0' + (number % 10));
-        number /= 10;
-        bytes[length - 2] = '.';
-        bytes[length - 3] = (byte) ('0' + (number % 10));
-        if (number >= 10) {
-            number /= 10;
-            bytes[length - 4] = (byte) ('0' + (number % 10));
-        }
-        return bytes;
-    }
-
     static class CombineResultsCallback {
         Amalgamator dataStore = new Amalgamator();
 
@@ -130,82 +145,125 @@ public class ArrayMapQueuedThreads {
     }
 
 
-    static class ProcessData {
+    // One of the fixed set, which reads whichever block it's given next into its own buffer and table
+    static class ProcessData implements Runnable {
 
         int blockNumber;
+        int blockSize;
         CombineResultsCallback callback;
-
-        public ProcessData(int blockNumber, CombineResultsCallback c) {
-            this.blockNumber = blockNumber;
+        // shared by all the blocks, positional reads don't get in each other's way
+        FileChannel channel;
+        // the buffer and table to use
+        ListOfCities results;
+        // where to put ourselves back afterwards, and where to leave anything which went wrong
+        BlockingQueue<ProcessData> free;
+        AtomicReference<Throwable> failure;
+
+        public ProcessData(int blockSize, CombineResultsCallback c, FileChannel channel, ListOfCities results,
+                           BlockingQueue<ProcessData> free, AtomicReference<Throwable> failure) {
+            this.blockSize = blockSize;
             this.callback = c;
+            this.channel = channel;
+            this.results = results;
+            this.free = free;
+            this.failure = failure;
         }
 
-        ListOfCities process() throws IOException {
-            try (RandomAccessFile raFile = new RandomAccessFile(file, "r");
-                 FileChannel channel = raFile.getChannel()) {
+        @Override
+        public void run() {
+            try {
+                parse();
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            } finally {
+                free.add(this);
+            }
+        }
 
-                channel.position((long) blockNumber * BUFFERSIZE);
-                ByteBuffer innerBuffer = ByteBuffer.allocate(BUFFERSIZE);
-                int status = channel.read(innerBuffer);
-                if (status == -1) {
-                    return null;
-                }
-                innerBuffer.flip();
-                byte[] array = innerBuffer.array();
-                ListOfCities results = new ListOfCities(blockNumber);
-
-                int bufferLength = innerBuffer.limit();
-                results.blockNumber = blockNumber;
-                results.endFragment = null;
-
-                // Read up to the first newline and add it as a fragment (potential end of previous block)
-                int bufferPosition = -1;
-                byte b = array[++bufferPosition];
-                while (b != '\n') {
-                    b = array[++bufferPosition];
-                }
-                results.startFragment = Arrays.copyOfRange(array, 0, bufferPosition);
-
-                // Main loop through block
-                int nameStart = ++bufferPosition;
-                int nameEnd = bufferPosition;
-                boolean readingName = true;
-                int h = 0;
-                // inlining the decimal conversion
-                int sign = 1;
-                int temperature = 0;
-
-                while (bufferPosition < bufferLength) {
-                    b = array[bufferPosition++];
-                    // read until we get to the delimiter and the newline
-                    if (b == ';') {
-                        readingName = false;
-                        nameEnd = bufferPosition - 1;
-                    } else if (readingName) {
-                        h = 31 * h + b; // calculate the hash of the name
-                    } else if (b != '\n') { // only consider chr=13 as newline while reading numbers
-                        if (b == '-') {
-                            sign = -1;
-                        } else if (b != '.') {
-                            temperature = temperature * 10 + (b - '0');
-                        }
-                    } else {    // end of line
-                        results.addOrMerge(h, array, nameStart, nameEnd, sign * temperature);
-                        temperature = 0;
-                        sign = 1;
-                        nameStart = bufferPosition;
-                        nameEnd = bufferPosition;
-                        readingName = true;
-                        h = 0;
+        private ListOfCities parse() throws IOException {
+            ByteBuffer innerBuffer = results.buffer.clear();
+            results.reset(blockNumber);
+
+            Events.ChunkRead readEvent = null;
+            if (Events.ENABLED) {
+                readEvent = new Events.ChunkRead();
+                readEvent.begin();
+            }
+            int status = channel.read(innerBuffer, (long) blockNumber * blockSize);
+            if (status == -1) {
+                return null;
+            }
+            if (readEvent != null && readEvent.shouldCommit()) {
+                readEvent.offset = (long) blockNumber * blockSize;
+                readEvent.bytes = status;
+                readEvent.commit();
+            }
+            Events.ChunkParsed parseEvent = null;
+            if (Events.ENABLED) {
+                parseEvent = new Events.ChunkParsed();
+                parseEvent.begin();
+            }
+            int rows = 0;
+            innerBuffer.flip();
+            byte[] array = innerBuffer.array();
+            int bufferLength = innerBuffer.limit();
+
+            // Read up to the first newline and add it as a fragment (potential end of previous block)
+            int bufferPosition = -1;
+            byte b = array[++bufferPosition];
+            while (b != '\n') {
+                b = array[++bufferPosition];
+            }
+            results.startLength = bufferPosition;
+
+            // Main loop through block
+            int nameStart = ++bufferPosition;
+            int nameEnd = bufferPosition;
+            boolean readingName = true;
+            long h = NameHash.SEED;
+            // inlining the decimal conversion
+            int sign = 1;
+            int temperature = 0;
+
+            while (bufferPosition < bufferLength) {
+                b = array[bufferPosition++];
+                // read until we get to the delimiter and the newline
+                if (b == ';') {
+                    readingName = false;
+                    nameEnd = bufferPosition - 1;
+                } else if (readingName) {
+                    h = (h ^ b) * NameHash.PRIME; // calculate the hash of the name, see NameHash
+                } else if (b != '\n') { // only consider chr=13 as newline while reading numbers
+                    if (b == '-') {
+                        sign = -1;
+                    } else if (b != '.') {
+                        temperature = temperature * 10 + (b - '0');
                     }
-                } // end loop
-                // If we get to the end and there is still data left, add it to the fragments as the start of the next block
-                if (nameStart < bufferLength) {
-                    results.endFragment = Arrays.copyOfRange(array, nameStart, bufferLength);
+                } else {    // end of line
+                    results.addOrMerge(h, array, nameStart, nameEnd, sign * temperature);
+                    rows++;
+                    temperature = 0;
+                    sign = 1;
+                    nameStart = bufferPosition;
+                    nameEnd = bufferPosition;
+                    readingName = true;
+                    h = NameHash.SEED;
                 }
-                callback.callback(results);
-                return results;
+            } // end loop
+            // If we get to the end and there is still data left, add it to the fragments as the start of the next block
+            results.endFrom = nameStart;
+            results.endTo = bufferLength;
+            if (parseEvent != null && parseEvent.shouldCommit()) {
+                parseEvent.offset = (long) blockNumber * blockSize;
+                parseEvent.bytes = bufferLength;
+                parseEvent.rows = rows;
+                parseEvent.collisions = results.collisions;
+                parseEvent.longestProbe = results.longestProbe;
+                parseEvent.overflowed = results.overflowed;
+                parseEvent.commit();
             }
+            callback.callback(results);
+            return results;
         }
     }
 
@@ -214,65 +272,55 @@ public class ArrayMapQueuedThreads {
      * combines them with the processing results
      */
     static class Amalgamator {
-        byte[][] lineEnds = new byte[NUM_BLOCKS][];
-        byte[][] lineStarts = new byte[NUM_BLOCKS][];
+        FragmentJoiner fragments = new FragmentJoiner();
         ListOfCities overallResults = new ListOfCities(0);
 
-        byte[] getJoinedFragments(int number) {
-            // join the start and end fragments together
-            byte[] start = lineStarts[number];
-            byte[] end = lineEnds[number];
-            if (start == null && end == null) {
-                return null;
-            } else if (start == null) {
-                return end;
-            } else if (end == null) {
-                return start;
-            } else {
-                byte[] bufferToBuild = new byte[start.length + end.length];
-                System.arraycopy(start, 0, bufferToBuild, 0, start.length);
-                System.arraycopy(end, 0, bufferToBuild, start.length, end.length);
-                return bufferToBuild;
-            }
-        }
-
         // spare characters at the end of a block will be the start of a row in the next block.
         // Add the fragments and combine the results from the block.
         public void storeResults(ListOfCities resultToAdd) {
             if (resultToAdd != null) {
-                if (resultToAdd.endFragment != null) {
-                    lineStarts[resultToAdd.blockNumber + 1] = resultToAdd.endFragment;
-                }
-                if (resultToAdd.startFragment != null) {
-                    lineEnds[resultToAdd.blockNumber] = resultToAdd.startFragment;
+                fragments.add(resultToAdd.blockNumber, resultToAdd.buffer.array(), resultToAdd.startLength,
+                        resultToAdd.endFrom, resultToAdd.endTo);
+                Events.ResultsMerged event = null;
+                if (Events.ENABLED) {
+                    event = new Events.ResultsMerged();
+                    event.begin();
                 }
+                int stations = 0;
                 for (Station s : resultToAdd.records) {
-                    if (s != null) {
+                    if (s != null && s.measurements > 0) {
                         overallResults.mergeCity(s);
+                        stations++;
                     }
                 }
+                if (resultToAdd.overflow != null) {
+                    overallResults.mergeOverflow(resultToAdd.overflow);
+                    stations += resultToAdd.overflow.size();
+                }
+                if (event != null && event.shouldCommit()) {
+                    event.stations = stations;
+                    event.commit();
+                }
             }
         }
 
-        public void mergeFragments() {
-            for (int f = 0; f < NUM_BLOCKS; f++) {
-                byte[] line = getJoinedFragments(f);
-                if (line != null) {
-                    overallResults.addCity(line);
-                }
-            }
+        // The combined results, including the rows which were split between blocks.
+        public Results getResults() {
+            Results results = overallResults.toResults();
+            results.merge(fragments.finish());
+            return results;
         }
     }
 
     static class Station {
         public final byte[] name;
-        public int measurements;
-        public int total;
+        public long measurements;
+        public long total;
         public int maxT;
         public int minT;
-        public final int hash;
+        public final long hash;
 
-        Station(byte[] name, int hash, int temp) {
+        Station(byte[] name, long hash, int temp) {
             this.name = name;
             this.hash = hash;
             this.total = temp;
@@ -281,6 +329,24 @@ public class ArrayMapQueuedThreads {
             this.maxT = temp;
         }
 
+        // for the overall results, which keep theirs while the blocks' tables are used again
+        Station(Station other) {
+            this.name = other.name;
+            this.hash = other.hash;
+            this.total = other.total;
+            this.measurements = other.measurements;
+            this.minT = other.minT;
+            this.maxT = other.maxT;
+        }
+
+        // ready for the next block, which will probably have the same station in it
+        void reset() {
+            total = 0;
+            measurements = 0;
+            minT = Integer.MAX_VALUE;
+            maxT = Integer.MIN_VALUE;
+        }
+
         public void add_measurement(int temp) {
             total += temp;
             measurements++;
@@ -304,7 +370,7 @@ public class ArrayMapQueuedThreads {
         }
     }
 
-    // Holds the start and end fragments for the block, along with the combined results
+    // Holds the block and where its start and end fragments are, along with the combined results
     // for that block. A bit like an array-backed map.
     static class ListOfCities {
 
@@ -313,186 +379,120 @@ public class ArrayMapQueuedThreads {
         // decreasing the hash array size means this needs increasing to at least 4
         static final int COLLISION = 2;
         public Station[] records = new Station[HASH_SPACE + COLLISION];
-
-        // startFragment is at the start of the block (or the end of the previous block)
-        public byte[] startFragment;
-        public byte[] endFragment;
+        // stations which didn't fit in records, only needed if we're very unlucky
+        Results overflow;
+
+        // null for the overall results
+        final ByteBuffer buffer;
+        // the start fragment is the first startLength bytes of the block (the end of the previous
+        // block's last row) and the end fragment goes from endFrom to endTo
+        public int startLength;
+        public int endFrom;
+        public int endTo;
         public int blockNumber;
+        // lookups which didn't find the station in its first slot, for the flight recorder
+        int collisions;
+        // the furthest past its first slot a lookup went in this block, and the rows which went in
+        // the overflow table, also for the flight recorder
+        int longestProbe;
+        int overflowed;
 
         public ListOfCities(int blockNumber) {
             this.blockNumber = blockNumber;
+            this.buffer = null;
         }
 
-        // Only called at the end on the line fragments.
-        void addCity(byte[] array) {
-            int tempStart = 0;
-            int tempEnd = 0;
-            // Split the line into name and temperature
-            int hashCode = 0;
-            for (int i = 0; i < array.length; i++) {
-                byte b = array[i];
-                if (b == ';') {
-                    tempStart = i + 1;
-                    tempEnd = array.length;
-                    break;
-                } else {
-                    hashCode = 31 * hashCode + b;
-                }
-            }
+        public ListOfCities(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
 
-            /*
-             * Parse a byte array into a number.
-             * All the numbers are [-]d{1,2}.d so can take shortcuts with location of decimal place etc.
-             * Returns 10* the actual number
-             */
-            int temp;
-            if (array[tempStart] == '-') {
-                if (tempEnd - tempStart == 4) {
-                    temp = -array[tempStart + 1] * 10 - array[tempStart + 3] + 528;
-                } else {
-                    temp = -array[tempStart + 1] * 100 - array[tempStart + 2] * 10 - array[tempStart + 4] + 5328;
-                }
-            } else {
-                if (tempEnd - tempStart == 3) {
-                    temp = array[tempStart] * 10 + array[tempStart + 2] - 528;
-                } else {
-                    temp = array[tempStart] * 100 + array[tempStart + 1] * 10 + array[tempStart + 3] - 5328;
+        // Empty the table for another block, keeping the stations where they are
+        void reset(int blockNumber) {
+            this.blockNumber = blockNumber;
+            collisions = 0;
+            longestProbe = 0;
+            overflowed = 0;
+            overflow = null;
+            for (Station s : records) {
+                if (s != null) {
+                    s.reset();
                 }
             }
+        }
 
-            // Since we are adding the block fragments, at the end, we will have already seen all
-            // of the weather stations so we can take a short-cut and merge but not add new ones.
-            int hash = hashCode & (HASH_SPACE - 1);
-            Station entry = records[hash];
-            if (entry.hash == hashCode) {
-                records[hash].add_measurement(temp);
-                return;
-            }
-            entry = records[++hash];
-            if (entry.hash == hashCode) {
-                records[hash].add_measurement(temp);
-                return;
+        // Copy the stations into the shared form used for the output and the result cache.
+        Results toResults() {
+            Results results = new Results();
+            for (Station s : records) {
+                if (s != null) {
+                    results.add(s.name, s.measurements, s.total, s.minT, s.maxT);
+                }
             }
-            entry = records[++hash];
-            if (entry.hash == hashCode) {
-                records[hash].add_measurement(temp);
-                return;
+            if (overflow != null) {
+                results.merge(overflow);
             }
-            throw new RuntimeException("Hash code not present in array");
+            return results;
         }
 
         // Called during the main processing loop
-        void addOrMerge(int key, byte[] buffer, int startIndex, int endIndex, int temperature) {
-            int hash = key & (HASH_SPACE - 1);
+        void addOrMerge(long key, byte[] buffer, int startIndex, int endIndex, int temperature) {
+            int hash = NameHash.spread(key) & (HASH_SPACE - 1);
             // Search forwards search for the entry or a gap
-            Station entry = records[hash];
-            if (entry == null) {
-                byte[] nameArray = Arrays.copyOfRange(buffer, startIndex, endIndex);
-                records[hash] = new Station(nameArray, key, temperature);
-                return;
-            }
-            if (entry.hash == key) {
-                entry.add_measurement(temperature);
-                return;
-            }
-
-            entry = records[++hash];
-            if (entry == null) {
-                byte[] nameArray = Arrays.copyOfRange(buffer, startIndex, endIndex);
-                records[hash] = new Station(nameArray, key, temperature);
-                return;
-            }
-            if (entry.hash == key) {
-                entry.add_measurement(temperature);
-                return;
-            }
-
-            entry = records[++hash];
-            if (entry == null) {
-                byte[] nameArray = Arrays.copyOfRange(buffer, startIndex, endIndex);
-                records[hash] = new Station(nameArray, key, temperature);
-                return;
+            for (int probe = 0; probe <= COLLISION; probe++, hash++) {
+                Station entry = records[hash];
+                if (entry == null) {
+                    byte[] nameArray = Arrays.copyOfRange(buffer, startIndex, endIndex);
+                    records[hash] = new Station(nameArray, key, temperature);
+                    return;
+                }
+                if (entry.hash == key) {
+                    entry.add_measurement(temperature);
+                    return;
+                }
+                collisions++;
+                if (probe < COLLISION && probe >= longestProbe) {
+                    longestProbe = probe + 1;
+                }
             }
-            if (entry.hash == key) {
-                entry.add_measurement(temperature);
+            // Too many names wanting the same few slots, put them somewhere which can cope
+            // rather than falling over, the same as ArrayMapChunks
+            overflowed++;
+            if (overflow == null) {
+                overflow = new Results();
             }
-            // don't fail silently, fail kicking and screaming if we can't store the value.
-            throw new RuntimeException("Map Collision Error (merge)");
+            overflow.add(buffer, startIndex, endIndex - startIndex, 1, temperature, temperature, temperature);
         }
 
 
         // Called during the processing after each block
         void mergeCity(Station city) {
             // add a city, or if already present combine two sets of measurements
-            int h = city.hash;
-            int hash = h & (HASH_SPACE - 1);
-
-            Station entry = records[hash];
+            int hash = NameHash.spread(city.hash) & (HASH_SPACE - 1);
             // Search forward looking for the city, merge if we find it, add it if we find a null
-            if (entry == null) {
-                records[hash] = city;
-                return;
-            }
-            if (entry.hash == h) {
-                entry.combine_results(city);
-                return;
-            }
-            entry = records[++hash];
-            if (entry == null) {
-                records[hash] = city;
-                return;
-            }
-            if (entry.hash == h) {
-                entry.combine_results(city);
-                return;
-            }
-            entry = records[++hash];
-            if (entry == null) {
-                records[hash] = city;
-                return;
+            for (int probe = 0; probe <= COLLISION; probe++, hash++) {
+                Station entry = records[hash];
+                if (entry == null) {
+                    records[hash] = new Station(city);
+                    return;
+                }
+                if (entry.hash == city.hash) {
+                    entry.combine_results(city);
+                    return;
+                }
             }
-            if (entry.hash == h) {
-                entry.combine_results(city);
-                return;
+            if (overflow == null) {
+                overflow = new Results();
             }
-            throw new RuntimeException("Map Collision Error (merge/put)");
+            overflow.add(city.name, city.measurements, city.total, city.minT, city.maxT);
         }
-    }
 
-
-    /**
-     * Holds a byte array along with methods to add bytes and concatenate arrays.
-     * Only used at the end, joining fragments and preparing output.
-     */
-    static class AppendableByteArray {
-        int length;
-        byte[] buffer;
-        static int INITIAL_BUFF_SIZE = 32;
-
-        /*
-         32 bytes should be enough for anyone, right? The longest place name in the world
-         (Taumatawhakatangihangakoauauotamateaturipukakapikimaungahoronukupokaiwhenuakitanatahu)
-         is 85 characters and I hope that doesn't appear in the test data.
-         And that place in Wales (Llanfairpwllgwyngyllgogerychwyrndrobwllllantysiliogogogoch)
-         is 58 but I don't think that's in the data either.
-         */
-        AppendableByteArray() {
-            length = 0;
-            buffer = new byte[INITIAL_BUFF_SIZE];
-        }
-
-        public String asString() {
-            return new String(buffer, 0, length, StandardCharsets.UTF_8);
-        }
-
-        public void addDelimiter() {
-            buffer[length++] = ';';
-        }
-
-        public void appendArray(byte[] bytes) {
-            System.arraycopy(bytes, 0, buffer, length, bytes.length);
-            length += bytes.length;
+        // a block's overflow, which has its names and figures already
+        void mergeOverflow(Results blockOverflow) {
+            if (overflow == null) {
+                overflow = new Results();
+            }
+            overflow.merge(blockOverflow);
         }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,156 @@
+package arraymaps;
+
+import common.*;
+
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the whole file, but in a random order, and writes out the answers so far every so
+ * often, each with how much of the file they're from and a confidence interval for every
+ * mean. Something watching it has a good idea of the answer within a second, and the last
+ * one, once everything has been read, is the exact answer.
+ * <pre>
+ * java -Dprogressive.ms=500 arraymaps.ProgressiveChunks measurements.txt
+ * </pre>
+ * The chunks are shuffled and parsed the same way as SampledChunks, and -Dsample.chunk,
+ * -Dsample.seed, -Dsample.confidence and -Dsample.present work the same. A snapshot is
+ * written every -Dprogressive.ms (default 1000) or every -Dprogressive.chunks chunks (default
+ * 0, which doesn't), whichever comes first. They go to stdout, each after a line starting
+ * with ---, or with -Dprogressive.file=latest.txt each one replaces the last in that file, so
+ * something can read it whenever it likes without seeing half a snapshot.
+ * <p>
+ * The threads never wait for a snapshot. Each one hands over the figures for every chunk as
+ * it finishes, which it has to anyway for the intervals, on a queue, and carries straight on
+ * with the next chunk. The main thread adds them up and writes the snapshots from its own
+ * copy, so there's nothing for anyone to lock.
+ */
+public class ProgressiveChunks {
+
+    static final long INTERVAL_MS = Long.getLong("progressive.ms", 1000);
+    static final int EVERY_CHUNKS = Integer.getInteger("progressive.chunks", 0);
+    static final String FILE = System.getProperty("progressive.file");
+
+    // a chunk's figures on their way from a thread to the main thread
+    private record Finished(Results results, long bytes) {
+    }
+
+    private final List<Chunk> chunks;
+    private final int[] order;
+    private final SampleEstimates estimates;
+    private final long startTime = System.nanoTime();
+    private int snapshots;
+
+    public static void main(String[] args) throws Exception {
+        long startTime = System.currentTimeMillis();
+        Path file = Paths.get(args.length == 0 ? "measurements.txt" : args[0]);
+        new ProgressiveChunks(file).go();
+        long endTime = System.currentTimeMillis();
+        System.err.printf("Took %.2f s\n", (endTime - startTime) / 1000.0);
+    }
+
+    ProgressiveChunks(Path file) throws Exception {
+        long size = Files.size(file);
+        chunks = ChunkPlanner.split(new Chunk(file, 0, size), SampledChunks.CHUNK_SIZE);
+        order = SampledChunks.shuffle(chunks.size(), SampledChunks.SEED);
+        estimates = new SampleEstimates(size, SampledChunks.CONFIDENCE, SampledChunks.MIN_PRESENT);
+    }
+
+    void go() throws Exception {
+        if (chunks.isEmpty()) {
+            snapshot();
+            return;
+        }
+        int bufferSize = 1;
+        for (Chunk chunk : chunks) {
+            bufferSize = Math.max(bufferSize, chunk.length() + 1);
+        }
+        Path file = chunks.get(0).file();
+        BlockingQueue<Finished> finished = new LinkedBlockingQueue<>();
+        AtomicInteger next = new AtomicInteger();
+        Progress progress = new Progress(ArrayMapChunks.THREADS, chunks.get(chunks.size() - 1).end()).start();
+        Future<?>[] running = new Future<?>[ArrayMapChunks.THREADS];
+        try (ExecutorService pool = Executors.newFixedThreadPool(ArrayMapChunks.THREADS)) {
+            for (int i = 0; i < running.length; i++) {
+                ArrayMapChunks.ProcessData p = new ArrayMapChunks.ProcessData(bufferSize, i, progress, Map.of(file, 0L));
+                running[i] = pool.submit(() -> {
+                    try {
+                        int k;
+                        while ((k = next.getAndIncrement()) < order.length) {
+                            Chunk chunk = chunks.get(order[k]);
+                            p.process(chunk);
+                            finished.add(new Finished(p.takeResults(), chunk.length()));
+                        }
+                    } finally {
+                        p.close();
+                    }
+                    return null;
+                });
+            }
+
+            int added = 0;
+            int sinceSnapshot = 0;
+            long due = System.nanoTime() + INTERVAL_MS * 1_000_000;
+            while (added < chunks.size()) {
+                Finished f = finished.poll(Math.max(0, due - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (f != null) {
+                    estimates.add(f.results(), f.bytes());
+                    added++;
+                    sinceSnapshot++;
+                } else {
+                    // nothing for a while, make sure that's not because a thread has fallen over
+                    for (Future<?> r : running) {
+                        if (r.isDone()) {
+                            r.get();
+                        }
+                    }
+                }
+                boolean enough = EVERY_CHUNKS > 0 && sinceSnapshot >= EVERY_CHUNKS;
+                if ((enough || System.nanoTime() >= due) && added < chunks.size()) {
+                    if (sinceSnapshot > 0) {
+                        snapshot();
+                    }
+                    sinceSnapshot = 0;
+                    due = System.nanoTime() + INTERVAL_MS * 1_000_000;
+                }
+            }
+            for (Future<?> r : running) {
+                r.get();
+            }
+        }
+        progress.stop();
+        // everything's in, so this one's exact
+        snapshot();
+    }
+
+    private void snapshot() throws Exception {
+        snapshots++;
+        int widest = estimates.widest();
+        String heading = String.format(Locale.ROOT, "--- snapshot %d after %.2f s: %d of %d chunks, %.1f%% of the file, %s",
+                snapshots, (System.nanoTime() - startTime) / 1e9, estimates.chunks(), chunks.size(),
+                100 * estimates.fraction(), estimates.fraction() >= 1 ? "exact"
+                        : widest < 0 ? "nothing yet"
+                        : String.format(Locale.ROOT, "widest interval +/- %.2f", estimates.halfWidth(widest) / 10));
+        if (FILE == null) {
+            System.out.println(heading);
+            estimates.write(System.out);
+            return;
+        }
+        Path file = Paths.get(FILE);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (PrintStream out = new PrintStream(Files.newOutputStream(temp))) {
+            out.println(heading);
+            estimates.write(out);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.err.println(heading);
+    }
+}
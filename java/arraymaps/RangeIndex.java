@@ -0,0 +1,415 @@
+package arraymaps;
+
+import common.*;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Answers for part of a file without reading all of it again. The file is read once with
+ * --build, which keeps the count, sum, min and max of every station in every chunk in a side
+ * file next to it (measurements.txt.idx). After that, a query for a range of bytes or rows
+ * adds up the chunks which are wholly inside the range from the index and only reads the
+ * chunks at each end.
+ * <pre>
+ * java arraymaps.RangeIndex --build measurements.txt
+ * java arraymaps.RangeIndex --bytes measurements.txt 1000000000 2000000000
+ * java arraymaps.RangeIndex --rows measurements.txt 0 500000000 --between -5 5
+ * </pre>
+ * Byte ranges take the rows which start inside them, the same as ScaleOut's ranges, and row
+ * ranges count from 0, not including the end, counting only rows which could be read. Either
+ * can be limited to readings between two temperatures (inclusive) with --between. Each chunk
+ * keeps the lowest and highest readings in it, so chunks which can't have any readings in the
+ * range are skipped without reading them, and those where every reading is inside it come from
+ * the index as usual. Chunks which have some of each are read, unless the stations in them
+ * are each wholly in or out.
+ * <p>
+ * The chunks which are read are parsed with the same rules as ArrayMapChunks' careful parser.
+ * The main loop lets a few odd rows through which that wouldn't (eg. a second ';' in a row for
+ * a station it has already seen), so on a file with rows like that the answers for the chunks
+ * at the ends can differ from a full run by those rows.
+ * <p>
+ * The index has the size and modification time of the file it was built from, and a query on
+ * a file which has changed since fails rather than giving the wrong answer. -Dchunk.size sets
+ * the chunk size when building, smaller chunks make the index bigger but the queries quicker.
+ * The format, with all numbers big-endian:
+ * <pre>
+ * int    magic "1BRI"
+ * short  version
+ * long   size of the file
+ * long   when the file was last modified, in ms
+ * int    number of stations, then for each one an int length and the UTF-8 bytes of the name
+ * int    number of chunks, then for each one:
+ *   long   start and end of the chunk in the file
+ *   int    number of rows
+ *   int    lowest and highest reading, in tenths
+ *   int    number of stations in the chunk, then for each one:
+ *     int    station number, in the list above
+ *     int    count
+ *     long   sum, in tenths
+ *     int    min and max, in tenths
+ * </pre>
+ */
+public class RangeIndex {
+
+    private static final int MAGIC = 0x31425249; // "1BRI"
+    private static final int VERSION = 2;
+
+    private final Path file;
+    private final byte[][] names;
+    private final long[] starts;
+    private final long[] ends;
+    // rows before the start of each chunk, with one more at the end for the whole file
+    private final long[] rowsBefore;
+    private final int[] zoneMins;
+    private final int[] zoneMaxs;
+    // each chunk's stations are entries firstEntry[c] to firstEntry[c + 1] - 1
+    private final int[] firstEntry;
+    private final int[] stations;
+    private final int[] counts;
+    private final long[] totals;
+    private final int[] mins;
+    private final int[] maxs;
+
+    // what the last query did, for the message at the end
+    private int merged;
+    private int skipped;
+    private int scanned;
+    private long scannedBytes;
+
+    public static void main(String[] args) throws Exception {
+        long startTime = System.currentTimeMillis();
+        if (args.length < 2) {
+            usage();
+            return;
+        }
+        Path file = Paths.get(args[1]);
+        int lo = Integer.MIN_VALUE;
+        int hi = Integer.MAX_VALUE;
+        if (args.length == 7 && args[4].equals("--between")) {
+            lo = tenths(args[5]);
+            hi = tenths(args[6]);
+        }
+        switch (args[0]) {
+            case "--build" -> build(file);
+            case "--bytes", "--rows" -> {
+                if (args.length != 4 && (args.length != 7 || lo == Integer.MIN_VALUE)) {
+                    usage();
+                    return;
+                }
+                RangeIndex index = load(file);
+                long from = Long.parseLong(args[2].replace("_", ""));
+                long to = Long.parseLong(args[3].replace("_", ""));
+                Results results = args[0].equals("--bytes") ? index.bytes(from, to, lo, hi) : index.rows(from, to, lo, hi);
+                System.err.printf("%d chunks from the index, %d skipped, %d read (%,d bytes)%n",
+                        index.merged, index.skipped, index.scanned, index.scannedBytes);
+                ResultWriter.write(results);
+            }
+            default -> {
+                usage();
+                return;
+            }
+        }
+        long endTime = System.currentTimeMillis();
+        // keep stdout for the results
+        System.err.printf("Took %.2f s\n", (endTime - startTime) / 1000.0);
+    }
+
+    private static void usage() {
+        System.err.println("""
+                usage: RangeIndex --build <file>
+                       RangeIndex --bytes <file> <start> <end> [--between <low> <high>]
+                       RangeIndex --rows <file> <first> <end> [--between <low> <high>]""");
+    }
+
+    private static int tenths(String degrees) {
+        return new BigDecimal(degrees).movePointRight(1).intValueExact();
+    }
+
+    static Path indexFile(Path file) {
+        return file.resolveSibling(file.getFileName() + ".idx");
+    }
+
+    /**
+     * Read the whole file with ArrayMapChunks' threads, keeping each chunk's results apart, and
+     * write the index next to it.
+     */
+    static void build(Path file) throws Exception {
+        long size = Files.size(file);
+        long modified = Files.getLastModifiedTime(file).toMillis();
+        List<Chunk> chunks = ChunkPlanner.split(new Chunk(file, 0, size), ArrayMapChunks.CHUNK_SIZE);
+        int bufferSize = 1;
+        for (Chunk chunk : chunks) {
+            bufferSize = Math.max(bufferSize, chunk.length() + 1);
+        }
+        Results[] perChunk = new Results[chunks.size()];
+        AtomicInteger next = new AtomicInteger();
+        Progress progress = new Progress(ArrayMapChunks.THREADS, size).start();
+        Future<?>[] running = new Future<?>[ArrayMapChunks.THREADS];
+        try (ExecutorService pool = Executors.newFixedThreadPool(ArrayMapChunks.THREADS)) {
+            for (int i = 0; i < running.length; i++) {
+                ArrayMapChunks.ProcessData p = new ArrayMapChunks.ProcessData(bufferSize, i, progress, Map.of(file, 0L));
+                running[i] = pool.submit(() -> {
+                    try {
+                        int c;
+                        while ((c = next.getAndIncrement()) < perChunk.length) {
+                            p.process(chunks.get(c));
+                            perChunk[c] = p.takeResults();
+                        }
+                    } finally {
+                        p.close();
+                    }
+                    return null;
+                });
+            }
+            for (Future<?> f : running) {
+                f.get();
+            }
+        }
+        progress.stop();
+
+        // number the stations in the order they're first seen
+        Results all = new Results();
+        for (Results r : perChunk) {
+            all.merge(r);
+        }
+        Path index = indexFile(file);
+        Path temp = index.resolveSibling(index.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeLong(size);
+            out.writeLong(modified);
+            out.writeInt(all.size());
+            for (int i = 0; i < all.size(); i++) {
+                out.writeInt(all.name(i).length);
+                out.write(all.name(i));
+            }
+            out.writeInt(chunks.size());
+            for (int c = 0; c < chunks.size(); c++) {
+                Results r = perChunk[c];
+                int zoneMin = Integer.MAX_VALUE;
+                int zoneMax = Integer.MIN_VALUE;
+                for (int i = 0; i < r.size(); i++) {
+                    zoneMin = Math.min(zoneMin, r.min(i));
+                    zoneMax = Math.max(zoneMax, r.max(i));
+                }
+                out.writeLong(chunks.get(c).start());
+                out.writeLong(chunks.get(c).end());
+                out.writeInt((int) r.totalCount());
+                out.writeInt(zoneMin);
+                out.writeInt(zoneMax);
+                out.writeInt(r.size());
+                for (int i = 0; i < r.size(); i++) {
+                    // adding nothing to a station we already have just finds its number
+                    out.writeInt(all.add(r.name(i), 0, 0, Integer.MAX_VALUE, Integer.MIN_VALUE));
+                    out.writeInt((int) r.count(i));
+                    out.writeLong(r.total(i));
+                    out.writeInt(r.min(i));
+                    out.writeInt(r.max(i));
+                }
+            }
+        }
+        Files.move(temp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.err.printf("Indexed %,d rows of %d stations in %d chunks, %,d bytes%n",
+                all.totalCount(), all.size(), chunks.size(), Files.size(index));
+    }
+
+    static RangeIndex load(Path file) throws IOException {
+        Path index = indexFile(file);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(index)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(index + " isn't an index file");
+            }
+            int version = in.readShort();
+            if (version != VERSION) {
+                throw new IOException(index + " is version " + version + ", this build only reads version " + VERSION);
+            }
+            if (in.readLong() != Files.size(file) || in.readLong() != Files.getLastModifiedTime(file).toMillis()) {
+                throw new IOException(file + " has changed since " + index + " was built, run --build again");
+            }
+            return new RangeIndex(file, in);
+        }
+    }
+
+    private RangeIndex(Path file, DataInputStream in) throws IOException {
+        this.file = file;
+        names = new byte[in.readInt()][];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = new byte[in.readInt()];
+            in.readFully(names[i]);
+        }
+        int chunks = in.readInt();
+        starts = new long[chunks];
+        ends = new long[chunks];
+        rowsBefore = new long[chunks + 1];
+        zoneMins = new int[chunks];
+        zoneMaxs = new int[chunks];
+        firstEntry = new int[chunks + 1];
+        int capacity = Math.max(16, names.length);
+        int[] stations = new int[capacity];
+        int[] counts = new int[capacity];
+        long[] totals = new long[capacity];
+        int[] mins = new int[capacity];
+        int[] maxs = new int[capacity];
+        int entries = 0;
+        for (int c = 0; c < chunks; c++) {
+            starts[c] = in.readLong();
+            ends[c] = in.readLong();
+            rowsBefore[c + 1] = rowsBefore[c] + in.readInt();
+            zoneMins[c] = in.readInt();
+            zoneMaxs[c] = in.readInt();
+            int n = in.readInt();
+            if (entries + n > stations.length) {
+                capacity = Math.max(capacity * 2, entries + n);
+                stations = Arrays.copyOf(stations, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+                totals = Arrays.copyOf(totals, capacity);
+                mins = Arrays.copyOf(mins, capacity);
+                maxs = Arrays.copyOf(maxs, capacity);
+            }
+            for (int i = 0; i < n; i++, entries++) {
+                stations[entries] = in.readInt();
+                counts[entries] = in.readInt();
+                totals[entries] = in.readLong();
+                mins[entries] = in.readInt();
+                maxs[entries] = in.readInt();
+            }
+            firstEntry[c + 1] = entries;
+        }
+        this.stations = stations;
+        this.counts = counts;
+        this.totals = totals;
+        this.mins = mins;
+        this.maxs = maxs;
+    }
+
+    /**
+     * @return the results for the rows which start between from and to - 1, with readings
+     * between lo and hi (in tenths, inclusive).
+     */
+    Results bytes(long from, long to, int lo, int hi) throws IOException {
+        return query(from, to, false, lo, hi);
+    }
+
+    /**
+     * @return the results for rows from to to - 1, counting from 0, with readings between lo
+     * and hi (in tenths, inclusive).
+     */
+    Results rows(long from, long to, int lo, int hi) throws IOException {
+        return query(from, to, true, lo, hi);
+    }
+
+    private Results query(long from, long to, boolean byRow, int lo, int hi) throws IOException {
+        merged = skipped = scanned = 0;
+        scannedBytes = 0;
+        Results results = new Results();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            byte[] buffer = null;
+            for (int c = 0; c < starts.length; c++) {
+                long first = byRow ? rowsBefore[c] : starts[c];
+                long last = byRow ? rowsBefore[c + 1] : ends[c];
+                if (last <= from || first >= to || zoneMaxs[c] < lo || zoneMins[c] > hi || first == last) {
+                    continue; // outside the range, or nothing in it could be
+                }
+                if (first >= from && last <= to && needsReading(c, lo, hi) == 0) {
+                    addFromIndex(results, c, lo, hi);
+                    merged++;
+                    continue;
+                }
+                int length = (int) (ends[c] - starts[c]);
+                if (buffer == null || buffer.length < length) {
+                    buffer = new byte[length];
+                }
+                ByteBuffer bb = ByteBuffer.wrap(buffer, 0, length);
+                while (bb.hasRemaining()) {
+                    if (channel.read(bb, starts[c] + bb.position()) == -1) {
+                        throw new IOException(file + " is shorter than when it was indexed");
+                    }
+                }
+                scan(results, buffer, length, c, from, to, byRow, lo, hi);
+                scanned++;
+                scannedBytes += length;
+            }
+        }
+        skipped = starts.length - merged - scanned;
+        return results;
+    }
+
+    // the number of stations in the chunk with some readings inside lo..hi and some outside
+    private int needsReading(int c, int lo, int hi) {
+        if (lo <= zoneMins[c] && zoneMaxs[c] <= hi) {
+            return 0;
+        }
+        int straddling = 0;
+        for (int e = firstEntry[c]; e < firstEntry[c + 1]; e++) {
+            if (mins[e] <= hi && maxs[e] >= lo && (mins[e] < lo || maxs[e] > hi)) {
+                straddling++;
+            }
+        }
+        return straddling;
+    }
+
+    private void addFromIndex(Results results, int c, int lo, int hi) {
+        for (int e = firstEntry[c]; e < firstEntry[c + 1]; e++) {
+            if (mins[e] >= lo && maxs[e] <= hi) {
+                results.add(names[stations[e]], counts[e], totals[e], mins[e], maxs[e]);
+            }
+        }
+    }
+
+    /**
+     * Read one chunk row by row, the same way as ArrayMapChunks' careful parser, keeping the
+     * rows inside the range.
+     */
+    private void scan(Results results, byte[] array, int limit, int c, long from, long to,
+                      boolean byRow, int lo, int hi) {
+        long row = rowsBefore[c];
+        int lineStart = 0;
+        // a byte order mark doesn't move where the first row starts
+        int skip = 0;
+        if (starts[c] == 0 && limit >= 3 && array[0] == (byte) 0xEF
+                && array[1] == (byte) 0xBB && array[2] == (byte) 0xBF) {
+            skip = 3;
+            lineStart = 3;
+        }
+        while (lineStart < limit) {
+            int lineEnd = lineStart;
+            while (lineEnd < limit && array[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            int end = lineEnd;
+            if (end > lineStart && array[end - 1] == '\r') {
+                end--;
+            }
+            int semicolon = lineStart;
+            while (semicolon < end && array[semicolon] != ';') {
+                semicolon++;
+            }
+            int temperature = semicolon < end ? ArrayMapChunks.ProcessData.parseTenths(array, semicolon + 1, end)
+                    : Integer.MIN_VALUE;
+            if (temperature != Integer.MIN_VALUE && ArrayMapChunks.ProcessData.validName(array, lineStart, semicolon)) {
+                long position = byRow ? row : starts[c] + (lineStart == skip ? 0 : lineStart);
+                if (position >= from && position < to && temperature >= lo && temperature <= hi) {
+                    results.add(array, lineStart, semicolon - lineStart, 1, temperature, temperature, temperature);
+                }
+                row++;
+            }
+            lineStart = lineEnd + 1;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package arraymaps;
+
+import common.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Approximate answers from a random sample of the file, for when a mean to within a degree or
+ * so in a second is more use than the exact answer in ten.
+ * <pre>
+ * java -Dsample.error=0.2 arraymaps.SampledChunks measurements.txt
+ * </pre>
+ * The file is split into newline-aligned chunks of -Dsample.chunk bytes (default 1Mb), which
+ * are shuffled with -Dsample.seed (default 1), so the same seed always reads the same chunks in
+ * the same order. The threads take the chunks in that order and parse them with
+ * ArrayMapChunks' ProcessData, so the rows are read exactly as a full run would read them, and
+ * hand each chunk's figures over as they finish. See SampleEstimates for how they become a
+ * mean and a confidence interval for each station.
+ * <p>
+ * It stops as soon as every station seen so far has an interval of at most plus or minus
+ * -Dsample.error degrees (default 0.5) at -Dsample.confidence (default 0.95), but not before
+ * -Dsample.min chunks (default 30), as the intervals aren't worth much with fewer. The chunks
+ * are added up in the shuffled order, however many threads there are, and it stops at the
+ * first point in that order where the intervals are narrow enough, so a run gives the same
+ * answer whatever the threads got up to. If they never get narrow enough it reads the whole
+ * file and the answer is exact.
+ * <p>
+ * Stations which are rare enough not to be in any of the chunks read aren't in the answer. One
+ * which has been seen has no interval at all until it's been in -Dsample.present chunks
+ * (default 5), as a station in one chunk has nothing to compare it with, so it keeps reading
+ * until every station it's seen is in that many, or it gets to the end. A file with lots of
+ * rare stations, or with each station's rows bunched together, will mostly be read all the
+ * way through, and the answer is exact.
+ */
+public class SampledChunks {
+
+    static final long CHUNK_SIZE = Long.getLong("sample.chunk", 1024 * 1024);
+    static final long SEED = Long.getLong("sample.seed", 1);
+    static final double ERROR = Double.parseDouble(System.getProperty("sample.error", "0.5"));
+    static final double CONFIDENCE = Double.parseDouble(System.getProperty("sample.confidence", "0.95"));
+    static final int MIN_CHUNKS = Integer.getInteger("sample.min", 30);
+    static final int MIN_PRESENT = Integer.getInteger("sample.present", 5);
+
+    private final List<Chunk> chunks;
+    private final int[] order;
+    private final SampleEstimates estimates;
+    // each chunk's figures, by its place in the order, until all the ones before it are in
+    private final Results[] finished;
+    private int added;
+    private volatile boolean done;
+
+    public static void main(String[] args) throws Exception {
+        long startTime = System.currentTimeMillis();
+        Path file = Paths.get(args.length == 0 ? "measurements.txt" : args[0]);
+        SampledChunks sample = new SampledChunks(file);
+        SampleEstimates estimates = sample.go();
+        estimates.write(System.out);
+        int widest = estimates.widest();
+        System.err.printf("Read %d of %d chunks (%.1f%% of the file), widest interval +/- %.2f for %s%n",
+                estimates.chunks(), sample.chunks.size(), 100 * estimates.fraction(),
+                widest < 0 ? 0 : estimates.halfWidth(widest) / 10, widest < 0 ? "nothing" : estimates.name(widest));
+        long endTime = System.currentTimeMillis();
+        System.out.printf("Took %.2f s\n", (endTime - startTime) / 1000.0);
+    }
+
+    SampledChunks(Path file) throws Exception {
+        long size = Files.size(file);
+        chunks = ChunkPlanner.split(new Chunk(file, 0, size), CHUNK_SIZE);
+        order = shuffle(chunks.size(), SEED);
+        estimates = new SampleEstimates(size, CONFIDENCE, MIN_PRESENT);
+        finished = new Results[chunks.size()];
+    }
+
+    /**
+     * @return 0 to n - 1 in a random order which only depends on the seed.
+     */
+    static int[] shuffle(int n, long seed) {
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Random random = new Random(seed);
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+        return order;
+    }
+
+    SampleEstimates go() throws Exception {
+        if (chunks.isEmpty()) {
+            return estimates;
+        }
+        int bufferSize = 1;
+        for (Chunk chunk : chunks) {
+            bufferSize = Math.max(bufferSize, chunk.length() + 1);
+        }
+        long size = chunks.get(chunks.size() - 1).end();
+        Path file = chunks.get(0).file();
+        AtomicInteger next = new AtomicInteger();
+        Progress progress = new Progress(ArrayMapChunks.THREADS, size).start();
+        Future<?>[] running = new Future<?>[ArrayMapChunks.THREADS];
+        try (ExecutorService pool = Executors.newFixedThreadPool(ArrayMapChunks.THREADS)) {
+            for (int i = 0; i < running.length; i++) {
+                ArrayMapChunks.ProcessData p = new ArrayMapChunks.ProcessData(bufferSize, i, progress, Map.of(file, 0L));
+                running[i] = pool.submit(() -> {
+                    try {
+                        int k;
+                        while (!done && (k = next.getAndIncrement()) < order.length) {
+                            Chunk chunk = chunks.get(order[k]);
+                            p.process(chunk);
+                            add(k, p.takeResults());
+                        }
+                    } finally {
+                        p.close();
+                    }
+                    return null;
+                });
+            }
+            for (Future<?> f : running) {
+                f.get();
+            }
+        }
+        progress.stop();
+        return estimates;
+    }
+
+    // Add the chunks in the shuffled order, as far as they've been finished, and see if that's
+    // enough. Anything finished after that is left out, so it's the same answer every time.
+    private synchronized void add(int k, Results results) {
+        finished[k] = results;
+        while (!done && added < finished.length && finished[added] != null) {
+            estimates.add(finished[added], chunks.get(order[added]).length());
+            finished[added] = null;
+            added++;
+            if (added >= Math.min(MIN_CHUNKS, finished.length) && narrowEnough()) {
+                done = true;
+            }
+        }
+    }
+
+    private boolean narrowEnough() {
+        int widest = estimates.widest();
+        return widest < 0 || estimates.halfWidth(widest) <= ERROR * 10;
+    }
+}
@@ -0,0 +1,201 @@
+package arraymaps;
+
+import common.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits the work between several JVMs, each running ArrayMapChunks on part of the input and
+ * writing its results to a partial aggregate file, which are then merged.
+ * <pre>
+ * # split the input between 4 worker processes on this machine and merge their results
+ * java arraymaps.ScaleOut --coordinator 4 measurements.txt
+ *
+ * # aggregate part of a file, or some whole files, into a partial aggregate file
+ * java arraymaps.ScaleOut --worker part-0.partial --range measurements.txt 0 3500000000
+ * java arraymaps.ScaleOut --worker part-1.partial shards/a.txt 'shards/b-*.txt'
+ *
+ * # merge partial files made anywhere, eg. on other hosts writing to a shared filesystem
+ * java arraymaps.ScaleOut --merge part-0.partial part-1.partial
+ * </pre>
+ * Ranges don't need to start or end on a row, each worker takes the rows which start inside
+ * its range. The coordinator gives each worker an equal share of the bytes and passes on
+ * -Dchunk.size, -Dhistogram and -Dstats, with -Dthreads defaulting to the cores divided between the
+ * workers. Extra JVM options for the workers can be given with -Dworker.jvmArgs="-Xmx1g ...".
+ * The partial files are deleted after merging unless -Dpartials.keep=true.
+ * <p>
+ * -Dstats=seen only works on a single file: each worker would number the files it was given
+ * from 0, so the places of rows from different files couldn't be compared. It stops before
+ * starting if there's more than one.
+ */
+public class ScaleOut {
+
+    public static void main(String[] args) throws Exception {
+        long startTime = System.currentTimeMillis();
+        if (args.length < 2) {
+            usage();
+            return;
+        }
+        switch (args[0]) {
+            case "--worker" -> worker(Paths.get(args[1]), Arrays.copyOfRange(args, 2, args.length));
+            case "--coordinator" -> coordinator(Integer.parseInt(args[1]), Arrays.copyOfRange(args, 2, args.length));
+            case "--merge" -> merge(Arrays.copyOfRange(args, 1, args.length));
+            default -> {
+                usage();
+                return;
+            }
+        }
+        long endTime = System.currentTimeMillis();
+        // keep stdout for the results
+        System.err.printf("Took %.2f s\n", (endTime - startTime) / 1000.0);
+    }
+
+    private static void usage() {
+        System.err.println("""
+                usage: ScaleOut --coordinator <workers> <file|directory|glob>...
+                       ScaleOut --worker <output> [--range <file> <start> <end>]... [<file|directory|glob>]...
+                       ScaleOut --merge <partial file>...""");
+    }
+
+    static void worker(Path output, String[] args) throws Exception {
+        List<Chunk> ranges = new ArrayList<>();
+        List<String> wholeFiles = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--range")) {
+                ranges.add(new Chunk(Paths.get(args[i + 1]), Long.parseLong(args[i + 2]), Long.parseLong(args[i + 3])));
+                i += 3;
+            } else {
+                wholeFiles.add(args[i]);
+            }
+        }
+        if (!wholeFiles.isEmpty()) {
+            for (Path file : InputFiles.resolve(wholeFiles.toArray(new String[0]))) {
+                ranges.add(new Chunk(file, 0, Files.size(file)));
+            }
+        }
+        String input = "";
+        if (Statistics.SEEN) {
+            Path file = oneFile(ranges.stream().map(Chunk::file).toList());
+            input = file.toAbsolutePath().normalize() + " " + Files.size(file);
+        }
+        Results results = new ArrayMapChunks().go(ChunkPlanner.planRanges(ranges, ArrayMapChunks.CHUNK_SIZE));
+        PartialAggregates.write(output, results, input);
+    }
+
+    // -Dstats=seen needs all the rows to be in the one file
+    private static Path oneFile(List<Path> files) {
+        if (files.stream().distinct().count() != 1) {
+            throw new IllegalArgumentException("-Dstats=seen only works with one input file, not " + files.stream().distinct().toList());
+        }
+        return files.get(0);
+    }
+
+    static void coordinator(int workers, String[] args) throws Exception {
+        List<Path> files = InputFiles.resolve(args);
+        if (Statistics.SEEN) {
+            oneFile(files);
+        }
+        List<List<String>> workerArgs = divide(files, workers);
+        Path partials = Files.createTempDirectory("1brc-partials");
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        String threads = System.getProperty("threads", Integer.toString(Math.max(1, cores / workers)));
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+
+        List<Process> processes = new ArrayList<>();
+        List<Path> outputs = new ArrayList<>();
+        for (int w = 0; w < workerArgs.size(); w++) {
+            Path output = partials.resolve("part-" + w + ".partial");
+            outputs.add(output);
+            List<String> command = new ArrayList<>();
+            command.add(java);
+            String jvmArgs = System.getProperty("worker.jvmArgs", "").trim();
+            if (!jvmArgs.isEmpty()) {
+                command.addAll(Arrays.asList(jvmArgs.split("\\s+")));
+            }
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add("-Dthreads=" + threads);
+            command.add("-Dchunk.size=" + ArrayMapChunks.CHUNK_SIZE);
+            command.add("-Dhistogram=" + ArrayMapChunks.HISTOGRAM);
+            command.add("-Dstats=" + System.getProperty("stats", ""));
+            command.add(ScaleOut.class.getName());
+            command.add("--worker");
+            command.add(output.toString());
+            command.addAll(workerArgs.get(w));
+            processes.add(new ProcessBuilder(command).inheritIO().start());
+        }
+
+        for (int w = 0; w < processes.size(); w++) {
+            int exitCode = processes.get(w).waitFor();
+            if (exitCode != 0) {
+                throw new IOException("Worker " + w + " failed with exit code " + exitCode);
+            }
+        }
+        merge(outputs);
+        if (!Boolean.getBoolean("partials.keep")) {
+            for (Path output : outputs) {
+                Files.deleteIfExists(output);
+            }
+            Files.deleteIfExists(partials);
+        }
+    }
+
+    static void merge(String[] partialFiles) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        for (String p : partialFiles) {
+            paths.add(Paths.get(p));
+        }
+        merge(paths);
+    }
+
+    static void merge(List<Path> partialFiles) throws IOException {
+        Results results = PartialAggregates.readAll(partialFiles);
+        ResultWriter.write(results);
+        if (Statistics.ENABLED) {
+            Statistics.write(results, Paths.get(System.getProperty("stats.file", "stats.csv")));
+        }
+    }
+
+    /**
+     * Treat the files as one long run of bytes and cut it into equal pieces, one per worker.
+     *
+     * @return the --range arguments for each worker.
+     */
+    static List<List<String>> divide(List<Path> files, int workers) throws IOException {
+        long total = 0;
+        for (Path file : files) {
+            total += Files.size(file);
+        }
+        long share = Math.max(1, (total + workers - 1) / workers);
+
+        List<List<String>> workerArgs = new ArrayList<>();
+        List<String> current = new ArrayList<>();
+        long currentSize = 0;
+        for (Path file : files) {
+            long size = Files.size(file);
+            long start = 0;
+            while (start < size) {
+                long end = Math.min(size, start + share - currentSize);
+                current.addAll(List.of("--range", file.toString(), Long.toString(start), Long.toString(end)));
+                currentSize += end - start;
+                start = end;
+                if (currentSize == share) {
+                    workerArgs.add(current);
+                    current = new ArrayList<>();
+                    currentSize = 0;
+                }
+            }
+        }
+        if (!current.isEmpty()) {
+            workerArgs.add(current);
+        }
+        return workerArgs;
+    }
+}
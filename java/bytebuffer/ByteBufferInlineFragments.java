@@ -1,20 +1,34 @@
 package bytebuffer;
 
+import common.Events;
+import common.FragmentJoiner;
+import common.NameHash;
+import common.ResultWriter;
+import common.Results;
+
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Reads the file into a set of ByteByffers
  * Use byte arrays instead of Strings for the City names.
- * Embed fragments in the ListOfCities to avoid using the ConcurrentHashMaps
+ * Embed fragments in the ListOfCities to avoid using the ConcurrentHashMaps. They're left in
+ * the block, with the ListOfCities saying where, and copied out by a FragmentJoiner before the
+ * buffer goes back to be read into again.
+ * Blocks are read ahead of the threads by a ReadAhead, -Dreadahead sets how many blocks
+ * and -Dreadahead.threads how many threads read them. -Dreadahead.log=file.csv writes out
+ * how long we waited for each block.
+ * Each thread keeps the same table of stations from one block to the next, and the names are
+ * only copied for stations it hasn't seen before, so once it's going it hardly allocates
+ * anything.
  */
 public class ByteBufferInlineFragments {
 
@@ -23,8 +37,11 @@ public class ByteBufferInlineFragments {
     String file = "measurements.txt";
 
     final int threads = Runtime.getRuntime().availableProcessors();
-    RowFragments rf = new RowFragments();
+    FragmentJoiner fragments = new FragmentJoiner();
     static final int BUFFERSIZE = 512 * 1024;
+    // how many blocks to read ahead of the processing threads, and how many threads to read them with
+    static final int READ_AHEAD = Integer.getInteger("readahead", 4);
+    static final int READ_THREADS = Integer.getInteger("readahead.threads", 2);
 
     public static void main(String[] args) throws IOException, ExecutionException, InterruptedException {
         long startTime = System.currentTimeMillis();
@@ -37,22 +54,22 @@ public class ByteBufferInlineFragments {
         System.out.println("Using " + threads + " cores");
         threadPoolExecutor = Executors.newFixedThreadPool(threads);
         Future<?>[] runningThreads = new Future<?>[threads];
-
-        // Keep a spare buffer at the end to load into in the background
-        ByteBuffer[] buffers = new ByteBuffer[threads + 1];
+        ByteBuffer[] buffers = new ByteBuffer[threads];
+        // one per thread, used again for each block it's given once the last one's been merged
+        ListOfCities[] tables = new ListOfCities[threads];
+        for (int i = 0; i < threads; i++) {
+            tables[i] = new ListOfCities(0);
+        }
 
         try (RandomAccessFile aFile = new RandomAccessFile(file, "r");
-             FileChannel channel = aFile.getChannel()) {
-
-            launchInitialProcesses(buffers, channel, runningThreads);
+             FileChannel channel = aFile.getChannel();
+             ReadAhead readAhead = new ReadAhead(channel, READ_AHEAD, threads, READ_THREADS)) {
 
-            // Load the next block in advance, ready for when a thread finishes.
-            buffers[threads] = ByteBuffer.allocate(BUFFERSIZE);
-            boolean doWeStillHaveData = loadNextBlock(buffers[threads], channel);
+            int blockNumber = launchInitialProcesses(buffers, tables, readAhead, runningThreads);
             System.out.println("Loaded data");
 
-            int blockNumber = threads; // keep track of which block we are processing
             ListOfCities overallResults = new ListOfCities(0);
+            boolean doWeStillHaveData = blockNumber < readAhead.blocks;
             while (doWeStillHaveData) {
 
                 // go through the executors, check if any have finished and
@@ -62,7 +79,7 @@ public class ByteBufferInlineFragments {
                         // thread finished, collect result and re-fill buffer.
                         mergeAndStoreResults((ListOfCities) runningThreads[i].get(), overallResults);
 
-                        doWeStillHaveData = processNextBlock(buffers, i, blockNumber, runningThreads, channel);
+                        doWeStillHaveData = processNextBlock(buffers, tables, i, blockNumber, runningThreads, readAhead);
                         blockNumber++;
                         if (!doWeStillHaveData) {
                             break;
@@ -73,111 +90,260 @@ public class ByteBufferInlineFragments {
 
             waitForThreads(runningThreads, overallResults);
             threadPoolExecutor.close();
+            readAhead.printStats();
 
-            processFragments(overallResults);
-            sortAndDisplay(overallResults);
-        }
-    }
-
-    private static void sortAndDisplay(ListOfCities overallResults) {
-        TreeMap<String, Station> sortedCities = new TreeMap<>();
-        for (Integer hash : overallResults.keySet()) {
-            Station c = overallResults.get(hash);
-            sortedCities.put(
-                    new String(c.name, StandardCharsets.UTF_8),
-                    c);
-        }
-        for (Station city : sortedCities.values()) {
-            System.out.printf("%s=%.1f/%.1f/%.1f\n",
-                    new String(city.name),
-                    city.minT,
-                    city.total / city.measurements,
-                    city.maxT);
+            sortAndDisplay(overallResults, fragments.finish());
         }
     }
 
-    private void processFragments(ListOfCities overallResults) {
-        Set<Integer> allFragments = new HashSet<>(rf.lineStarts.keySet());
-        allFragments.addAll(rf.lineEnds.keySet());
-        System.out.println("Fragments: " + allFragments.size());
-        for (Integer f : allFragments) {
-            String line = rf.getJoinedFragments(f);
-            overallResults.addCity(line);
+    private static void sortAndDisplay(ListOfCities overallResults, Results joined) throws IOException {
+        // this version works in doubles, so convert back to tenths for the shared output
+        Results results = new Results();
+        for (int i = 0; i < overallResults.size; i++) {
+            Station c = overallResults.stations[i];
+            results.add(c.name, c.measurements, Math.round(c.total * 10),
+                    (int) Math.round(c.minT * 10), (int) Math.round(c.maxT * 10));
         }
+        results.merge(joined);
+        ResultWriter.write(results);
     }
 
-    private boolean processNextBlock(ByteBuffer[] buffers, int i, int blockNumber, Future<?>[] runningThreads, FileChannel channel) throws IOException {
-        boolean doWeStillHaveData;
-        // last buffer should have pre-loaded data, swap that into the current slot
-        // and refill the previous one.
-        ByteBuffer b = buffers[threads];
-        buffers[threads] = buffers[i];
+    private boolean processNextBlock(ByteBuffer[] buffers, ListOfCities[] tables, int i, int blockNumber,
+                                     Future<?>[] runningThreads, ReadAhead readAhead) throws IOException, InterruptedException {
+        // hand the finished buffer back to be re-filled and take the next one which has been read
+        readAhead.release(buffers[i]);
+        ByteBuffer b = readAhead.take(blockNumber);
         buffers[i] = b;
-        ProcessData p = new ProcessData(b, blockNumber);
+        ProcessData p = new ProcessData(b, blockNumber, tables[i]);
         runningThreads[i] = threadPoolExecutor.submit(p::process);
-        doWeStillHaveData = loadNextBlock(buffers[threads], channel);
-        return doWeStillHaveData;
+        return blockNumber + 1 < readAhead.blocks;
     }
 
     private void waitForThreads(Future<?>[] runningThreads, ListOfCities overallResults) throws InterruptedException, ExecutionException {
         for (int i = 0; i < threads; i++) {
-            mergeAndStoreResults((ListOfCities) runningThreads[i].get(), overallResults);
+            if (runningThreads[i] != null) {
+                mergeAndStoreResults((ListOfCities) runningThreads[i].get(), overallResults);
+            }
         }
     }
 
 
     private void mergeAndStoreResults(ListOfCities result, ListOfCities overallResults) {
-        if (result.endFragment != null) {
-            rf.addStart(result.blockNumber + 1, result.endFragment);
+        // has to be before the buffer is handed back to the ReadAhead
+        fragments.add(result.blockNumber, result.block, result.startLength, result.endFrom, result.endTo);
+        Events.ResultsMerged event = null;
+        if (Events.ENABLED) {
+            event = new Events.ResultsMerged();
+            event.begin();
         }
-        if (result.startFragment != null) {
-            rf.addEnd(result.blockNumber, result.startFragment);
+        for (int i = 0; i < result.size; i++) {
+            // the table's kept from earlier blocks, so it can have stations which weren't in this one
+            if (result.stations[i].measurements > 0) {
+                overallResults.mergeCity(result.stations[i]);
+            }
         }
-        for (Integer hash : result.keySet()) {
-            overallResults.mergeCity(result.get(hash));
+        if (event != null && event.shouldCommit()) {
+            event.stations = result.size;
+            event.commit();
         }
     }
 
-    private void launchInitialProcesses(ByteBuffer[] buffers, FileChannel channel, Future<?>[] whatsRunning) throws IOException {
-        for (int i = 0; i < threads; i++) {
-            ByteBuffer b = ByteBuffer.allocate(BUFFERSIZE);
+    // start a thread on each of the first blocks, fewer if the file is small.
+    // returns the number of the next block.
+    private int launchInitialProcesses(ByteBuffer[] buffers, ListOfCities[] tables, ReadAhead readAhead,
+                                       Future<?>[] whatsRunning) throws IOException, InterruptedException {
+        int i = 0;
+        while (i < threads && i < readAhead.blocks) {
+            ByteBuffer b = readAhead.take(i);
             buffers[i] = b;
-            loadNextBlock(b, channel);
-            ProcessData p = new ProcessData(b, i);
+            ProcessData p = new ProcessData(b, i, tables[i]);
             whatsRunning[i] = threadPoolExecutor.submit(p::process);
+            i++;
         }
+        return i;
     }
 
-    boolean loadNextBlock(ByteBuffer buffer, FileChannel channel) throws IOException {
-        if (channel.read(buffer) == -1) {
-            return false;
+    /**
+     * Reads the blocks of the file ahead of the threads which process them, up to a configurable
+     * number of blocks in advance. The reads are done by their own threads using positional
+     * reads, so a slow read doesn't hold up handing out the blocks which are already loaded, and
+     * with more than one reader there can be several reads waiting on the disk at once, which
+     * helps on network volumes where every read has a lot of latency.
+     * <p>
+     * Block n always starts at n * BUFFERSIZE, so the readers can each take the next block
+     * number and read it without waiting for each other. The buffers are recycled, there are
+     * enough for every processing thread plus the read-ahead.
+     * <p>
+     * Keeps track of how long we waited for each block to be read, and how long the readers
+     * waited for a buffer to read into, to see if the time goes on reading or processing.
+     */
+    static class ReadAhead implements AutoCloseable {
+        // put in place of a block which couldn't be read
+        private static final ByteBuffer FAILED = ByteBuffer.allocate(0);
+
+        final long blocks;
+        private final FileChannel channel;
+        private final AtomicLong nextToRead = new AtomicLong();
+        private final BlockingQueue<ByteBuffer> free = new LinkedBlockingQueue<>();
+        private final BlockingQueue<ByteBuffer>[] ready;
+        private final Thread[] readers;
+        private volatile IOException failure;
+
+        // nanoseconds spent waiting for each block to be read
+        private final long[] dataWaits;
+        private final AtomicLong bufferWait = new AtomicLong();
+
+        // there's no making an array of BlockingQueue<ByteBuffer> without going through a raw one
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ReadAhead(FileChannel channel, int depth, int inUse, int readerThreads) throws IOException {
+            this.channel = channel;
+            this.blocks = (channel.size() + BUFFERSIZE - 1) / BUFFERSIZE;
+            this.dataWaits = new long[Math.toIntExact(blocks)];
+            for (int i = 0; i < depth + inUse; i++) {
+                free.add(ByteBuffer.allocate(BUFFERSIZE));
+            }
+            // enough slots that blocks being read never have to wait for a slot to be emptied
+            ready = new BlockingQueue[depth + inUse];
+            for (int i = 0; i < ready.length; i++) {
+                ready[i] = new ArrayBlockingQueue<>(1);
+            }
+            readers = new Thread[readerThreads];
+            for (int i = 0; i < readerThreads; i++) {
+                readers[i] = new Thread(this::readBlocks, "read-ahead-" + i);
+                readers[i].setDaemon(true);
+                readers[i].start();
+            }
+        }
+
+        private void readBlocks() {
+            while (true) {
+                try {
+                    // Get the buffer before taking a block number. The other way round, one reader
+                    // can hold the number of the block everyone is waiting for while the others use
+                    // up all the buffers on later blocks, and nothing moves again.
+                    long waitStart = System.nanoTime();
+                    ByteBuffer b = free.take();
+                    bufferWait.addAndGet(System.nanoTime() - waitStart);
+                    long block = nextToRead.getAndIncrement();
+                    if (block >= blocks) {
+                        free.add(b);
+                        return;
+                    }
+                    BlockingQueue<ByteBuffer> slot = ready[(int) (block % ready.length)];
+                    try {
+                        Events.ChunkRead readEvent = null;
+                        if (Events.ENABLED) {
+                            readEvent = new Events.ChunkRead();
+                            readEvent.begin();
+                        }
+                        b.clear();
+                        long position = block * BUFFERSIZE;
+                        while (b.hasRemaining()) {
+                            if (channel.read(b, position + b.position()) <= 0) {
+                                break;
+                            }
+                        }
+                        b.flip();
+                        if (readEvent != null && readEvent.shouldCommit()) {
+                            readEvent.offset = position;
+                            readEvent.bytes = b.limit();
+                            readEvent.commit();
+                        }
+                    } catch (IOException e) {
+                        failure = e;
+                        b = FAILED;
+                    }
+                    slot.put(b);
+                } catch (InterruptedException e) {
+                    return; // closed
+                }
+            }
+        }
+
+        ByteBuffer take(int blockNumber) throws IOException, InterruptedException {
+            long waitStart = System.nanoTime();
+            ByteBuffer b = ready[blockNumber % ready.length].take();
+            dataWaits[blockNumber] = System.nanoTime() - waitStart;
+            if (b == FAILED) {
+                throw failure;
+            }
+            return b;
+        }
+
+        void release(ByteBuffer b) {
+            free.add(b);
+        }
+
+        void printStats() {
+            long total = 0;
+            long longest = 0;
+            int waited = 0;
+            for (long w : dataWaits) {
+                total += w;
+                longest = Math.max(longest, w);
+                // anything under 50us was ready and waiting
+                if (w > 50_000) {
+                    waited++;
+                }
+            }
+            // stderr, so it doesn't end up in the middle of the results
+            System.err.printf("Read-ahead: waited %d ms for data, %d of %d blocks weren't ready, longest wait %.1f ms. " +
+                            "Readers waited %d ms for an empty buffer\n",
+                    total / 1_000_000, waited, blocks, longest / 1e6, bufferWait.get() / 1_000_000);
+            String log = System.getProperty("readahead.log");
+            if (log != null) {
+                try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(log)))) {
+                    out.println("block,wait_us");
+                    for (int i = 0; i < dataWaits.length; i++) {
+                        out.println(i + "," + dataWaits[i] / 1000);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Couldn't write " + log + ": " + e);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            for (Thread t : readers) {
+                t.interrupt();
+            }
         }
-        buffer.flip();
-        return true;
     }
 
     static class ProcessData {
 
         ByteBuffer buffer;
         int blockNumber;
+        ListOfCities results;
 
-        public ProcessData(ByteBuffer buffer, int blockNumber) {
+        public ProcessData(ByteBuffer buffer, int blockNumber, ListOfCities results) {
             this.buffer = buffer;
             this.blockNumber = blockNumber;
+            this.results = results;
         }
 
         ListOfCities process() {
-            ListOfCities results = new ListOfCities(blockNumber);
-            // Read up to the first newline and store that as an 'end of line' fragment
-            AppendableByteArray sb = new AppendableByteArray();
-            int start = readUpToLineEnd(sb);
-            results.startFragment = sb;
+            Events.ChunkParsed parseEvent = null;
+            if (Events.ENABLED) {
+                parseEvent = new Events.ChunkParsed();
+                parseEvent.begin();
+            }
+            int rows = 0;
+            results.reset(blockNumber);
+            // Read up to the first newline, everything before it is an 'end of line' fragment
+            int start = readUpToLineEnd();
+            results.block = buffer.array();
+            results.startLength = start - 1;
 
             // Main loop through block, read until we get to the delimiter and the newline
-            AppendableByteArray name = new AppendableByteArray();
-            AppendableByteArray value = new AppendableByteArray();
+            AppendableByteArray name = results.name;
+            AppendableByteArray value = results.value;
+            name.rewind();
+            value.rewind();
             boolean readingName = true;
             int size = buffer.limit();
+            int rowStart = start;
             for (int i = start; i < size; i++) {
                 byte b = buffer.get();
                 if (b == ';') {
@@ -185,33 +351,33 @@ public class ByteBufferInlineFragments {
                 } else if (b != '\n') {
                     (readingName ? name : value).addByte(b);
                 } else {
-                    results.addCity(name.getBuffer(), fastParseDouble(value.buffer, value.length));
+                    results.addCity(name.buffer, name.length, fastParseDouble(value.buffer, value.length));
+                    rows++;
                     name.rewind();
                     value.rewind();
                     readingName = true;
+                    rowStart = i + 1;
                 }
             }
-            // If we get to the end and there is still data left, add it to the fragments as the start of the next block
-            if (name.length > 0) {
-                AppendableByteArray fragment = new AppendableByteArray();
-                fragment.appendArray(name);
-                if (!readingName) {
-                    fragment.addByte((byte) ';');
-                    if (value.length > 0) {
-                        fragment.appendArray(value);
-                    }
-                }
-                results.endFragment = fragment;
+            // If we get to the end and there is still data left, it's the start of a row in the next block
+            results.endFrom = rowStart;
+            results.endTo = size;
+            if (parseEvent != null && parseEvent.shouldCommit()) {
+                parseEvent.offset = (long) blockNumber * BUFFERSIZE;
+                parseEvent.bytes = size;
+                parseEvent.rows = rows;
+                parseEvent.collisions = results.collisions;
+                parseEvent.longestProbe = results.longestProbe;
+                parseEvent.commit();
             }
             buffer.clear();
             return results;
         }
 
-        private int readUpToLineEnd(AppendableByteArray sb) {
+        private int readUpToLineEnd() {
             byte b = buffer.get();
             int start = 1;
             while (b != '\n') {
-                sb.addByte(b);
                 b = buffer.get();
                 start++;
             }
@@ -242,48 +408,38 @@ public class ByteBufferInlineFragments {
         }
     }
 
-    static class RowFragments {
-        // Holds line fragments at the start and end of each block
-        Map<Integer, AppendableByteArray> lineStarts = new HashMap<>();
-        Map<Integer, AppendableByteArray> lineEnds = new HashMap<>();
-
-        // spare characters at the end of a block will be the start of a row in the next block.
-        // Called with 'block+1' so this is where it needs to be
-        void addStart(Integer blockNumber, AppendableByteArray s) {
-            lineStarts.put(blockNumber, s);
-        }
-
-        // characters before the first newline may be part of the previous block
-        void addEnd(Integer blockNumber, AppendableByteArray s) {
-            lineEnds.put(blockNumber, s);
-        }
-
-        String getJoinedFragments(int hashCode) {
-            AppendableByteArray start = lineStarts.get(hashCode);
-            AppendableByteArray end = lineEnds.get(hashCode);
-            if (start == null) {
-                return end.asString();
-            } else if (end == null) {
-                return start.asString();
-            } else {
-                start.appendArray(end);
-                return start.asString();
-            }
-        }
-    }
-
     static class Station {
         public final byte[] name;
         public int measurements = 1;
         public double total;
-        public double maxT = Double.MIN_VALUE;
-        public double minT = Double.MAX_VALUE;
-        public final int hashCode;
+        public double maxT;
+        public double minT;
+        public final long hashCode;
 
-        Station(byte[] name, int hash, double temp) {
+        Station(byte[] name, long hash, double temp) {
             this.name = name;
             this.hashCode = hash;
             this.total = temp;
+            this.maxT = temp;
+            this.minT = temp;
+        }
+
+        // for the overall results, as the threads' tables get used again
+        Station(Station other) {
+            this.name = other.name;
+            this.hashCode = other.hashCode;
+            this.measurements = other.measurements;
+            this.total = other.total;
+            this.maxT = other.maxT;
+            this.minT = other.minT;
+        }
+
+        // ready for the next block
+        void reset() {
+            measurements = 0;
+            total = 0;
+            maxT = Double.NEGATIVE_INFINITY;
+            minT = Double.POSITIVE_INFINITY;
         }
 
         public void add_measurement(double temp) {
@@ -309,48 +465,107 @@ public class ByteBufferInlineFragments {
         }
     }
 
-    // class which takes City entries and stores/updates them
-    static class ListOfCities extends HashMap<Integer, Station> {
-
-        // startFragment is at the start of the block (or the end of the previous block)
-        public AppendableByteArray startFragment;
-        public AppendableByteArray endFragment;
+    // class which takes City entries and stores/updates them. Open addressing on the name's hash
+    // rather than a HashMap, so looking up a station doesn't box the hash or need the name copied
+    static class ListOfCities {
+        // plenty of room for the 10,000 stations the rules allow, and it doubles whenever it's
+        // half full for files which don't stick to them
+        private Station[] records = new Station[1 << 15];
+        // the stations in the order they were added, to go through them without the empty slots
+        Station[] stations = new Station[512];
+        int size;
+
+        // the block, which the start fragment is the first startLength bytes of (the end of the
+        // previous block's last row) and the end fragment goes from endFrom to endTo
+        public byte[] block;
+        public int startLength;
+        public int endFrom;
+        public int endTo;
         public int blockNumber;
+        // where the thread puts the name and value of each row
+        final AppendableByteArray name = new AppendableByteArray();
+        final AppendableByteArray value = new AppendableByteArray();
+        // lookups which didn't find the station in its first slot, and the furthest past it any
+        // of them went, in this block, for the flight recorder
+        long collisions;
+        int longestProbe;
 
         public ListOfCities(int blockNumber) {
-            super();
             this.blockNumber = blockNumber;
         }
 
-        // Only called at the end on the line fragments - doesn't need to be as optimised
-        void addCity(String line) {
-            String[] bits = line.split(";");
-            addCity(bits[0].getBytes(StandardCharsets.UTF_8), Double.parseDouble(bits[1]));
+        // Empty it for another block, keeping the stations where they are
+        void reset(int blockNumber) {
+            this.blockNumber = blockNumber;
+            collisions = 0;
+            longestProbe = 0;
+            for (int i = 0; i < size; i++) {
+                stations[i].reset();
+            }
         }
 
-        void addCity(byte[] name, double temperature) {
-            // inlined hashcode for tiny speed increase
-            int h = 0;
-            for (byte b : name) {
-                h = 31 * h + b;
+        void addCity(byte[] name, int length, double temperature) {
+            // inlined hashcode for tiny speed increase, see NameHash
+            long h = NameHash.SEED;
+            for (int i = 0; i < length; i++) {
+                h = (h ^ name[i]) * NameHash.PRIME;
             }
-            Station city = this.get(h);
-            if (city != null) {
-                city.add_measurement(temperature);
-            } else {
-                this.put(h, new Station(name, h, temperature));
+            int mask = records.length - 1;
+            int slot = NameHash.spread(h) & mask;
+            Station city;
+            int probe = 0;
+            while ((city = records[slot]) != null) {
+                if (city.hashCode == h && Arrays.equals(city.name, 0, city.name.length, name, 0, length)) {
+                    city.add_measurement(temperature);
+                    return;
+                }
+                slot = (slot + 1) & mask;
+                collisions++;
+                if (++probe > longestProbe) {
+                    longestProbe = probe;
+                }
             }
+            add(slot, new Station(Arrays.copyOf(name, length), h, temperature));
         }
 
         void mergeCity(Station c1) {
             // combine two sets of measurements for a city
-            int h = c1.hashCode;
-            Station c2 = this.get(h);
-            if (c2 != null) {
-                c2.combine_results(c1);
-            } else {
-                this.put(h, c1);
+            long h = c1.hashCode;
+            int mask = records.length - 1;
+            int slot = NameHash.spread(h) & mask;
+            Station c2;
+            while ((c2 = records[slot]) != null) {
+                if (c2.hashCode == h && Arrays.equals(c2.name, c1.name)) {
+                    c2.combine_results(c1);
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            add(slot, new Station(c1));
+        }
+
+        private void add(int slot, Station city) {
+            records[slot] = city;
+            if (size == stations.length) {
+                stations = Arrays.copyOf(stations, size * 2);
+            }
+            stations[size++] = city;
+            if (size * 2 > records.length) {
+                grow();
+            }
+        }
+
+        // Twice the slots, so there's always a gap to stop at. Only happens with a lot of stations.
+        private void grow() {
+            records = new Station[records.length * 2];
+            int mask = records.length - 1;
+            for (int i = 0; i < size; i++) {
+                int slot = NameHash.spread(stations[i].hashCode) & mask;
+                while (records[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                records[slot] = stations[i];
             }
         }
     }
-}
\ No newline at end of file
+}
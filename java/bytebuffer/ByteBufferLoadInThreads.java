@@ -1,5 +1,14 @@
 package bytebuffer;
 
+import common.Events;
+import common.FragmentJoiner;
+import common.NameHash;
+import common.Progress;
+import common.ResultCache;
+import common.ResultWriter;
+import common.Results;
+import common.StationIds;
+
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
@@ -7,16 +16,18 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
-import java.util.Map;
-import java.util.TreeMap;
 import java.util.concurrent.*;
 
 /**
  * Reads the file into a set of ByteBuffers
  * Use byte arrays instead of Strings for the City names.
  * Uses the array-backed map instead of a HashMap
+ * Each station is given a number shared by all the threads (see StationIds), and each thread
+ * keeps its totals in arrays indexed by that number, so merging the threads' results is just
+ * adding up arrays rather than looking every station up again by name.
  * Developed using Java 21. Older versions may need the try-with-resources modifying since
  * ExecutorService may not be autoclosable.
  * <p>
@@ -26,15 +37,27 @@ public class ByteBufferLoadInThreads {
 
 
     private static final String file = "measurements.txt";
-    private static final int BUFFERSIZE = 1024 * 1024;
+    // -Dblock.size changes how much each thread reads at a time, for ScalingBenchmark
+    private static final int BUFFERSIZE = Integer.getInteger("block.size", 1024 * 1024);
 
     private static int NUM_BLOCKS;
 
     public static void main(String[] args) throws Exception {
         long startTime = System.currentTimeMillis();
-        long size = Files.size(Paths.get(file));
-        NUM_BLOCKS = 1 + (int) (size / BUFFERSIZE);
-        new ByteBufferLoadInThreads().go();
+        // if we've already processed this exact file, don't bother reading it again
+        ResultCache cache = ResultCache.fromSystemProperties();
+        Path path = Paths.get(file);
+        Results cached = cache == null ? null : cache.lookup(path);
+        if (cached != null) {
+            sortAndDisplay(cached);
+        } else {
+            long size = Files.size(path);
+            NUM_BLOCKS = Math.toIntExact(1 + size / BUFFERSIZE);
+            Results results = new ByteBufferLoadInThreads().go(size);
+            if (cache != null) {
+                cache.store(path, results);
+            }
+        }
         long endTime = System.currentTimeMillis();
         System.out.printf("Took %.2f s\n", (endTime - startTime) / 1000.0);
     }
@@ -42,15 +65,16 @@ public class ByteBufferLoadInThreads {
     // All the blocks of code which were separate methods have now been inlined.
     // That wasn't to save time of itself but it meant I could move from instance
     // variables to local variables, which are noticeably faster.
-    private void go() throws Exception {
+    private Results go(long size) throws Exception {
         final int threads = Runtime.getRuntime().availableProcessors();
+        Progress progress = new Progress(threads, size).start();
 //        System.out.println("Using " + threads + " cores");
 //        System.out.println("Estimated number of blocks: " + NUM_BLOCKS);
         Future<?>[] runningThreads = new Future<?>[threads];
         ProcessData[] processors = new ProcessData[threads];
 
         for (int i = 0; i < threads; i++) {
-            processors[i] = new ProcessData(ByteBuffer.allocate(BUFFERSIZE), i);
+            processors[i] = new ProcessData(ByteBuffer.allocate(BUFFERSIZE), i, progress);
         }
 
         try (ExecutorService threadPoolExecutor = Executors.newFixedThreadPool(threads)) {
@@ -73,8 +97,7 @@ public class ByteBufferLoadInThreads {
             } // end while - no more data.
 //        System.out.println("blockNumber = " + blockNumber);
 
-            // If we put the first thread results directly into overallResults, we can
-            // remove the 'add' part of the 'add or merge' step in mergeCity()
+            // add everything into the first thread's arrays
             ProcessData overallResults = processors[0];
             if (runningThreads[0] != null) {
                 if ((boolean) runningThreads[0].get()) {
@@ -91,82 +114,37 @@ public class ByteBufferLoadInThreads {
                     }
                 }
                 // Merges a result set into the final ListOfCities.
-                for (Station s : resultsToAdd.records) {
-                    if (s != null) {
-                        overallResults.mergeCity(s);
-                    }
+                Events.ResultsMerged event = null;
+                if (Events.ENABLED) {
+                    event = new Events.ResultsMerged();
+                    event.begin();
+                }
+                overallResults.merge(resultsToAdd);
+                if (event != null && event.shouldCommit()) {
+                    event.stations = resultsToAdd.counts.length;
+                    event.commit();
                 }
                 processors[i].close();
             }
 
+            progress.stop();
             // add the fragments into the results now.
-            for (int f = 0; f < NUM_BLOCKS; f++) {
-                byte[] line = RowFragments.getJoinedFragments(f);
-                if (line != null) {
-                    overallResults.addCity(line);
-                }
-            }
-            sortAndDisplay(overallResults);
+            Results results = overallResults.toResults();
+            results.merge(RowFragments.fragments.finish());
+            sortAndDisplay(results);
+            return results;
         } // end of try with resources block
     }
 
-    private static void sortAndDisplay(ProcessData overallResults) {
-        TreeMap<String, Station> sortedCities = new TreeMap<>();
-        for (Station s : overallResults.records) {
-            if (s != null) {
-                sortedCities.put(new String(s.name, StandardCharsets.UTF_8), s);
-            }
-        }
-
-        Station city;
-        int count = 0;
-        for (Map.Entry<String, Station> e : sortedCities.entrySet()) {
-            city = e.getValue();
-            AppendableByteArray output = new AppendableByteArray();
-            output.addDelimiter();
-            output.appendArray(numberToString(city.minT));
-            output.appendArray(String.format("/%.1f/", city.total / (city.measurements * 10.0)).getBytes(StandardCharsets.UTF_8));
-
-            output.appendArray(numberToString(city.maxT));
-            System.out.print(e.getKey());
-            System.out.println(output.asString());
-            count += city.measurements;
-        }
-        System.out.println("length = " + sortedCities.size());
+    private static void sortAndDisplay(Results results) throws IOException {
+        ResultWriter.write(results);
+        long count = results.totalCount();
+        System.out.println("length = " + results.size());
         System.out.println("count = " + count);
-        assert (sortedCities.size() == 413);
+        assert (results.size() == 413);
         assert count == 1_000_000_000;
     }
 
-    // Only used in the final display
-    static byte[] numberToString(int number) {
-        int length;
-        byte[] bytes;
-        if (number < 0) { // eg. -9 (-0.9), -99 (-9.9), -999 (-99.9)
-            number = -number;  // negative
-            if (number >= 100) {
-                length = 5;
-                bytes = new byte[5]; // 3 digits, 5 characters
-            } else {
-                length = 4;
-                bytes = new byte[4];
-            }
-            bytes[0] = (byte) '-';
-        } else { // positive
-            length = number >= 100 ? 4 : 3;
-            bytes = new byte[length];
-        }
-        bytes[length - 1] = (byte) ('0' + (number % 10));
-        number /= 10;
-        bytes[length - 2] = '.';
-        bytes[length - 3] = (byte) ('0' + (number % 10));
-        if (number >= 10) {
-            number /= 10;
-            bytes[length - 4] = (byte) ('0' + (number % 10));
-        }
-        return bytes;
-    }
-
     // one instance per thread, reused.
     static class ProcessData {
 
@@ -175,21 +153,43 @@ public class ByteBufferLoadInThreads {
         private final FileChannel channel;
 
         int blockNumber;
-
-        // larger values have fewer collisions but the increased array size takes longer to traverse
-        private static final int HASH_SPACE = 8192;
-        private static final int COLLISION = 2; // number of extra spaces needed for hash collisions
-        // decreasing the hash array size below 8192 means this needs increasing to at least 6
-        private final Station[] records = new Station[HASH_SPACE + COLLISION];
-
-        // startFragment is at the start of the block (or the end of the previous block)
-        private byte[] startFragment;
-        private byte[] endFragment;
-
-
-        public ProcessData(ByteBuffer buffer, int blockNumber) throws FileNotFoundException {
+        // which thread this is, for the progress counters
+        private final int worker;
+        private final Progress progress;
+
+        // shared between the threads so they all use the same number for a station
+        private static final StationIds stationIds = new StationIds();
+
+        // This thread's own map from the name hash to the station's number, so it only asks
+        // stationIds the first time it sees each station. Open addressing, at most half full.
+        private long[] hashes = new long[8192];
+        private int[] ids = new int[8192]; // id + 1, 0 for an empty slot
+        private int used;
+
+        // the totals for each station, indexed by its number
+        private long[] counts = new long[0];
+        private long[] totals = new long[0];
+        private int[] mins = new int[0];
+        private int[] maxs = new int[0];
+
+        // The fragments are left in the buffer for RowFragments to copy: the start one is
+        // everything before startLength (the end of the previous block's last row) and the end
+        // one is from endFrom to endTo.
+        private int startLength;
+        private int endFrom;
+        private int endTo;
+
+        // lookups which didn't find the station in its first slot, for the flight recorder
+        private long collisions;
+        // the furthest past its first slot a lookup went in this block, also for the flight recorder
+        private int longestProbe;
+
+
+        public ProcessData(ByteBuffer buffer, int worker, Progress progress) throws FileNotFoundException {
             this.buffer = buffer;
-            this.blockNumber = blockNumber;
+            this.blockNumber = worker;
+            this.worker = worker;
+            this.progress = progress;
             this.raFile = new RandomAccessFile(file, "r");
             this.channel = raFile.getChannel();
         }
@@ -199,16 +199,46 @@ public class ByteBufferLoadInThreads {
             raFile.close();
         }
 
+        // Copy the stations into the shared form used for the output and the result cache.
+        private Results toResults() {
+            Results results = new Results();
+            for (int id = 0; id < counts.length; id++) {
+                if (counts[id] > 0) {
+                    results.add(stationIds.name(id), counts[id], totals[id], mins[id], maxs[id]);
+                }
+            }
+            return results;
+        }
+
         private boolean process() throws IOException {
+            Events.ChunkRead readEvent = null;
+            if (Events.ENABLED) {
+                readEvent = new Events.ChunkRead();
+                readEvent.begin();
+            }
             channel.position((long) blockNumber * BUFFERSIZE);
             if (channel.read(buffer) == -1) {
-                startFragment = null;
-                endFragment = null;
+                startLength = 0;
+                endFrom = 0;
+                endTo = 0;
                 return false;
             }
             buffer.flip();
             byte[] array = buffer.array();
             int limit = buffer.limit();
+            if (readEvent != null && readEvent.shouldCommit()) {
+                readEvent.offset = (long) blockNumber * BUFFERSIZE;
+                readEvent.bytes = limit;
+                readEvent.commit();
+            }
+            Events.ChunkParsed parseEvent = null;
+            if (Events.ENABLED) {
+                parseEvent = new Events.ChunkParsed();
+                parseEvent.begin();
+            }
+            long collisionsBefore = collisions;
+            longestProbe = 0;
+            int rows = 0;
 
             // Read up to the first newline and add it as a fragment (potential end of previous block)
             int bufferPosition = 0;
@@ -216,13 +246,13 @@ public class ByteBufferLoadInThreads {
             while (b != '\n') {
                 b = array[++bufferPosition];
             }
-            startFragment = Arrays.copyOfRange(array, 0, bufferPosition);
+            startLength = bufferPosition;
 
             // Main loop through block
             int nameStart = ++bufferPosition;
             int nameEnd = bufferPosition;
             boolean readingName = true;
-            int h = 0;
+            long h = NameHash.SEED;
             // inlining the decimal conversion
             int sign = 1;
             int temperature = 0;
@@ -234,7 +264,7 @@ public class ByteBufferLoadInThreads {
                     readingName = false;
                     nameEnd = bufferPosition - 1;
                 } else if (readingName) {
-                    h = 31 * h + b; // calculate the hash of the name
+                    h = (h ^ b) * NameHash.PRIME; // calculate the hash of the name, see NameHash
                 } else if (b != '\n') {
                     if (b == '-') {
                         sign = -1;
@@ -243,221 +273,142 @@ public class ByteBufferLoadInThreads {
                     }
                 } else {    // end of line
                     addOrMerge(h, array, nameStart, nameEnd, sign * temperature);
+                    rows++;
                     temperature = 0;
                     sign = 1;
                     nameStart = bufferPosition;
                     nameEnd = bufferPosition;
                     readingName = true;
-                    h = 0;
+                    h = NameHash.SEED;
                 }
             } // end loop
             // If we get to the end and there is still data left, add it to the fragments as the start of the next block
-            if (nameStart < limit) {
-                endFragment = Arrays.copyOfRange(array, nameStart, limit);
-            } else {
-                endFragment = null;
+            endFrom = nameStart;
+            endTo = limit;
+            if (parseEvent != null && parseEvent.shouldCommit()) {
+                parseEvent.offset = (long) blockNumber * BUFFERSIZE;
+                parseEvent.bytes = limit;
+                parseEvent.rows = rows;
+                parseEvent.collisions = collisions - collisionsBefore;
+                parseEvent.longestProbe = longestProbe;
+                parseEvent.commit();
             }
+            progress.add(worker, limit, rows);
             buffer.clear();
             return true;
         }
 
 
-        // Only called at the end on the line fragments.
-        private void addCity(byte[] array) {
-            int tempStart = 0;
-            int tempEnd = 0;
-            // Split the line into name and temperature and calculate the hash on the name
-            int hashCode = 0;
-            for (int i = 0; i < array.length; i++) {
-                byte b = array[i];
-                if (b == ';') {
-                    tempStart = i + 1;
-                    tempEnd = array.length;
-                    break;
-                } else {
-                    hashCode = 31 * hashCode + b;
-                }
-            }
 
-            /*
-             * Parse a byte array into a number without having to go through a String first
-             * All the numbers are [-]d{1,2}.d so can take shortcuts with location of decimal place etc.
-             * Returns 10* the actual number
-             */
-            int temp;
-            if (array[tempStart] == '-') {
-                if (tempEnd - tempStart == 4) {
-                    temp = -array[tempStart + 1] * 10 - array[tempStart + 3] + 528;
-                } else {
-                    temp = -array[tempStart + 1] * 100 - array[tempStart + 2] * 10 - array[tempStart + 4] + 5328;
-                }
-            } else {
-                if (tempEnd - tempStart == 3) {
-                    temp = array[tempStart] * 10 + array[tempStart + 2] - 528;
-                } else {
-                    temp = array[tempStart] * 100 + array[tempStart + 1] * 10 + array[tempStart + 3] - 5328;
+
+        // Called during the main processing loop
+        private void addOrMerge(long nameHash, byte[] buffer, int startIndex, int endIndex, int temperature) {
+            long[] h = hashes;
+            int[] i = ids;
+            int mask = h.length - 1;
+            int key = NameHash.spread(nameHash) & mask;
+            int id;
+            int probe = 0;
+            // Search forwards look for the entry or a gap
+            while ((id = i[key]) != 0 && h[key] != nameHash) {
+                key = (key + 1) & mask;
+                collisions++;
+                if (++probe > longestProbe) {
+                    longestProbe = probe;
                 }
             }
-
-            // assume we have already seen all the station codes during the block.
-            // merge with an existing station, don't try to add a new one.
-            int hash = hashCode & (HASH_SPACE - 1);
-            Station entry = records[hash];
-            if (entry.hash == hashCode) {
-                entry.add_measurement(temp);
-                return;
+            if (id == 0) {
+                id = newStation(key, nameHash, buffer, startIndex, endIndex);
+            } else {
+                id--;
             }
-            entry = records[++hash];
-            if (entry.hash == hashCode) {
-                entry.add_measurement(temp);
-                return;
+            counts[id]++;
+            totals[id] += temperature;
+            if (temperature < mins[id]) {
+                mins[id] = temperature;
             }
-            entry = records[++hash];
-            if (entry.hash == hashCode) {
-                entry.add_measurement(temp);
-                return;
+            if (temperature > maxs[id]) {
+                maxs[id] = temperature;
             }
-            throw new RuntimeException("Hash code not present in array");
         }
 
-        // Called during the main processing loop
-        private void addOrMerge(int nameHash, byte[] buffer, int startIndex, int endIndex, int temperature) {
-            int key = nameHash & (HASH_SPACE - 1);
-            // Search forwards look for the entry or a gap
-            Station[] r = records;
-            Station entry = r[key];
-            if (entry == null) {
-                byte[] nameArray = Arrays.copyOfRange(buffer, startIndex, endIndex);
-                r[key] = new Station(nameArray, nameHash, temperature);
-                return;
+        // The first time this thread has seen a station, get its number and make room for it.
+        private int newStation(int key, long nameHash, byte[] buffer, int startIndex, int endIndex) {
+            int id = stationIds.intern(nameHash, buffer, startIndex, endIndex);
+            hashes[key] = nameHash;
+            ids[key] = id + 1;
+            if (++used * 2 > ids.length) {
+                growMap();
             }
-            if (entry.hash == nameHash) {
-                entry.add_measurement(temperature);
-                return;
+            if (id >= counts.length) {
+                growTotals(Math.max(id + 1, counts.length * 2));
             }
+            return id;
+        }
 
-            entry = r[++key];
-            if (entry == null) {
-                byte[] nameArray = Arrays.copyOfRange(buffer, startIndex, endIndex);
-                r[key] = new Station(nameArray, nameHash, temperature);
-                return;
+        private void growMap() {
+            long[] oldHashes = hashes;
+            int[] oldIds = ids;
+            hashes = new long[oldHashes.length * 2];
+            ids = new int[oldIds.length * 2];
+            int mask = ids.length - 1;
+            for (int j = 0; j < oldIds.length; j++) {
+                if (oldIds[j] != 0) {
+                    int key = NameHash.spread(oldHashes[j]) & mask;
+                    while (ids[key] != 0) {
+                        key = (key + 1) & mask;
+                    }
+                    hashes[key] = oldHashes[j];
+                    ids[key] = oldIds[j];
+                }
             }
+        }
 
-            if (entry.hash == nameHash) {
-                entry.add_measurement(temperature);
-                return;
-            }
+        private void growTotals(int size) {
+            int old = counts.length;
+            counts = Arrays.copyOf(counts, size);
+            totals = Arrays.copyOf(totals, size);
+            mins = Arrays.copyOf(mins, size);
+            maxs = Arrays.copyOf(maxs, size);
+            Arrays.fill(mins, old, size, Integer.MAX_VALUE);
+            Arrays.fill(maxs, old, size, Integer.MIN_VALUE);
+        }
 
-            entry = r[++key];
-            if (entry == null) {
-                byte[] nameArray = Arrays.copyOfRange(buffer, startIndex, endIndex);
-                r[key] = new Station(nameArray, nameHash, temperature);
-                return;
+        // Only called during the final data combining. Every thread uses the same numbers so
+        // this is just adding up arrays, which the JIT can vectorise.
+        private void merge(ProcessData other) {
+            if (other.counts.length > counts.length) {
+                growTotals(other.counts.length);
             }
-
-            if (entry.hash == nameHash) {
-                entry.add_measurement(temperature);
-                return;
+            long[] c = counts, oc = other.counts;
+            long[] t = totals, ot = other.totals;
+            int[] mn = mins, omn = other.mins;
+            int[] mx = maxs, omx = other.maxs;
+            int n = oc.length;
+            for (int id = 0; id < n; id++) {
+                c[id] += oc[id];
             }
-            // don't fail silently, fail kicking and screaming if we get too many hash collisions.
-            throw new RuntimeException("Map Collision Error (merge)");
-        }
-
-
-        // Only called during the final data combining.
-        private void mergeCity(Station city) {
-            int h = city.hash;
-            int hash = h & (HASH_SPACE - 1);
-            Station[] r = records;
-            Station entry = r[hash];
-            // Search forward looking for the city, merge if we find it.
-            if (entry.hash == h) {
-                entry.combine_results(city);
-                return;
+            for (int id = 0; id < n; id++) {
+                t[id] += ot[id];
             }
-            entry = r[++hash];
-            if (entry.hash == h) {
-                entry.combine_results(city);
-                return;
+            for (int id = 0; id < n; id++) {
+                mn[id] = Math.min(mn[id], omn[id]);
             }
-            entry = r[++hash];
-            if (entry.hash == h) {
-                entry.combine_results(city);
-                return;
+            for (int id = 0; id < n; id++) {
+                mx[id] = Math.max(mx[id], omx[id]);
             }
-            throw new RuntimeException("Map Collision Error (merge/put)");
         }
     }
 
     static private class RowFragments {
-        static byte[][] lineEnds = new byte[NUM_BLOCKS][];
-        static byte[][] lineStarts = new byte[NUM_BLOCKS][];
-
-        private static byte[] getJoinedFragments(int number) {
-            // join the start and end fragments together
-            byte[] start = lineStarts[number];
-            byte[] end = lineEnds[number];
-            if (start == null && end == null) {
-                return null;
-            } else if (start == null) {
-                return end;
-            } else if (end == null) {
-                return start;
-            } else {
-                byte[] bufferToBuild = new byte[start.length + end.length];
-                System.arraycopy(start, 0, bufferToBuild, 0, start.length);
-                System.arraycopy(end, 0, bufferToBuild, start.length, end.length);
-                return bufferToBuild;
-            }
-        }
+        // rows are joined up as soon as both blocks either side have been processed,
+        // so only the blocks in flight hold on to their fragments.
+        static final FragmentJoiner fragments = new FragmentJoiner();
 
         // spare characters at the end of a block will be the start of a row in the next block.
         private static void storeFragments(ProcessData resultToAdd) {
-            if (resultToAdd.endFragment != null) {
-                lineStarts[resultToAdd.blockNumber + 1] = resultToAdd.endFragment;
-            }
-            if (resultToAdd.startFragment != null) {
-                lineEnds[resultToAdd.blockNumber] = resultToAdd.startFragment;
-            }
-        }
-    }
-
-    private static class Station {
-        public final byte[] name;
-        public int measurements;
-        public int total;
-        public int maxT;
-        public int minT;
-        public final int hash;
-
-        private Station(byte[] name, int hash, int temp) {
-            this.name = name;
-            this.hash = hash;
-            this.total = temp;
-            this.measurements = 1;
-            this.minT = temp;
-            this.maxT = temp;
-        }
-
-        private void add_measurement(int temp) {
-            total += temp;
-            measurements++;
-            if (temp > maxT) {
-                maxT = temp;
-            } else if (temp < minT) {
-                minT = temp;
-            }
-        }
-
-        private void combine_results(Station city) {
-            measurements += city.measurements;
-            total += city.total;
-            if (city.maxT > maxT) {
-                maxT = city.maxT;
-            }
-            if (city.minT < minT) {
-                minT = city.minT;
-            }
+            fragments.add(resultToAdd.blockNumber, resultToAdd.buffer.array(), resultToAdd.startLength,
+                    resultToAdd.endFrom, resultToAdd.endTo);
         }
     }
 
@@ -505,10 +456,6 @@ class AppendableByteArray {
         return new String(buffer, 0, length, StandardCharsets.UTF_8);
     }
 
-    public void addDelimiter() {
-        buffer[length++] = '=';
-    }
-
     public void appendArray(byte[] bytes) {
         System.arraycopy(bytes, 0, buffer, length, bytes.length);
         length += bytes.length;
@@ -1,5 +1,10 @@
 package bytebuffer;
 
+import common.Events;
+import common.NameHash;
+import common.ResultWriter;
+import common.Results;
+
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
@@ -75,24 +80,22 @@ public class CalculateByteBufferCharArray {
         }
     }
 
-    private static void sortAndDisplay(ListOfCities overallResults) {
-        TreeMap<String, Station> sortedCities = new TreeMap<>();
-        for (Integer hash : overallResults.keySet()) {
-            Station c = overallResults.get(hash);
-            sortedCities.put(
-                    new String(c.name, StandardCharsets.UTF_8),
-                    c);
-        }
-        for (Station city : sortedCities.values()) {
-            System.out.printf("%s=%.1f/%.1f/%.1f\n",
-                    new String(city.name),
-                    city.minT,
-                    city.total / city.measurements,
-                    city.maxT);
+    private static void sortAndDisplay(ListOfCities overallResults) throws IOException {
+        // this version works in doubles, so convert back to tenths for the shared output
+        Results results = new Results();
+        for (Station c : overallResults.values()) {
+            results.add(c.name, c.measurements, Math.round(c.total * 10),
+                    (int) Math.round(c.minT * 10), (int) Math.round(c.maxT * 10));
         }
+        ResultWriter.write(results);
     }
 
     private void processFragments(ListOfCities overallResults) {
+        Events.FragmentsJoined event = null;
+        if (Events.ENABLED) {
+            event = new Events.FragmentsJoined();
+            event.begin();
+        }
         Set<Integer> allFragments = new HashSet<>(rf.lineStarts.keySet());
         allFragments.addAll(rf.lineEnds.keySet());
         System.out.println("Fragments: " + allFragments.size());
@@ -100,6 +103,10 @@ public class CalculateByteBufferCharArray {
             String line = rf.getJoinedFragments(f);
             overallResults.addCity(line);
         }
+        if (event != null && event.shouldCommit()) {
+            event.rows = allFragments.size();
+            event.commit();
+        }
     }
 
     private boolean processNextBlock(ByteBuffer[] buffers, int i, int blockNumber, Future<?>[] runningThreads, FileChannel channel) throws IOException {
@@ -123,9 +130,18 @@ public class CalculateByteBufferCharArray {
 
 
     private void mergeAndStoreResults(ListOfCities result, ListOfCities overallResults) {
-        for (Integer hash : result.keySet()) {
+        Events.ResultsMerged event = null;
+        if (Events.ENABLED) {
+            event = new Events.ResultsMerged();
+            event.begin();
+        }
+        for (Long hash : result.keySet()) {
             overallResults.mergeCity(result.get(hash));
         }
+        if (event != null && event.shouldCommit()) {
+            event.stations = result.size();
+            event.commit();
+        }
     }
 
     private void launchInitialProcesses(ByteBuffer[] buffers, FileChannel channel, Future<?>[] whatsRunning) throws IOException {
@@ -139,10 +155,21 @@ public class CalculateByteBufferCharArray {
     }
 
     boolean loadNextBlock(ByteBuffer buffer, FileChannel channel) throws IOException {
+        Events.ChunkRead readEvent = null;
+        if (Events.ENABLED) {
+            readEvent = new Events.ChunkRead();
+            readEvent.begin();
+        }
+        long position = channel.position();
         if (channel.read(buffer) == -1) {
             return false;
         }
         buffer.flip();
+        if (readEvent != null && readEvent.shouldCommit()) {
+            readEvent.offset = position;
+            readEvent.bytes = buffer.limit();
+            readEvent.commit();
+        }
         return true;
     }
 
@@ -157,6 +184,12 @@ public class CalculateByteBufferCharArray {
         }
 
         ListOfCities process() {
+            Events.ChunkParsed parseEvent = null;
+            if (Events.ENABLED) {
+                parseEvent = new Events.ChunkParsed();
+                parseEvent.begin();
+            }
+            int rows = 0;
             ListOfCities results = new ListOfCities();
             // Read up to the first newline and store that as an 'end of line' fragment
             _AppendableByteArray sb = new _AppendableByteArray();
@@ -176,6 +209,7 @@ public class CalculateByteBufferCharArray {
                     (readingName ? name : value).addByte(b);
                 } else {
                     results.addCity(name.getBuffer(), fastParseDouble(value.buffer, value.length));
+                    rows++;
                     name.rewind();
                     value.rewind();
                     readingName = true;
@@ -193,6 +227,12 @@ public class CalculateByteBufferCharArray {
                 }
                 rf.addStart(blockNumber + 1, fragment);
             }
+            if (parseEvent != null && parseEvent.shouldCommit()) {
+                parseEvent.offset = (long) blockNumber * BUFFERSIZE;
+                parseEvent.bytes = size;
+                parseEvent.rows = rows;
+                parseEvent.commit();
+            }
             buffer.clear();
             return results;
         }
@@ -266,14 +306,16 @@ public class CalculateByteBufferCharArray {
         public final byte[] name;
         public int measurements = 1;
         public double total;
-        public double maxT = Double.MIN_VALUE;
-        public double minT = Double.MAX_VALUE;
-        public final int hashCode;
+        public double maxT;
+        public double minT;
+        public final long hashCode;
 
-        Station(byte[] name, int hash, double temp) {
+        Station(byte[] name, long hash, double temp) {
             this.name = name;
             this.hashCode = hash;
             this.total = temp;
+            this.maxT = temp;
+            this.minT = temp;
         }
 
         public void add_measurement(double temp) {
@@ -301,8 +343,9 @@ public class CalculateByteBufferCharArray {
         }
     }
 
-    // class which takes City entries and stores/updates them
-    static class ListOfCities extends HashMap<Integer, Station> {
+    // class which takes City entries and stores/updates them. They're told apart by their
+    // NameHash, as 31 * h + b gave the same hash to different names and added them together.
+    static class ListOfCities extends HashMap<Long, Station> {
 
         // Only called at the end on the line fragments - doesn't need to be as optimised
         void addCity(String line) {
@@ -311,11 +354,7 @@ public class CalculateByteBufferCharArray {
         }
 
         void addCity(byte[] name, double temperature) {
-            // inlined hashcode for tiny speed increase
-            int h = 0;
-            for (byte b : name) {
-                h = 31 * h + b;
-            }
+            long h = NameHash.hash(name);
             Station city = this.get(h);
             if (city != null) {
                 city.add_measurement(temperature);
@@ -326,7 +365,7 @@ public class CalculateByteBufferCharArray {
 
         void mergeCity(Station c1) {
             // combine two sets of measurements for a city
-            int h = c1.hashCode;
+            long h = c1.hashCode;
             Station c2 = this.get(h);
             if (c2 != null) {
                 c2.combine_results(c1);
@@ -0,0 +1,65 @@
+package bytebuffer;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures what the progress counters cost ByteBufferLoadInThreads, by running it on
+ * measurements.txt in the current directory with -Dprogress.counters=false and =true in turn.
+ * <pre>
+ * java bytebuffer.ProgressOverheadBenchmark [rounds]
+ * </pre>
+ * Each run is a fresh JVM, and the two are alternated so anything else happening on the
+ * machine affects both. Prints the median and fastest times and the differences; on a busy
+ * machine the fastest runs are usually the better comparison.
+ */
+public class ProgressOverheadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        run(false); // warm up the page cache
+        long[] off = new long[rounds];
+        long[] on = new long[rounds];
+        for (int r = 0; r < rounds; r++) {
+            off[r] = run(false);
+            on[r] = run(true);
+            System.out.printf("round %d: without %d ms, with %d ms\n", r + 1, off[r] / 1_000_000, on[r] / 1_000_000);
+        }
+        double medianOff = median(off) / 1e6;
+        double medianOn = median(on) / 1e6;
+        System.out.printf("median without counters %.0f ms, with counters %.0f ms, overhead %.2f%%\n",
+                medianOff, medianOn, 100 * (medianOn - medianOff) / medianOff);
+        double bestOff = Arrays.stream(off).min().getAsLong() / 1e6;
+        double bestOn = Arrays.stream(on).min().getAsLong() / 1e6;
+        System.out.printf("fastest without counters %.0f ms, with counters %.0f ms, overhead %.2f%%\n",
+                bestOff, bestOn, 100 * (bestOn - bestOff) / bestOff);
+    }
+
+    static long run(boolean counters) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("-Dprogress.counters=" + counters);
+        command.add(ByteBufferLoadInThreads.class.getName());
+        long start = System.nanoTime();
+        Process p = new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        if (p.waitFor() != 0) {
+            throw new IOException("ByteBufferLoadInThreads failed");
+        }
+        return System.nanoTime() - start;
+    }
+
+    static double median(long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        int n = sorted.length;
+        return n % 2 == 1 ? sorted[n / 2] : (sorted[n / 2 - 1] + sorted[n / 2]) / 2.0;
+    }
+}
@@ -0,0 +1,289 @@
+package common;
+
+import com.sun.management.ThreadMXBean;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks how much the attempts allocate once they're going, which should be nothing, or close
+ * to it, per row.
+ * <pre>
+ * java -cp 1brc.jar common.AllocationBenchmark [directory for the test files] [size in Mb]
+ * </pre>
+ * Each attempt is run on two files, one a quarter the size of the other, with the bytes each
+ * thread allocates counted by ThreadMXBean. Whatever it allocates getting going (loading
+ * classes, the tables, the buffers) is the same for both, so the difference between them
+ * divided by the difference in size is what it allocates per Gb in the steady state. Anything
+ * over -Dalloc.budget (bytes per Gb, default 1Mb) fails. Then it runs once more on the larger
+ * file with Epsilon, the garbage collector which never collects anything, in a heap of
+ * -Dalloc.heap (default 256m), which only works if it really doesn't need a GC, and checks the
+ * answers are the same as before.
+ * <p>
+ * The files have the usual 413 stations, or -Dalloc.stations, since an attempt whose tables
+ * only grow once there are thousands of stations won't show it with 413.
+ * <p>
+ * It exits with 1 if anything failed, so it can go in a build. -Dalloc.engines (comma
+ * separated) changes which attempts are run, and -Dalloc.timeout (seconds, default 300) stops
+ * any run which gets stuck. By default it's the ones which were made not to allocate, not
+ * CalculateByteBufferCharArray or ParallelStreamGroups, which make objects for every row, or
+ * MappedChunks, which needs --enable-preview. If a run fails its output is kept, and the end of
+ * it is in the error.
+ * <p>
+ * The counting is done in the child JVM, which is this class run as
+ * <pre>
+ * java -cp 1brc.jar common.AllocationBenchmark --run arraymaps.ArrayMapChunks
+ * </pre>
+ * which can also be used by itself. It runs the attempt's main() while another thread reads
+ * every thread's count every few ms, since a thread's count goes when it finishes, and at the
+ * end prints each thread's total to stderr, or to the file given by -Dalloc.report.
+ */
+public class AllocationBenchmark {
+
+    private static final long MB = 1024 * 1024;
+    private static final long GB = 1024 * MB;
+    private static final long BUDGET = Long.getLong("alloc.budget", MB);
+    private static final String HEAP = System.getProperty("alloc.heap", "256m");
+    private static final long TIMEOUT_SECONDS = Long.getLong("alloc.timeout", 300);
+    private static final int STATIONS = Integer.getInteger("alloc.stations", 413);
+    private static final String ENGINES = String.join(",", "arraymaps.ArrayMapChunks",
+            "bytebuffer.ByteBufferLoadInThreads", "bytebuffer.ByteBufferInlineFragments",
+            "arraymaps.ArrayMapQueuedThreads", "unsafebuffer.CalculateUnsafeByteBuffer");
+    // how much of a failed run's output to put in the error
+    private static final int TAIL_LINES = 20;
+    // how often to read the counts when running an attempt
+    private static final long SAMPLE_MS = 5;
+
+    record Allocations(long total, Map<String, Long> threads, Set<String> stations) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--run")) {
+            run(args[1], Arrays.copyOfRange(args, 2, args.length));
+            return;
+        }
+        Path directory = Paths.get(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+        long size = (args.length > 1 ? Long.parseLong(args[1]) : 256) * MB;
+        String engines = System.getProperty("alloc.engines", ENGINES);
+
+        String stations = STATIONS == 413 ? "" : "-" + STATIONS;
+        Path small = input(directory.resolve("alloc-small" + stations), size / 4);
+        Path large = input(directory.resolve("alloc-large" + stations), size);
+        long smallSize = Files.size(small.resolve("measurements.txt"));
+        long largeSize = Files.size(large.resolve("measurements.txt"));
+
+        boolean failed = false;
+        for (String engine : engines.split(",")) {
+            engine = engine.trim();
+            Allocations before = measure(small, engine, List.of());
+            Allocations after = measure(large, engine, List.of());
+            double perGb = (double) (after.total() - before.total()) / (largeSize - smallSize) * GB;
+            boolean withinBudget = perGb <= BUDGET;
+            String epsilon = epsilon(large, engine, after.stations());
+            failed |= !withinBudget || !epsilon.equals("ok");
+
+            System.out.println();
+            System.out.printf(Locale.ROOT, "%s: %s steady state, %s on a %d Mb file, Epsilon in %s: %s%n",
+                    engine, withinBudget ? "ok" : "FAILED", bytes(perGb) + " per Gb", largeSize / MB,
+                    HEAP, epsilon);
+            System.out.printf(Locale.ROOT, "  %-24s %12s %12s %14s%n", "thread", smallSize / MB + " Mb", largeSize / MB + " Mb", "per Gb");
+            for (Map.Entry<String, Long> t : after.threads().entrySet()) {
+                long was = before.threads().getOrDefault(t.getKey(), 0L);
+                System.out.printf(Locale.ROOT, "  %-24s %12s %12s %14s%n", t.getKey(), bytes(was), bytes(t.getValue()),
+                        bytes((double) (t.getValue() - was) / (largeSize - smallSize) * GB));
+            }
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    private static Path input(Path folder, long size) throws IOException {
+        Files.createDirectories(folder);
+        Path file = folder.resolve("measurements.txt");
+        if (!Files.exists(file) || Files.size(file) < size) {
+            System.err.println("Writing " + size / MB + "Mb to " + file);
+            SyntheticInput.write(file, size, STATIONS, 1);
+        }
+        return folder;
+    }
+
+    private static String bytes(double bytes) {
+        return bytes >= 10 * MB ? String.format(Locale.ROOT, "%.0f Mb", bytes / MB)
+                : bytes >= 10 * 1024 ? String.format(Locale.ROOT, "%.0f kb", bytes / 1024)
+                : String.format(Locale.ROOT, "%.0f b", bytes);
+    }
+
+    static Allocations measure(Path folder, String engine, List<String> options) throws IOException, InterruptedException {
+        Path report = Files.createTempFile("alloc", ".txt");
+        Path output = Files.createTempFile("alloc", ".out");
+        boolean keepOutput = false;
+        try {
+            List<String> command = CdsLauncher.javaCommand();
+            command.addAll(options);
+            command.add("-Dalloc.report=" + report);
+            command.add(AllocationBenchmark.class.getName());
+            command.add("--run");
+            command.add(engine);
+            if (!runChild(folder, command, output)) {
+                keepOutput = true;
+                throw new IOException(engine + " failed, the output is in " + output + " and ends with:\n" + tail(output));
+            }
+            long total = 0;
+            Map<String, Long> threads = new HashMap<>();
+            for (String line : Files.readAllLines(report)) {
+                int tab = line.lastIndexOf('\t');
+                long bytes = Long.parseLong(line.substring(tab + 1));
+                if (line.startsWith("total\t")) {
+                    total = bytes;
+                } else {
+                    threads.merge(line.substring(0, tab), bytes, Long::sum);
+                }
+            }
+            return new Allocations(total, threads, stations(output));
+        } finally {
+            Files.deleteIfExists(report);
+            if (!keepOutput) {
+                Files.deleteIfExists(output);
+            }
+        }
+    }
+
+    private static String tail(Path output) throws IOException {
+        List<String> lines = new String(Files.readAllBytes(output), StandardCharsets.UTF_8).lines().toList();
+        return String.join("\n", lines.subList(Math.max(0, lines.size() - TAIL_LINES), lines.size()));
+    }
+
+    // run it again where nothing is ever collected, and check it gets the same answer
+    private static String epsilon(Path folder, String engine, Set<String> expected) throws IOException, InterruptedException {
+        Path output = Files.createTempFile("alloc", ".out");
+        boolean keepOutput = false;
+        try {
+            List<String> command = CdsLauncher.javaCommand();
+            command.add("-XX:+UnlockExperimentalVMOptions");
+            command.add("-XX:+UseEpsilonGC");
+            command.add("-Xmx" + HEAP);
+            command.add(engine);
+            if (!runChild(folder, command, output)) {
+                keepOutput = true;
+                String out = Files.readString(output);
+                return (out.contains("OutOfMemoryError") ? "FAILED, out of memory" : "FAILED") + ", see " + output;
+            }
+            return stations(output).equals(expected) ? "ok" : "FAILED, different answers";
+        } finally {
+            if (!keepOutput) {
+                Files.deleteIfExists(output);
+            }
+        }
+    }
+
+    private static boolean runChild(Path folder, List<String> command, Path output) throws IOException, InterruptedException {
+        Process p = new ProcessBuilder(command)
+                .directory(folder.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(output.toFile())
+                .start();
+        if (!p.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            p.destroyForcibly().waitFor();
+            return false;
+        }
+        return p.exitValue() == 0;
+    }
+
+    private static Set<String> stations(Path output) throws IOException {
+        Set<String> stations = new HashSet<>();
+        for (String line : new String(Files.readAllBytes(output), StandardCharsets.UTF_8).lines().toList()) {
+            // only the station lines, not the timings or anything else the attempts print
+            if (line.contains("=") && line.contains("/")) {
+                stations.add(line);
+            }
+        }
+        return stations;
+    }
+
+    /**
+     * Run an attempt's main() and count what every thread allocates while it runs.
+     */
+    static void run(String engine, String[] args) throws Exception {
+        ThreadMXBean bean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        bean.setThreadAllocatedMemoryEnabled(true);
+        // the last count seen for each thread, by id, and its name
+        Map<Long, Long> counts = new HashMap<>();
+        Map<Long, String> names = new HashMap<>();
+        // what the sampler allocates itself goes up with how long it runs, so it's left out
+        long[] samplerBytes = new long[1];
+        long before = bean.getTotalThreadAllocatedBytes();
+        Thread sampler = new Thread(() -> {
+            while (true) {
+                sample(bean, counts, names);
+                try {
+                    Thread.sleep(SAMPLE_MS);
+                } catch (InterruptedException e) {
+                    samplerBytes[0] = bean.getCurrentThreadAllocatedBytes();
+                    return;
+                }
+            }
+        }, "allocation-sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+
+        Class.forName(engine).getMethod("main", String[].class).invoke(null, (Object) args);
+
+        sampler.interrupt();
+        sampler.join();
+        sample(bean, counts, names);
+        long total = bean.getTotalThreadAllocatedBytes() - before - samplerBytes[0];
+
+        // the same sort of threads together, eg. all the pool threads, as the numbers in the
+        // names aren't the same from one run to the next
+        Map<String, Long> byName = new HashMap<>();
+        for (Map.Entry<Long, Long> c : counts.entrySet()) {
+            String name = names.get(c.getKey());
+            if (!name.equals("allocation-sampler")) {
+                byName.merge(name.replaceAll("-\\d+$", "-*"), c.getValue(), Long::sum);
+            }
+        }
+        List<String> lines = new ArrayList<>();
+        lines.add("total\t" + total);
+        byName.forEach((name, bytes) -> lines.add(name + "\t" + bytes));
+        String report = System.getProperty("alloc.report");
+        if (report == null) {
+            lines.forEach(System.err::println);
+        } else {
+            try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(report)))) {
+                lines.forEach(out::println);
+            }
+        }
+    }
+
+    private static synchronized void sample(ThreadMXBean bean, Map<Long, Long> counts, Map<Long, String> names) {
+        long[] ids = bean.getAllThreadIds();
+        long[] bytes = bean.getThreadAllocatedBytes(ids);
+        for (int i = 0; i < ids.length; i++) {
+            if (bytes[i] >= 0) {
+                counts.merge(ids[i], bytes[i], Math::max);
+                if (!names.containsKey(ids[i])) {
+                    ThreadInfo info = bean.getThreadInfo(ids[i]);
+                    if (info != null) {
+                        names.put(ids[i], info.getThreadName());
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package common;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+/**
+ * Runs one of the attempts with an application class data sharing (AppCDS) archive, so the
+ * classes it uses are loaded already parsed and verified from a memory mapped file instead of
+ * from the jar. This only helps startup, the processing code is exactly the same.
+ * <pre>
+ * java -cp 1brc.jar common.CdsLauncher arraymaps.ArrayMapChunks hourly/*.txt
+ * </pre>
+ * The first time, or whenever the jar is newer than the archive, there's a training run of the
+ * attempt on a small made up file with -XX:ArchiveClassesAtExit, which writes the archive next
+ * to the jar (1brc.jar.arraymaps.ArrayMapChunks.jsa). Each attempt loads different classes, so
+ * each gets its own archive. Every run after that starts the attempt in a child JVM with
+ * -XX:SharedArchiveFile. -Dcds.archive=path puts the archive somewhere else, in which case it's
+ * up to you to use a different one for each attempt, and our own JVM options are passed on to
+ * the child.
+ * <p>
+ * Java 21 won't write an archive for classes in a directory, only from a jar, so if the
+ * classpath starts with a classes directory it's packed into a jar next to it first (classes/
+ * becomes classes.jar), again whenever any class in it is newer, and the attempt runs from that.
+ * If a training run fails anyway the attempt runs without an archive, and there isn't another
+ * training run until the jar changes. If the archive doesn't match the JVM the JVM quietly runs
+ * without it.
+ */
+public class CdsLauncher {
+
+    // big enough for everything to be loaded, small enough to take a fraction of a second
+    private static final long TRAINING_SIZE = 4 * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("usage: CdsLauncher <attempt class> [args]...");
+            System.exit(2);
+        }
+        String classpath = classpath();
+        Path archive = archive(args[0]);
+        if (!isUpToDate(archive) && !isUpToDate(failed(archive))) {
+            train(archive, args[0]);
+        }
+        List<String> command = javaCommand(classpath);
+        if (Files.exists(archive)) {
+            command.add("-XX:SharedArchiveFile=" + archive);
+        }
+        command.addAll(Arrays.asList(args));
+        System.exit(new ProcessBuilder(command).inheritIO().start().waitFor());
+    }
+
+    static Path archive(String attempt) {
+        String configured = System.getProperty("cds.archive");
+        if (configured != null) {
+            return Paths.get(configured);
+        }
+        Path jar = jar();
+        return jar.resolveSibling(jar.getFileName() + "." + attempt + ".jsa");
+    }
+
+    // left behind by a training run which didn't write an archive, so the next launch doesn't try again
+    static Path failed(Path archive) {
+        return archive.resolveSibling(archive.getFileName() + ".failed");
+    }
+
+    private static Path classpathRoot() {
+        String first = System.getProperty("java.class.path").split(File.pathSeparator)[0];
+        return Paths.get(first).toAbsolutePath();
+    }
+
+    // the jar the attempts run from, which for a classes directory is the one it's packed into
+    private static Path jar() {
+        Path root = classpathRoot();
+        return Files.isDirectory(root) ? root.resolveSibling(root.getFileName() + ".jar") : root;
+    }
+
+    /**
+     * @return our own classpath, with a classes directory at the start of it packed into a jar.
+     */
+    static String classpath() throws IOException {
+        String[] entries = System.getProperty("java.class.path").split(File.pathSeparator);
+        Path root = classpathRoot();
+        if (Files.isDirectory(root)) {
+            Path jar = jar();
+            if (!Files.exists(jar) || anyNewer(root, Files.getLastModifiedTime(jar))) {
+                pack(root, jar);
+            }
+            entries[0] = jar.toString();
+        }
+        return String.join(File.pathSeparator, entries);
+    }
+
+    static boolean isUpToDate(Path file) throws IOException {
+        return Files.exists(file) && Files.getLastModifiedTime(file).compareTo(Files.getLastModifiedTime(jar())) >= 0;
+    }
+
+    private static boolean anyNewer(Path classes, FileTime than) throws IOException {
+        try (Stream<Path> files = Files.walk(classes)) {
+            return files.filter(Files::isRegularFile)
+                    .anyMatch(f -> {
+                        try {
+                            return Files.getLastModifiedTime(f).compareTo(than) > 0;
+                        } catch (IOException e) {
+                            return true; // if in doubt, pack it again
+                        }
+                    });
+        }
+    }
+
+    private static void pack(Path classes, Path jar) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        Path temp = jar.resolveSibling(jar.getFileName() + ".tmp");
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(temp), manifest);
+             Stream<Path> files = Files.walk(classes)) {
+            for (Path f : (Iterable<Path>) files.filter(Files::isRegularFile).sorted()::iterator) {
+                out.putNextEntry(new JarEntry(classes.relativize(f).toString().replace(File.separatorChar, '/')));
+                Files.copy(f, out);
+                out.closeEntry();
+            }
+        }
+        Files.move(temp, jar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Run the attempt on some made up data and keep all the classes it loaded.
+     *
+     * @return whether there's an archive now.
+     */
+    static boolean train(Path archive, String attempt) throws IOException, InterruptedException {
+        Path input = Files.createTempFile("1brc-training", ".txt");
+        try {
+            SyntheticInput.write(input, TRAINING_SIZE, 413, 1234);
+            List<String> command = javaCommand(classpath());
+            command.add("-XX:ArchiveClassesAtExit=" + archive);
+            command.add(attempt);
+            command.add(input.toString());
+            int exitCode = new ProcessBuilder(command)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start().waitFor();
+            if (exitCode == 0 && Files.exists(archive)) {
+                Files.deleteIfExists(failed(archive));
+                return true;
+            }
+            System.err.println("Training run failed with exit code " + exitCode
+                    + ", carrying on without an archive until the jar changes");
+            Files.deleteIfExists(archive);
+            Files.writeString(failed(archive), "exit code " + exitCode + "\n");
+            return false;
+        } finally {
+            Files.deleteIfExists(input);
+        }
+    }
+
+    static List<String> javaCommand() {
+        return javaCommand(System.getProperty("java.class.path"));
+    }
+
+    static List<String> javaCommand(String classpath) {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(classpath);
+        return command;
+    }
+}
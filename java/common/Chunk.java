@@ -0,0 +1,14 @@
+package common;
+
+import java.nio.file.Path;
+
+/**
+ * A part of an input file which starts at the beginning of a row and ends just after a newline
+ * (or at the end of the file), so it can be processed without needing anything either side.
+ */
+public record Chunk(Path file, long start, long end) {
+
+    public int length() {
+        return (int) (end - start);
+    }
+}
@@ -0,0 +1,113 @@
+package common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits all the input files, or parts of them, into newline-aligned chunks and groups them
+ * into tasks of roughly the same size.
+ * <p>
+ * Large files are cut every chunkSize bytes, moving each cut forward to just after the next
+ * newline, which only needs a small read at each cut. Consecutive chunks are then packed
+ * into tasks until each one holds at least chunkSize bytes, so a directory full of tiny files
+ * costs one trip through the queue per few Mb rather than one per file.
+ */
+public class ChunkPlanner {
+
+    // how much to read at a time when looking for the end of a row
+    private static final int SEARCH_WINDOW = 256;
+
+    public static Chunk[][] plan(List<Path> files, long chunkSize) throws IOException {
+        List<Chunk> ranges = new ArrayList<>();
+        for (Path file : files) {
+            ranges.add(new Chunk(file, 0, Files.size(file)));
+        }
+        return planRanges(ranges, chunkSize);
+    }
+
+    /**
+     * Plan the work for byte ranges of the files. The ends of the ranges don't need to be on
+     * row boundaries: each range takes the rows which start inside it, so ranges which meet end
+     * to end cover every row exactly once, wherever the cuts fall.
+     */
+    public static Chunk[][] planRanges(List<Chunk> ranges, long chunkSize) throws IOException {
+        List<Chunk[]> tasks = new ArrayList<>();
+        List<Chunk> current = new ArrayList<>();
+        long currentSize = 0;
+        for (Chunk range : ranges) {
+            for (Chunk chunk : split(range, chunkSize)) {
+                current.add(chunk);
+                currentSize += chunk.length();
+                if (currentSize >= chunkSize) {
+                    tasks.add(current.toArray(new Chunk[0]));
+                    current.clear();
+                    currentSize = 0;
+                }
+            }
+        }
+        if (!current.isEmpty()) {
+            tasks.add(current.toArray(new Chunk[0]));
+        }
+        return tasks.toArray(new Chunk[0][]);
+    }
+
+    public static List<Chunk> split(Chunk range, long chunkSize) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(range.file(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer window = ByteBuffer.allocate(SEARCH_WINDOW);
+            long start = range.start() == 0 ? 0 : nextRowStart(channel, window, range.start(), size);
+            long rangeEnd = range.end() >= size ? size
+                    : range.end() <= 0 ? 0 : nextRowStart(channel, window, range.end(), size);
+            while (start < rangeEnd) {
+                long end = Math.min(rangeEnd, nextRowStart(channel, window, start + chunkSize, size));
+                chunks.add(new Chunk(range.file(), start, end));
+                start = end;
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * @return the position just after the first newline at or after position - 1, so a cut
+     * which already falls at the start of a row is left where it is. The end of the file if
+     * there isn't one.
+     */
+    public static long nextRowStart(FileChannel channel, ByteBuffer window, long position, long size) throws IOException {
+        position--;
+        while (position < size) {
+            window.clear();
+            int read = channel.read(window, position);
+            if (read <= 0) {
+                break;
+            }
+            byte[] bytes = window.array();
+            for (int i = 0; i < read; i++) {
+                if (bytes[i] == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    /**
+     * @return the length of the longest chunk, which is how big the read buffers need to be.
+     */
+    public static int longest(Chunk[][] tasks) {
+        int longest = 0;
+        for (Chunk[] task : tasks) {
+            for (Chunk chunk : task) {
+                longest = Math.max(longest, chunk.length());
+            }
+        }
+        return longest;
+    }
+}
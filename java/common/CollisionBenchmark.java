@@ -0,0 +1,184 @@
+package common;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs every attempt on files whose station names were picked to collide (see the -Dnames
+ * options of GenerateMeasurements), to see which of them get the right answer, which fall
+ * over and which just get slow.
+ * <pre>
+ * java -cp 1brc.jar common.CollisionBenchmark [directory for the test files] [rows]
+ * </pre>
+ * There are three files: the usual stations for comparison, names which all want the same
+ * slot of an 8192 entry table and names which all have the same 31 * h + b hash. For each of
+ * them it prints how many different 31 * h + b hashes the names have, and then for each attempt
+ * whether the answer was right, the time, and from a flight recording of another run, what its
+ * own table did: how many times per row it had to look past the first slot it tried, the
+ * furthest past it any lookup had to go and how many rows went in an overflow table because
+ * their slots were full, from its ChunkParsed events. The attempts with a HashMap rather than
+ * an array-backed map don't have anything to say about that.
+ * <p>
+ * -Dcollision.stations (default 2000), -Dcollision.engines (comma separated, default the same
+ * ones as ScalingBenchmark) and -Dcollision.timeout (seconds, default 120) change what's run.
+ */
+public class CollisionBenchmark {
+
+    private static final long MB = 1024 * 1024;
+    private static final long TIMEOUT_SECONDS = Long.getLong("collision.timeout", 120);
+    private static final String[] CORPORA = {"real", "colliding", "colliding:hash"};
+    // the attempts which keep their stations in a HashMap, which has no figures to report
+    private static final Set<String> HASH_MAPS = Set.of(
+            "bytebuffer.CalculateByteBufferCharArray", "streams.ParallelStreamGroups");
+
+    record Outcome(String status, double seconds, Probes probes) {
+    }
+
+    // what an attempt's table did over a whole run, from its ChunkParsed events
+    record Probes(double collisionsPerRow, long longestProbe, long overflowed) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path directory = Paths.get(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+        long rows = args.length > 1 ? Long.parseLong(args[1].replace("_", "")) : 10_000_000L;
+        int stations = Integer.getInteger("collision.stations", 2000);
+        String engineList = System.getProperty("collision.engines", ScalingBenchmark.defaultEngines());
+
+        for (String corpus : CORPORA) {
+            Path folder = directory.resolve("collisions-" + corpus.replace(':', '-'));
+            Files.createDirectories(folder);
+            GenerateMeasurements generator = new GenerateMeasurements(1234, stations, corpus,
+                    "uniform:3:24", "uniform", "normal:10");
+            Path input = folder.resolve("measurements.txt");
+            System.err.println("Writing " + rows + " rows to " + input);
+            Results expected = generator.write(input, rows, Runtime.getRuntime().availableProcessors());
+            ByteBuffer formatted = ResultWriter.format(expected);
+            byte[] bytes = new byte[formatted.remaining()];
+            formatted.get(bytes);
+            Set<String> reference = new HashSet<>(lines(bytes));
+            long size = Files.size(input);
+
+            List<byte[]> names = new ArrayList<>();
+            for (int i = 0; i < expected.size(); i++) {
+                names.add(expected.nameAsString(i).getBytes(StandardCharsets.UTF_8));
+            }
+            System.out.println();
+            System.out.printf(Locale.ROOT, "%s: %d stations, %d distinct 31 * h + b hashes%n",
+                    corpus, names.size(), distinctHashes(names));
+
+            for (String engine : engineList.split(",")) {
+                Outcome outcome = measure(folder, engine.trim(), reference);
+                System.out.printf(Locale.ROOT, "  %-40s %-8s %7.2f s %7.0f Mb/s  %s%n", engine.trim(), outcome.status(),
+                        outcome.seconds(), outcome.status().equals("ok") ? size / MB / outcome.seconds() : 0,
+                        HASH_MAPS.contains(engine.trim()) ? "HashMap"
+                                : outcome.probes() == null ? ""
+                                : String.format(Locale.ROOT, "%.3f collisions per row, longest probe %d, %,d rows overflowed",
+                                outcome.probes().collisionsPerRow(), outcome.probes().longestProbe(),
+                                outcome.probes().overflowed()));
+            }
+        }
+    }
+
+    static Outcome measure(Path folder, String engine, Set<String> reference) throws IOException, InterruptedException {
+        Path output = Files.createTempFile("collision", ".txt");
+        Path recording = Files.createTempFile("collision", ".jfr");
+        try {
+            run(folder, engine, output, null); // warm up the page cache
+            long start = System.nanoTime();
+            String status = run(folder, engine, output, null);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            if (status.equals("ok")) {
+                Set<String> stations = new HashSet<>();
+                for (String line : lines(Files.readAllBytes(output))) {
+                    // only the station lines, not the timings or anything else the attempts print
+                    if (line.contains("=") && line.contains("/")) {
+                        stations.add(line);
+                    }
+                }
+                if (!stations.equals(reference)) {
+                    status = "wrong";
+                }
+            }
+            Probes probes = null;
+            if (!status.equals("timeout") && !status.equals("crashed")) {
+                run(folder, engine, output, recording);
+                probes = probes(recording);
+            }
+            return new Outcome(status, seconds, probes);
+        } finally {
+            Files.deleteIfExists(output);
+            Files.deleteIfExists(recording);
+        }
+    }
+
+    private static String run(Path folder, String engine, Path output, Path recording)
+            throws IOException, InterruptedException {
+        List<String> command = CdsLauncher.javaCommand();
+        if (recording != null) {
+            command.add("-XX:StartFlightRecording=filename=" + recording);
+        }
+        ScalingBenchmark.addEngine(command, engine);
+        Process p = new ProcessBuilder(command)
+                .directory(folder.toFile())
+                .redirectOutput(output.toFile())
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        if (!p.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            p.destroyForcibly().waitFor();
+            return "timeout";
+        }
+        return p.exitValue() == 0 ? "ok" : "crashed";
+    }
+
+    /**
+     * @return the totals from the run's ChunkParsed events, or null if there weren't any.
+     */
+    static Probes probes(Path recording) throws IOException {
+        long collisions = 0;
+        long rows = 0;
+        long longest = 0;
+        long overflowed = 0;
+        for (RecordedEvent e : RecordingFile.readAllEvents(recording)) {
+            if (e.getEventType().getName().equals("onebrc.ChunkParsed")) {
+                collisions += e.getLong("collisions");
+                rows += e.getLong("rows");
+                longest = Math.max(longest, e.getLong("longestProbe"));
+                overflowed += e.getLong("overflowed");
+            }
+        }
+        return rows == 0 ? null : new Probes((double) collisions / rows, longest, overflowed);
+    }
+
+    private static List<String> lines(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8).lines().toList();
+    }
+
+    private static int distinctHashes(List<byte[]> names) {
+        Set<Integer> hashes = new HashSet<>();
+        for (byte[] name : names) {
+            hashes.add(oldHash(name));
+        }
+        return hashes.size();
+    }
+
+    private static int oldHash(byte[] name) {
+        int h = 0;
+        for (byte b : name) {
+            h = 31 * h + b;
+        }
+        return h;
+    }
+}
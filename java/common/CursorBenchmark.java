@@ -0,0 +1,176 @@
+package common;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Times ArrayMapChunks' main loop reading one row at a time against reading two or three
+ * parts of each chunk in the same loop (-Dcursors), on a made up file.
+ * <pre>
+ * java -cp 1brc.jar common.CursorBenchmark [directory for the test file] [size in Mb]
+ * </pre>
+ * It's only the parsing which changes, so that's all that's timed: each run has a flight
+ * recording, and the time is the total of its ChunkParsed events over the rows in them, which
+ * leaves out starting the JVM and reading the file. Each setting is run -Dcursors.repeats
+ * times (default 5) on one thread, keeping the fastest, after a run to warm up the page cache.
+ * -Dcursors.list (default 1,2,3) and -Dcursors.threads (default 1) change what's run.
+ * <p>
+ * How much it helps depends on how much the CPU can have on the go at once, which is
+ * different for every generation, so the results are added to the end of cursors.csv (or
+ * -Dcursors.csv) along with the CPU's name. Running it on each machine with the same file
+ * keeps them all in one place, and a table of every CPU in the file is printed at the end.
+ */
+public class CursorBenchmark {
+
+    private static final long MB = 1024 * 1024;
+    private static final String ENGINE = "arraymaps.ArrayMapChunks";
+
+    public static void main(String[] args) throws Exception {
+        Path directory = Paths.get(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+        long size = (args.length > 1 ? Long.parseLong(args[1]) : 256) * MB;
+        int repeats = Integer.getInteger("cursors.repeats", 5);
+        int threads = Integer.getInteger("cursors.threads", 1);
+        String[] cursors = System.getProperty("cursors.list", "1,2,3").split(",");
+        Path csv = Paths.get(System.getProperty("cursors.csv", "cursors.csv"));
+
+        Path input = directory.resolve("measurements.txt");
+        if (!Files.exists(input) || Files.size(input) < size) {
+            System.err.println("Writing " + size / MB + "Mb to " + input);
+            SyntheticInput.write(input, size, 413, 1);
+        }
+        String cpu = cpuName();
+        String java = System.getProperty("java.vm.name") + " " + System.getProperty("java.version");
+        System.out.println(cpu + ", " + java);
+
+        List<String> lines = new ArrayList<>();
+        double single = Double.NaN;
+        for (String c : cursors) {
+            int n = Integer.parseInt(c.trim());
+            List<String> options = List.of("-XX:ActiveProcessorCount=" + threads, "-Dthreads=" + threads,
+                    "-Dcursors=" + n);
+            ScalingBenchmark.run(directory, ENGINE, options, null); // warm up the page cache
+            double best = Double.MAX_VALUE;
+            for (int r = 0; r < repeats; r++) {
+                best = Math.min(best, nsPerRow(directory, options));
+            }
+            if (n == 1) {
+                single = best;
+            }
+            double speedup = single / best;
+            System.out.printf(Locale.ROOT, "%d cursor%s: %6.2f ns per row, %6.1f million rows/s, %5.2fx%n",
+                    n, n == 1 ? " " : "s", best, 1000 / best, speedup);
+            lines.add(String.format(Locale.ROOT, "%s,%s,%d,%d,%.3f,%.3f",
+                    quote(cpu), quote(java), threads, n, best, speedup));
+        }
+        boolean exists = Files.exists(csv);
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(csv,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+            if (!exists) {
+                out.println("cpu,java,threads,cursors,ns_per_row,speedup");
+            }
+            lines.forEach(out::println);
+        }
+        System.err.println("Results added to " + csv);
+        compare(csv);
+    }
+
+    /**
+     * @return how long the rows took to parse in one run, in ns per row.
+     */
+    static double nsPerRow(Path directory, List<String> options) throws IOException, InterruptedException {
+        Path recording = Files.createTempFile("cursors", ".jfr");
+        try {
+            ScalingBenchmark.run(directory, ENGINE, options, recording);
+            long ns = 0;
+            long rows = 0;
+            for (RecordedEvent e : RecordingFile.readAllEvents(recording)) {
+                if (e.getEventType().getName().equals("onebrc.ChunkParsed")) {
+                    ns += e.getDuration().toNanos();
+                    rows += e.getLong("rows");
+                }
+            }
+            if (rows == 0) {
+                throw new IOException("No rows parsed with " + options);
+            }
+            return (double) ns / rows;
+        } finally {
+            Files.deleteIfExists(recording);
+        }
+    }
+
+    // The speedups for every CPU in the file, the latest run of each
+    private static void compare(Path csv) throws IOException {
+        Map<String, Map<Integer, Double>> byCpu = new LinkedHashMap<>();
+        List<String> lines = Files.readAllLines(csv);
+        for (String line : lines.subList(1, lines.size())) {
+            List<String> fields = split(line);
+            String key = fields.get(0) + " (" + fields.get(2) + " thread" + (fields.get(2).equals("1") ? "" : "s") + ")";
+            byCpu.computeIfAbsent(key, k -> new LinkedHashMap<>())
+                    .put(Integer.parseInt(fields.get(3)), Double.parseDouble(fields.get(5)));
+        }
+        System.out.println();
+        System.out.printf(Locale.ROOT, "%-60s %8s %8s %8s%n", "", "1", "2", "3");
+        for (Map.Entry<String, Map<Integer, Double>> cpu : byCpu.entrySet()) {
+            StringBuilder row = new StringBuilder(String.format(Locale.ROOT, "%-60s", cpu.getKey()));
+            for (int n = 1; n <= 3; n++) {
+                Double speedup = cpu.getValue().get(n);
+                row.append(speedup == null ? String.format("%9s", "-")
+                        : String.format(Locale.ROOT, " %7.2fx", speedup));
+            }
+            System.out.println(row);
+        }
+    }
+
+    private static String cpuName() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/cpuinfo"))) {
+                if (line.startsWith("model name")) {
+                    return line.substring(line.indexOf(':') + 1).trim().replaceAll("\\s+", " ");
+                }
+            }
+        } catch (IOException e) {
+            // not Linux
+        }
+        return System.getProperty("os.arch") + ", " + Runtime.getRuntime().availableProcessors() + " cores";
+    }
+
+    private static String quote(String field) {
+        return field.contains(",") || field.contains("\"") ? '"' + field.replace("\"", "\"\"") + '"' : field;
+    }
+
+    private static List<String> split(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char ch = line.charAt(i);
+            if (ch == '"') {
+                if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (ch == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(ch);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
@@ -0,0 +1,96 @@
+package common;
+
+import com.sun.nio.file.ExtendedOpenOption;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads chunks with O_DIRECT, going straight from the disk into our memory without passing
+ * through the page cache. Normal reads leave the whole file in the cache, which on a shared
+ * host pushes out everything else that was there, eg. a database's working set, and keeps a
+ * second copy of data we only look at once.
+ * <p>
+ * O_DIRECT needs the file position, the length and the memory address of every read to be
+ * multiples of the filesystem block size. Chunks start and end on rows, not blocks, so each read
+ * is widened to the blocks either side and the extra bytes are skipped when copying out. The
+ * blocks where two chunks meet get read by both, which is how the rows across a block boundary
+ * get stitched back together. The last block of a file is usually short, the read just stops
+ * at the end of the file.
+ * <p>
+ * One aligned buffer is allocated per reader and reused for every chunk, bigger chunks are
+ * read through it in pieces.
+ */
+public class DirectReader {
+
+    private static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    private final int blockSize;
+    private final ByteBuffer buffer;
+
+    public DirectReader(int blockSize, int bufferSize) {
+        this.blockSize = blockSize;
+        int size = Math.max(blockSize, bufferSize & -blockSize);
+        this.buffer = ByteBuffer.allocateDirect(size + blockSize).alignedSlice(blockSize);
+    }
+
+    public static FileChannel open(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.READ, ExtendedOpenOption.DIRECT);
+    }
+
+    public int blockSize() {
+        return blockSize;
+    }
+
+    public static int blockSize(Path file) {
+        try {
+            long size = Files.getFileStore(file).getBlockSize();
+            return size > 0 && Long.bitCount(size) == 1 ? (int) size : DEFAULT_BLOCK_SIZE;
+        } catch (IOException | UnsupportedOperationException e) {
+            return DEFAULT_BLOCK_SIZE;
+        }
+    }
+
+    /**
+     * Copy the bytes of the chunk into the start of the array.
+     *
+     * @param channel opened with {@link #open(Path)}
+     */
+    public void read(FileChannel channel, Chunk chunk, byte[] into) throws IOException {
+        long position = chunk.start() & -blockSize;
+        int skip = (int) (chunk.start() - position);
+        int length = chunk.length();
+        int copied = 0;
+        while (copied < length) {
+            int wanted = skip + length - copied;
+            buffer.clear();
+            buffer.limit(Math.min(buffer.capacity(), (wanted + blockSize - 1) & -blockSize));
+            int read = fill(channel, position);
+            int available = Math.min(read - skip, length - copied);
+            if (available <= 0) {
+                throw new IOException(chunk.file() + " is shorter than when we started");
+            }
+            buffer.get(skip, into, copied, available);
+            copied += available;
+            position += read;
+            skip = 0;
+        }
+    }
+
+    // read until the buffer is full or we reach the end of the file
+    private int fill(FileChannel channel, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            // a part block only comes back at the end of the file, and we couldn't
+            // carry on from an unaligned position anyway
+            if (read <= 0 || (read & (blockSize - 1)) != 0) {
+                break;
+            }
+        }
+        return buffer.position();
+    }
+}
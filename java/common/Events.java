@@ -0,0 +1,92 @@
+package common;
+
+import jdk.jfr.*;
+
+/**
+ * Java Flight Recorder events for the phases of a run, so a slow run can be split into time
+ * spent reading, parsing, joining fragments, merging and writing out without attaching a
+ * profiler. Record with eg.
+ * <pre>
+ * java -XX:StartFlightRecording=filename=run.jfr arraymaps.ArrayMapChunks measurements.txt
+ * java common.PhaseReport run.jfr
+ * </pre>
+ * Just loading an event class starts up the flight recorder machinery, which takes a few
+ * hundred ms, so the events are only created when ENABLED is set: when the JVM was started
+ * with a recording (-XX:StartFlightRecording) or with -Devents=true, which is needed to see
+ * the events in a recording started later with jcmd. Otherwise they cost one check of a
+ * static final, which the JIT removes. Fields are only filled in after checking shouldCommit().
+ */
+public class Events {
+
+    public static final boolean ENABLED = Boolean.getBoolean("events") || FlightRecorder.isInitialized();
+
+    @Name("onebrc.ChunkRead")
+    @Label("Chunk Read")
+    @Category("1BRC")
+    @Description("Reading a block or chunk of the input into memory")
+    public static class ChunkRead extends Event {
+        @Label("Offset")
+        @Description("Where the block starts in the file")
+        public long offset;
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+    }
+
+    @Name("onebrc.ChunkParsed")
+    @Label("Chunk Parsed")
+    @Category("1BRC")
+    @Description("Parsing the rows of a block or chunk into a thread's map")
+    public static class ChunkParsed extends Event {
+        @Label("Offset")
+        @Description("Where the block starts in the file")
+        public long offset;
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+        @Label("Rows")
+        public long rows;
+        @Label("Collisions")
+        @Description("Lookups which didn't find the station in the first slot, for the array-backed maps")
+        public long collisions;
+        @Label("Longest Probe")
+        @Description("The furthest past its first slot a lookup had to go, for the array-backed maps")
+        public long longestProbe;
+        @Label("Overflowed")
+        @Description("Rows which found no room in their slots and went in an overflow table instead")
+        public long overflowed;
+        @Label("Malformed Rows")
+        @Description("Rows which couldn't be read and were skipped")
+        public long malformed;
+    }
+
+    @Name("onebrc.FragmentsJoined")
+    @Label("Fragments Joined")
+    @Category("1BRC")
+    @Description("Joining up rows split between blocks")
+    public static class FragmentsJoined extends Event {
+        @Label("Rows")
+        public long rows;
+    }
+
+    @Name("onebrc.ResultsMerged")
+    @Label("Results Merged")
+    @Category("1BRC")
+    @Description("Combining one set of per-station results into another")
+    public static class ResultsMerged extends Event {
+        @Label("Stations")
+        public long stations;
+    }
+
+    @Name("onebrc.OutputWritten")
+    @Label("Output Written")
+    @Category("1BRC")
+    @Description("Sorting, formatting and writing the results")
+    public static class OutputWritten extends Event {
+        @Label("Stations")
+        public long stations;
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+    }
+}
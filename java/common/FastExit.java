@@ -0,0 +1,109 @@
+package common;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs one of the other attempts in a child JVM and exits as soon as the results have arrived,
+ * without waiting for the child to unmap the file, free its buffers, stop its thread pool and
+ * shut down. The child keeps going on its own in the background and tidies up after us.
+ * <pre>
+ * java common.FastExit arraymaps.ArrayMapChunks measurements.txt
+ * </pre>
+ * The child writes the length of the results before the results themselves, then closes stdout,
+ * so we know exactly when we've got everything. Anything else the attempt prints, including its
+ * own "Took" line, goes to stderr. If the child dies before sending all the results we wait for
+ * it and exit with its exit code instead.
+ * <p>
+ * Our own JVM options are passed on to the child. -Dlauncher.measure=true waits for the child
+ * anyway and reports on stderr how long its teardown took, which is the time we saved.
+ */
+public class FastExit {
+
+    public static void main(String[] args) throws Exception {
+        long startTime = System.currentTimeMillis();
+        if (args.length == 0) {
+            System.err.println("usage: FastExit <attempt class> [args]...");
+            System.exit(2);
+        }
+
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Child.class.getName());
+        command.addAll(Arrays.asList(args));
+        Process child = new ProcessBuilder(command)
+                .redirectInput(ProcessBuilder.Redirect.INHERIT)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+        if (!copyResults(child.getInputStream(), System.out)) {
+            int exitCode = child.waitFor();
+            System.exit(exitCode == 0 ? 1 : exitCode);
+        }
+        long endTime = System.currentTimeMillis();
+        System.out.printf("Took %.2f s\n", (endTime - startTime) / 1000.0);
+        System.out.flush();
+
+        if (Boolean.getBoolean("launcher.measure")) {
+            int exitCode = child.waitFor();
+            System.err.printf("Child exited with %d, %d ms after sending the results\n",
+                    exitCode, System.currentTimeMillis() - endTime);
+        }
+        // nothing left that we need to wait for, skip our own shutdown hooks too
+        Runtime.getRuntime().halt(0);
+    }
+
+    /**
+     * @return false if the child's output ended before all the results had arrived.
+     */
+    static boolean copyResults(InputStream from, OutputStream to) throws IOException {
+        DataInputStream in = new DataInputStream(from);
+        long remaining;
+        try {
+            remaining = in.readLong();
+        } catch (EOFException e) {
+            return false;
+        }
+        byte[] buffer = new byte[64 * 1024];
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read == -1) {
+                to.flush();
+                return false;
+            }
+            to.write(buffer, 0, read);
+            remaining -= read;
+        }
+        to.flush();
+        return true;
+    }
+
+    /**
+     * Entry point for the child JVM. Moves everything except the results over to stderr and
+     * then runs the attempt as normal.
+     */
+    public static class Child {
+        public static void main(String[] args) throws Throwable {
+            System.setOut(System.err);
+            ResultWriter.useFramedOutput();
+            try {
+                Class.forName(args[0])
+                        .getMethod("main", String[].class)
+                        .invoke(null, (Object) Arrays.copyOfRange(args, 1, args.length));
+            } catch (java.lang.reflect.InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
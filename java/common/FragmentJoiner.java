@@ -0,0 +1,192 @@
+package common;
+
+import java.util.ArrayDeque;
+
+/**
+ * Joins up the rows which are split across the edges of the blocks.
+ * <p>
+ * Block n's start fragment (everything before its first newline) and block n-1's end fragment
+ * (everything after its last newline) meet at boundary n. As soon as both blocks either side
+ * of a boundary have been handed in, the two halves are joined and the row is added to the
+ * results. Only the boundaries next to blocks which are still being processed are kept, so
+ * the memory used depends on the number of blocks in flight rather than the size of the file.
+ * <p>
+ * The fragments are copied straight out of the block into arrays which are used again once
+ * their row has been joined up, and the boundaries are kept in a ring indexed by their number
+ * which only grows if the blocks get further apart than it can hold, so once it's going it
+ * doesn't allocate anything.
+ * <p>
+ * Not thread safe, the engines only hand in results from one thread at a time anyway.
+ */
+public class FragmentJoiner {
+
+    // a piece of a row, in an array which is used again once the row has been joined up
+    private static final class Fragment {
+        byte[] bytes = new byte[128];
+        int length;
+    }
+
+    // marks a block edge which has been seen but had nothing left over
+    private static final Fragment NONE = new Fragment();
+    // marks a boundary which has been joined, but isn't the oldest one yet
+    private static final Fragment JOINED = new Fragment();
+
+    // boundary n's two halves are in slot n & (length - 1), for base <= n < base + length
+    private Fragment[] lineStarts = new Fragment[64];
+    private Fragment[] lineEnds = new Fragment[64];
+    // every boundary before this one has been joined
+    private long base;
+    private final ArrayDeque<Fragment> spare = new ArrayDeque<>();
+    private byte[] line = new byte[256];
+    private final Results results = new Results();
+    private long joined;
+
+    public FragmentJoiner() {
+        // there's nothing before the first block
+        lineStarts[0] = NONE;
+    }
+
+    /**
+     * Copy the fragments out of a block, which can be used again straight afterwards.
+     *
+     * @param block       the bytes of the block
+     * @param startLength the number of bytes before the first newline in the block
+     * @param endFrom     where the bytes after the last newline start, endTo if there aren't any
+     * @param endTo       the end of the data in the block
+     */
+    public void add(long blockNumber, byte[] block, int startLength, int endFrom, int endTo) {
+        Events.FragmentsJoined event = null;
+        if (Events.ENABLED) {
+            event = new Events.FragmentsJoined();
+            event.begin();
+        }
+        long joinedBefore = joined;
+        while (blockNumber + 1 - base >= lineStarts.length) {
+            grow();
+        }
+        lineEnds[slot(blockNumber)] = copy(block, 0, startLength);
+        lineStarts[slot(blockNumber + 1)] = copy(block, endFrom, endTo);
+        join(blockNumber);
+        join(blockNumber + 1);
+        if (event != null && event.shouldCommit()) {
+            event.rows = joined - joinedBefore;
+            event.commit();
+        }
+    }
+
+    /**
+     * @return the rows made from the fragments. Anything still waiting is at the end of the
+     * file with nothing after it, so it's added as it is.
+     */
+    public Results finish() {
+        Events.FragmentsJoined event = null;
+        if (Events.ENABLED) {
+            event = new Events.FragmentsJoined();
+            event.begin();
+        }
+        long joinedBefore = joined;
+        for (int i = 0; i < lineStarts.length; i++) {
+            if (lineStarts[i] != null && lineStarts[i] != JOINED) {
+                addLine(lineStarts[i], NONE);
+            }
+            if (lineEnds[i] != null && lineEnds[i] != JOINED) {
+                addLine(NONE, lineEnds[i]);
+            }
+        }
+        lineStarts = new Fragment[lineStarts.length];
+        lineEnds = new Fragment[lineEnds.length];
+        if (event != null && event.shouldCommit()) {
+            event.rows = joined - joinedBefore;
+            event.commit();
+        }
+        return results;
+    }
+
+    private int slot(long boundary) {
+        return (int) (boundary & (lineStarts.length - 1));
+    }
+
+    private Fragment copy(byte[] block, int from, int to) {
+        int length = to - from;
+        if (length == 0) {
+            return NONE;
+        }
+        Fragment f = spare.isEmpty() ? new Fragment() : spare.pop();
+        if (f.bytes.length < length) {
+            f.bytes = new byte[length];
+        }
+        System.arraycopy(block, from, f.bytes, 0, length);
+        f.length = length;
+        return f;
+    }
+
+    private void recycle(Fragment f) {
+        if (f != NONE) {
+            spare.push(f);
+        }
+    }
+
+    // The blocks are further apart than the ring can hold, so double it. Only happens while
+    // it's getting going, or if one block takes much longer than the others.
+    private void grow() {
+        Fragment[] oldStarts = lineStarts;
+        Fragment[] oldEnds = lineEnds;
+        lineStarts = new Fragment[oldStarts.length * 2];
+        lineEnds = new Fragment[oldEnds.length * 2];
+        int oldMask = oldStarts.length - 1;
+        for (long b = base; b < base + oldStarts.length; b++) {
+            lineStarts[slot(b)] = oldStarts[(int) (b & oldMask)];
+            lineEnds[slot(b)] = oldEnds[(int) (b & oldMask)];
+        }
+    }
+
+    private void join(long boundary) {
+        int slot = slot(boundary);
+        Fragment start = lineStarts[slot];
+        Fragment end = lineEnds[slot];
+        if (start != null && end != null) {
+            addLine(start, end);
+            recycle(start);
+            recycle(end);
+            lineStarts[slot] = JOINED;
+            lineEnds[slot] = JOINED;
+            // let the ring move on past the boundaries which are finished with
+            while (lineStarts[slot(base)] == JOINED) {
+                lineStarts[slot(base)] = null;
+                lineEnds[slot(base)] = null;
+                base++;
+            }
+        }
+    }
+
+    private void addLine(Fragment start, Fragment end) {
+        int length = start.length + end.length;
+        if (length == 0) {
+            return;
+        }
+        if (line.length < length) {
+            line = new byte[length];
+        }
+        System.arraycopy(start.bytes, 0, line, 0, start.length);
+        System.arraycopy(end.bytes, 0, line, start.length, end.length);
+
+        int nameEnd = 0;
+        while (line[nameEnd] != ';') {
+            nameEnd++;
+        }
+        // Only called once per block, doesn't need to be as optimised as the main loops.
+        int sign = 1;
+        int temperature = 0;
+        for (int i = nameEnd + 1; i < length; i++) {
+            byte b = line[i];
+            if (b == '-') {
+                sign = -1;
+            } else if (b >= '0' && b <= '9') {
+                temperature = temperature * 10 + (b - '0');
+            }
+        }
+        temperature *= sign;
+        joined++;
+        results.add(line, 0, nameEnd, 1, temperature, temperature, temperature);
+    }
+}
@@ -0,0 +1,428 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes a measurements file like createMeasurements.py does, but on every core at once and
+ * with more control over what's in it, along with the results we should get from it.
+ * <pre>
+ * java common.GenerateMeasurements [file, default measurements.txt] [rows, default 1_000_000_000]
+ * </pre>
+ * <ul>
+ * <li>-Dseed (default 1234). The same seed and settings always give the same file, however
+ * many threads write it.</li>
+ * <li>-Dstations (default 413). The stations from createMeasurements.py come first, and any
+ * more are made up. -Dnames=synthetic makes them all up. -Dnames=colliding makes up names
+ * whose 31 * h + b hashes all have the same bottom 13 bits, so they all want the same slot of
+ * an 8192 entry table, and -Dnames=colliding:hash makes names which all have exactly the same
+ * 31 * h + b hash, for seeing what the attempts do with names chosen to break them (see
+ * CollisionBenchmark).</li>
+ * <li>-Dname.length: how long the made up names are in bytes, either uniform:min:max (the
+ * default is uniform:3:24) or normal:mean:sd.</li>
+ * <li>-Dskew: uniform (the default) picks every station as often as the others, zipf:s picks
+ * the nth most popular one in proportion to 1/n^s. Which stations are the popular ones is
+ * shuffled using the seed.</li>
+ * <li>-Dtemperature: normal:sd (the default is normal:10, like the Python) spreads the readings
+ * around each station's mean, uniform picks anything from -99.9 to 99.9.</li>
+ * <li>-Dthreads (default all the cores).</li>
+ * <li>-Dreference: where to write the expected results, in the same format as
+ * expected.1234.txt. The default is the file name with .expected on the end.</li>
+ * </ul>
+ * The rows are made in slices, each from its own random number generator, so the threads
+ * don't have to wait for each other. Each slice claims its place in the file in order, as
+ * soon as it knows how long it is, and is then written there with a positional write while
+ * the next slices are still being made. Every name is checked to have a different hash,
+ * since most of the attempts only tell the stations apart by their hash, except of course
+ * with -Dnames=colliding:hash.
+ */
+public class GenerateMeasurements {
+
+    private static final int ROWS_PER_SLICE = 256 * 1024;
+    // ';', up to "-99.9" and '\n'
+    private static final int MAX_NUMBER_BYTES = 7;
+
+    private final byte[][] names;   // each with the ';' on the end
+    private final int[] means;      // tenths of a degree
+    private final Sampler sampler;
+    private final boolean uniformTemperatures;
+    private final double spread;    // tenths of a degree
+    private final long seed;
+
+    GenerateMeasurements(long seed, int stations, String nameMode, String nameLength, String skew, String temperature) {
+        this.seed = seed;
+        Random random = new Random(seed);
+        List<byte[]> nameList = new ArrayList<>();
+        List<Integer> meanList = new ArrayList<>();
+        Set<String> used = new HashSet<>();
+        Set<Integer> hashes = new HashSet<>();
+        if (nameMode.equals("colliding:hash")) {
+            sameHashNames(random, stations, nameList, meanList);
+        } else if (nameMode.equals("colliding")) {
+            sameSlotNames(random, stations, nameList, meanList);
+        } else if (!nameMode.equals("synthetic")) {
+            for (int i = 0; i < WeatherStations.STATIONS.length && nameList.size() < stations; i += 2) {
+                String name = WeatherStations.STATIONS[i];
+                used.add(name);
+                hashes.add(hash(name.getBytes(StandardCharsets.UTF_8)));
+                nameList.add((name + ";").getBytes(StandardCharsets.UTF_8));
+                meanList.add((int) Math.round(Double.parseDouble(WeatherStations.STATIONS[i + 1]) * 10));
+            }
+        }
+        String[] length = nameLength.split(":");
+        while (nameList.size() < stations) {
+            int bytes;
+            if (length[0].equals("normal")) {
+                bytes = (int) Math.round(Double.parseDouble(length[1]) + random.nextGaussian() * Double.parseDouble(length[2]));
+            } else {
+                int min = Integer.parseInt(length[1]);
+                bytes = min + random.nextInt(Integer.parseInt(length[2]) - min + 1);
+            }
+            String name = madeUpName(random, Math.max(1, Math.min(100, bytes)));
+            byte[] b = name.getBytes(StandardCharsets.UTF_8);
+            if (used.add(name) && hashes.add(hash(b))) {
+                nameList.add((name + ";").getBytes(StandardCharsets.UTF_8));
+                meanList.add(random.nextInt(401) - 100); // -10.0 to 30.0
+            }
+        }
+        names = nameList.toArray(new byte[0][]);
+        means = meanList.stream().mapToInt(Integer::intValue).toArray();
+        sampler = new Sampler(weights(random, names.length, skew));
+
+        String[] t = temperature.split(":");
+        uniformTemperatures = t[0].equals("uniform");
+        spread = t.length > 1 ? Double.parseDouble(t[1]) * 10 : 100;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long startTime = System.currentTimeMillis();
+        Path file = Paths.get(args.length > 0 ? args[0] : "measurements.txt");
+        long rows = args.length > 1 ? Long.parseLong(args[1].replace("_", "")) : 1_000_000_000L;
+        Path reference = Paths.get(System.getProperty("reference", file + ".expected"));
+        int threads = Integer.getInteger("threads", Runtime.getRuntime().availableProcessors());
+
+        GenerateMeasurements generator = new GenerateMeasurements(
+                Long.getLong("seed", 1234),
+                Integer.getInteger("stations", 413),
+                System.getProperty("names", "real"),
+                System.getProperty("name.length", "uniform:3:24"),
+                System.getProperty("skew", "uniform"),
+                System.getProperty("temperature", "normal:10"));
+        Results results = generator.write(file, rows, threads);
+        Files.write(reference, toArray(ResultWriter.format(results)));
+
+        long endTime = System.currentTimeMillis();
+        System.out.printf("Wrote %,d rows for %d stations to %s, and the results to %s%n",
+                rows, results.size(), file, reference);
+        System.out.printf("Took %.2f s\n", (endTime - startTime) / 1000.0);
+    }
+
+    Results write(Path file, long rows, int threads) throws Exception {
+        long slices = (rows + ROWS_PER_SLICE - 1) / ROWS_PER_SLICE;
+        AtomicLong nextSlice = new AtomicLong();
+        Placer placer = new Placer();
+        List<Future<Totals>> running = new ArrayList<>();
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             ExecutorService pool = Executors.newFixedThreadPool(threads)) {
+            for (int i = 0; i < threads; i++) {
+                running.add(pool.submit(() -> {
+                    Totals totals = new Totals(names.length);
+                    byte[] buffer = new byte[ROWS_PER_SLICE * (longestName() + MAX_NUMBER_BYTES)];
+                    long slice;
+                    while ((slice = nextSlice.getAndIncrement()) < slices) {
+                        int count = (int) Math.min(ROWS_PER_SLICE, rows - slice * ROWS_PER_SLICE);
+                        int length = makeSlice(slice, count, buffer, totals);
+                        long position = placer.place(slice, length);
+                        ByteBuffer b = ByteBuffer.wrap(buffer, 0, length);
+                        while (b.hasRemaining()) {
+                            out.write(b, position + b.position());
+                        }
+                    }
+                    return totals;
+                }));
+            }
+            Totals all = new Totals(names.length);
+            for (Future<Totals> f : running) {
+                all.add(f.get());
+            }
+            return all.toResults(names);
+        }
+    }
+
+    /**
+     * Fills the buffer with the rows for one slice.
+     *
+     * @return how many bytes they take up.
+     */
+    int makeSlice(long slice, int rows, byte[] buffer, Totals totals) {
+        SplittableRandom random = new SplittableRandom(seed * 0x9E3779B97F4A7C15L + slice);
+        int position = 0;
+        for (int r = 0; r < rows; r++) {
+            int s = sampler.next(random);
+            int tenths;
+            if (uniformTemperatures) {
+                tenths = random.nextInt(1999) - 999;
+            } else {
+                tenths = (int) Math.round(means[s] + random.nextGaussian() * spread);
+                tenths = Math.max(-999, Math.min(999, tenths));
+            }
+            totals.add(s, tenths);
+
+            byte[] name = names[s];
+            System.arraycopy(name, 0, buffer, position, name.length);
+            position += name.length;
+            int t = Math.abs(tenths);
+            if (tenths < 0) {
+                buffer[position++] = '-';
+            }
+            if (t >= 100) {
+                buffer[position++] = (byte) ('0' + t / 100);
+            }
+            buffer[position++] = (byte) ('0' + t / 10 % 10);
+            buffer[position++] = '.';
+            buffer[position++] = (byte) ('0' + t % 10);
+            buffer[position++] = '\n';
+        }
+        return position;
+    }
+
+    private int longestName() {
+        int longest = 0;
+        for (byte[] name : names) {
+            longest = Math.max(longest, name.length);
+        }
+        return longest;
+    }
+
+    // Names made of "Aa" and "BB" in every combination, which all have the same 31 * h + b hash
+    // as those two do. A made up first word keeps them from looking quite so silly.
+    private static void sameHashNames(Random random, int stations, List<byte[]> nameList, List<Integer> meanList) {
+        int blocks = Math.max(4, 64 - Long.numberOfLeadingZeros(stations - 1));
+        String first = madeUpName(random, 6) + " ";
+        for (int i = 0; i < stations; i++) {
+            StringBuilder name = new StringBuilder(first);
+            for (int b = blocks - 1; b >= 0; b--) {
+                name.append((i >>> b & 1) == 0 ? "Aa" : "BB");
+            }
+            nameList.add((name + ";").getBytes(StandardCharsets.UTF_8));
+            meanList.add(random.nextInt(401) - 100);
+        }
+    }
+
+    // Made up names with three letters on the end chosen so the bottom 13 bits of the hash come
+    // out the same every time, while the rest of it is different.
+    private static void sameSlotNames(Random random, int stations, List<byte[]> nameList, List<Integer> meanList) {
+        int target = random.nextInt(8192);
+        Set<String> used = new HashSet<>();
+        Set<Integer> hashes = new HashSet<>();
+        while (nameList.size() < stations) {
+            String prefix = madeUpName(random, 3 + random.nextInt(12));
+            int h = hash(prefix.getBytes(StandardCharsets.UTF_8));
+            for (int suffix = 0; suffix < 26 * 26 * 26 && nameList.size() < stations; suffix++) {
+                char a = (char) ('a' + suffix / 676);
+                char b = (char) ('a' + suffix / 26 % 26);
+                char c = (char) ('a' + suffix % 26);
+                int full = ((h * 31 + a) * 31 + b) * 31 + c;
+                String name = prefix + a + b + c;
+                if ((full & 8191) == target && used.add(name) && hashes.add(full)) {
+                    nameList.add((name + ";").getBytes(StandardCharsets.UTF_8));
+                    meanList.add(random.nextInt(401) - 100);
+                }
+            }
+        }
+    }
+
+    private static String madeUpName(Random random, int bytes) {
+        StringBuilder name = new StringBuilder(bytes);
+        name.append((char) ('A' + random.nextInt(26)));
+        while (name.length() < bytes) {
+            // the odd space, but not at the end or next to another one
+            if (name.length() < bytes - 1 && name.charAt(name.length() - 1) != ' ' && random.nextInt(8) == 0) {
+                name.append(' ');
+            } else {
+                name.append((char) ('a' + random.nextInt(26)));
+            }
+        }
+        return name.toString();
+    }
+
+    private static double[] weights(Random random, int stations, String skew) {
+        double[] weights = new double[stations];
+        if (skew.startsWith("zipf")) {
+            double s = skew.contains(":") ? Double.parseDouble(skew.substring(skew.indexOf(':') + 1)) : 1.0;
+            // shuffle which station gets which rank
+            int[] rank = new int[stations];
+            for (int i = 0; i < stations; i++) {
+                rank[i] = i;
+            }
+            for (int i = stations - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int swap = rank[i];
+                rank[i] = rank[j];
+                rank[j] = swap;
+            }
+            for (int i = 0; i < stations; i++) {
+                weights[i] = 1 / Math.pow(rank[i] + 1, s);
+            }
+        } else {
+            Arrays.fill(weights, 1);
+        }
+        return weights;
+    }
+
+    private static int hash(byte[] name) {
+        int h = 0;
+        for (byte b : name) {
+            h = 31 * h + b;
+        }
+        return h;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Picks a station with the given weights in constant time, using Walker's alias method:
+     * pick a column at random, then either that station or the one it's paired with.
+     */
+    static class Sampler {
+        private final double[] probability;
+        private final int[] alias;
+
+        Sampler(double[] weights) {
+            int n = weights.length;
+            probability = new double[n];
+            alias = new int[n];
+            double total = 0;
+            for (double w : weights) {
+                total += w;
+            }
+            double[] scaled = new double[n];
+            int[] small = new int[n];
+            int[] large = new int[n];
+            int smalls = 0;
+            int larges = 0;
+            for (int i = 0; i < n; i++) {
+                scaled[i] = weights[i] * n / total;
+                if (scaled[i] < 1) {
+                    small[smalls++] = i;
+                } else {
+                    large[larges++] = i;
+                }
+            }
+            while (smalls > 0 && larges > 0) {
+                int s = small[--smalls];
+                int l = large[--larges];
+                probability[s] = scaled[s];
+                alias[s] = l;
+                scaled[l] -= 1 - scaled[s];
+                if (scaled[l] < 1) {
+                    small[smalls++] = l;
+                } else {
+                    large[larges++] = l;
+                }
+            }
+            // whatever is left over is as near to 1 as rounding allows
+            while (larges > 0) {
+                probability[large[--larges]] = 1;
+            }
+            while (smalls > 0) {
+                probability[small[--smalls]] = 1;
+            }
+        }
+
+        int next(SplittableRandom random) {
+            int column = random.nextInt(probability.length);
+            return random.nextDouble() < probability[column] ? column : alias[column];
+        }
+    }
+
+    /**
+     * Hands out the places in the file for the slices in order, so the file comes out the same
+     * whichever thread finishes first. A slice only waits for the ones before it to know their
+     * length, not for them to be written.
+     */
+    static class Placer {
+        private long nextSlice;
+        private long position;
+
+        synchronized long place(long slice, int length) throws InterruptedException {
+            while (slice != nextSlice) {
+                wait();
+            }
+            long at = position;
+            position += length;
+            nextSlice++;
+            notifyAll();
+            return at;
+        }
+    }
+
+    // the results for the rows each thread has made
+    static class Totals {
+        final long[] counts;
+        final long[] totals;
+        final int[] mins;
+        final int[] maxs;
+
+        Totals(int stations) {
+            counts = new long[stations];
+            totals = new long[stations];
+            mins = new int[stations];
+            maxs = new int[stations];
+            Arrays.fill(mins, Integer.MAX_VALUE);
+            Arrays.fill(maxs, Integer.MIN_VALUE);
+        }
+
+        void add(int station, int tenths) {
+            counts[station]++;
+            totals[station] += tenths;
+            if (tenths < mins[station]) {
+                mins[station] = tenths;
+            }
+            if (tenths > maxs[station]) {
+                maxs[station] = tenths;
+            }
+        }
+
+        void add(Totals other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+                totals[i] += other.totals[i];
+                mins[i] = Math.min(mins[i], other.mins[i]);
+                maxs[i] = Math.max(maxs[i], other.maxs[i]);
+            }
+        }
+
+        Results toResults(byte[][] names) {
+            Results results = new Results();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    // leave off the ';'
+                    results.add(names[i], 0, names[i].length - 1, counts[i], totals[i], mins[i], maxs[i]);
+                }
+            }
+            return results;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package common;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Turns the command line arguments into a list of files to read. Each argument can be
+ * a file, a directory (everything in it, including subdirectories) or a glob pattern, eg.
+ * <pre>
+ * java arraymaps.ArrayMapChunks measurements.txt 'shards/2024-06-*.txt' archive/
+ * </pre>
+ * Glob patterns need quoting so the shell doesn't expand them first, although that works too
+ * as long as there aren't too many files for the command line.
+ */
+public class InputFiles {
+
+    public static List<Path> resolve(String... args) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (String arg : args) {
+            if (isGlob(arg)) {
+                files.addAll(glob(arg));
+            } else {
+                Path path = Paths.get(arg);
+                if (Files.isDirectory(path)) {
+                    files.addAll(list(path, p -> true));
+                } else {
+                    files.add(path);
+                }
+            }
+        }
+        if (files.isEmpty()) {
+            throw new NoSuchFileException(String.join(" ", args), null, "no input files found");
+        }
+        return files;
+    }
+
+    private static boolean isGlob(String arg) {
+        for (char c : arg.toCharArray()) {
+            if (c == '*' || c == '?' || c == '[' || c == '{') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<Path> glob(String pattern) throws IOException {
+        // walk from the last directory before the first wildcard
+        Path pathPattern = Paths.get(pattern);
+        Path base = pathPattern.isAbsolute() ? pathPattern.getRoot() : Paths.get("");
+        for (Path part : pathPattern) {
+            if (isGlob(part.toString())) {
+                break;
+            }
+            base = base.resolve(part);
+        }
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        if (!Files.isDirectory(base)) {
+            return List.of();
+        }
+        return list(base, matcher);
+    }
+
+    // regular files only, skipping hidden ones, in name order so runs are repeatable
+    private static List<Path> list(Path directory, PathMatcher matcher) throws IOException {
+        Path start = directory.toString().isEmpty() ? Paths.get(".") : directory;
+        try (Stream<Path> paths = Files.walk(start)) {
+            return paths.map(p -> directory.toString().isEmpty() ? start.relativize(p) : p)
+                    .filter(Files::isRegularFile)
+                    .filter(p -> !p.getFileName().toString().startsWith("."))
+                    .filter(matcher::matches)
+                    .sorted()
+                    .toList();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks ArrayMapQueuedThreads still fits in a small heap on a machine with a lot of cores,
+ * which it didn't when every thread had its own 1Mb buffer and table.
+ * <pre>
+ * java -cp 1brc.jar common.MemoryBudgetCheck [directory for the test file] [rows]
+ * </pre>
+ * It writes a file with GenerateMeasurements (20 million rows by default, and the usual 413
+ * stations) and the answer it should give next to it, then runs ArrayMapQueuedThreads on it in
+ * another JVM with -Xmx64m, -XX:ActiveProcessorCount=64 and -Dmemory.budget=64000000, and checks
+ * the station lines are the same as the reference. -Dbudget.heap, -Dbudget.cores and
+ * -Dbudget.bytes change those (-Dbudget.bytes=0 runs it without a budget), and -Dbudget.timeout
+ * (seconds, default 300) stops a run which gets stuck.
+ * <p>
+ * It exits with 1 if the run ran out of memory, failed in some other way or got a different
+ * answer, so it can go in a build. The output of a failed run is kept, and the end of it is
+ * printed.
+ */
+public class MemoryBudgetCheck {
+
+    private static final String ENGINE = "arraymaps.ArrayMapQueuedThreads";
+    private static final String HEAP = System.getProperty("budget.heap", "64m");
+    private static final int CORES = Integer.getInteger("budget.cores", 64);
+    private static final long BUDGET = Long.getLong("budget.bytes", 64_000_000);
+    private static final long TIMEOUT_SECONDS = Long.getLong("budget.timeout", 300);
+    // how much of a failed run's output to print
+    private static final int TAIL_LINES = 20;
+
+    public static void main(String[] args) throws Exception {
+        Path directory = Paths.get(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+        long rows = args.length > 1 ? Long.parseLong(args[1].replace("_", "")) : 20_000_000L;
+        Path folder = directory.resolve("budget-" + rows);
+        Set<String> expected = input(folder, rows);
+
+        List<String> command = CdsLauncher.javaCommand();
+        command.add("-Xmx" + HEAP);
+        command.add("-XX:ActiveProcessorCount=" + CORES);
+        if (BUDGET > 0) {
+            command.add("-Dmemory.budget=" + BUDGET);
+        }
+        command.add(ENGINE);
+
+        Path output = Files.createTempFile("budget", ".out");
+        long start = System.nanoTime();
+        boolean finished = runChild(folder, command, output);
+        long ms = (System.nanoTime() - start) / 1_000_000;
+        String out = new String(Files.readAllBytes(output), StandardCharsets.UTF_8);
+        String outcome = !finished ? (out.contains("OutOfMemoryError") ? "FAILED, out of memory" : "FAILED")
+                : !stations(out).equals(expected) ? "FAILED, different answers"
+                : "ok";
+
+        System.out.printf("%s with -Xmx%s, %d cores and %s: %s in %d ms%n", ENGINE, HEAP, CORES,
+                BUDGET > 0 ? "a budget of " + BUDGET + " bytes" : "no budget", outcome, ms);
+        if (!outcome.equals("ok")) {
+            List<String> lines = out.lines().toList();
+            System.out.println("The output is in " + output + " and ends with:");
+            lines.subList(Math.max(0, lines.size() - TAIL_LINES), lines.size()).forEach(System.out::println);
+            System.exit(1);
+        }
+        Files.delete(output);
+    }
+
+    // the file and its reference are kept, as writing them takes longer than the check
+    private static Set<String> input(Path folder, long rows) throws Exception {
+        Files.createDirectories(folder);
+        Path file = folder.resolve("measurements.txt");
+        Path reference = folder.resolve("expected.txt");
+        if (!Files.exists(file) || !Files.exists(reference)
+                || Files.getLastModifiedTime(reference).compareTo(Files.getLastModifiedTime(file)) < 0) {
+            System.err.println("Writing " + rows + " rows to " + file);
+            Results results = new GenerateMeasurements(1234, 413, "real", "uniform:3:24", "uniform", "normal:10")
+                    .write(file, rows, Runtime.getRuntime().availableProcessors());
+            ByteBuffer formatted = ResultWriter.format(results);
+            byte[] bytes = new byte[formatted.remaining()];
+            formatted.get(bytes);
+            Files.write(reference, bytes);
+        }
+        return stations(Files.readString(reference));
+    }
+
+    private static boolean runChild(Path folder, List<String> command, Path output) throws IOException, InterruptedException {
+        Process p = new ProcessBuilder(command)
+                .directory(folder.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(output.toFile())
+                .start();
+        if (!p.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            p.destroyForcibly().waitFor();
+            return false;
+        }
+        return p.exitValue() == 0;
+    }
+
+    private static Set<String> stations(String output) {
+        Set<String> stations = new HashSet<>();
+        for (String line : output.lines().toList()) {
+            // only the station lines, not the timings or anything else the attempt prints
+            if (line.contains("=") && line.contains("/")) {
+                stations.add(line);
+            }
+        }
+        return stations;
+    }
+}
@@ -0,0 +1,57 @@
+package common;
+
+import java.util.Random;
+
+/**
+ * The hash the newer engines use for station names, in place of 31 * h + b.
+ * <p>
+ * With 31 * h + b it's easy to make as many names as you like with the same hash ("Aa" and
+ * "BB" are the classic pair, and any mix of them gives more), or with the same bottom 13 bits
+ * so they all want the same slot of an 8192 entry table. Since the array maps tell stations
+ * apart by their hash alone, the first lot get added together and the second lot pile up in
+ * one place. Even with names nobody picked, a 32 bit hash isn't really enough to go on: with
+ * 30,000 stations there's about a 1 in 10 chance two of them share one.
+ * <p>
+ * This is 64 bit FNV-1a, which costs the same per byte (a 64 bit multiply is no slower than
+ * a 32 bit one), started from a random number picked when the JVM starts. Which names collide
+ * changes from run to run and can't be worked out in advance, and the chance of any two of
+ * 30,000 stations having the same hash is around 1 in 40 billion, so matching on the hash
+ * alone is still safe. It isn't cryptographic, but it doesn't need to be: anyone who can
+ * read the JVM's memory to find the seed can just change the answers.
+ * <p>
+ * The engines work it out inline while looking for the ';':
+ * <pre>
+ * h = NameHash.SEED;
+ * for each byte b of the name: h = (h ^ b) * NameHash.PRIME;
+ * </pre>
+ * -Dhash.seed fixes the seed, which is only useful for repeating a run exactly.
+ */
+public final class NameHash {
+
+    public static final long SEED = Long.getLong("hash.seed", new Random().nextLong());
+    public static final long PRIME = 0x100000001B3L;
+
+    private NameHash() {
+    }
+
+    public static long hash(byte[] buffer, int offset, int length) {
+        long h = SEED;
+        for (int i = offset; i < offset + length; i++) {
+            h = (h ^ buffer[i]) * PRIME;
+        }
+        return h;
+    }
+
+    public static long hash(byte[] name) {
+        return hash(name, 0, name.length);
+    }
+
+    /**
+     * The last step is a multiply, so the top bits are the best mixed. Fold them into the
+     * bottom ones before masking off a slot number.
+     */
+    public static int spread(long h) {
+        int x = (int) (h ^ (h >>> 32));
+        return x ^ (x >>> 16);
+    }
+}
@@ -0,0 +1,191 @@
+package common;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * Reads and writes the per-station results for part of the input, so the work can be split
+ * between several processes, or several machines sharing a filesystem, and merged afterwards.
+ * <p>
+ * The format is deliberately simple and versioned so that workers and coordinators from
+ * different builds can tell when they don't understand each other. All numbers are big-endian:
+ * <pre>
+ * int    magic "1BRP"
+ * short  version, 3 if there are statistics and 1 if not, so older builds can still read them
+ * byte   flags, bit 0 set if histograms follow each station, bit 1 for statistics
+ * (if flags bit 1) UTF  which statistics, see Statistics.describe(), eg. "variance,above:30.0"
+ * (if flags bit 1) UTF  for seen, the one input file the positions are in, or "" without seen
+ * long   total number of rows, as a sanity check
+ * int    number of stations, then for each one:
+ *   short  length of the name, followed by the UTF-8 bytes of the name
+ *   long   count
+ *   long   sum of the temperatures in tenths of a degree
+ *   int    minimum, in tenths
+ *   int    maximum, in tenths
+ *   (if flags bit 0) short number of buckets followed by that many longs, see Results
+ *   (if flags bit 1) short number of figures followed by that many longs, see Statistics
+ * </pre>
+ * The statistics are only any use merged with the same ones, so reading a file with different
+ * statistics (or thresholds) to the ones this JVM was started with, or merging files whose
+ * first and last readings come from different inputs, is an error rather than a wrong answer.
+ * Version 2 files didn't say which statistics they had, so they can't be read.
+ */
+public class PartialAggregates {
+
+    private static final int MAGIC = 0x31425250; // "1BRP"
+    private static final int VERSION = 3;
+    private static final int HAS_HISTOGRAMS = 1;
+    private static final int HAS_STATISTICS = 2;
+
+    public static void write(Path file, Results results) throws IOException {
+        write(file, results, "");
+    }
+
+    /**
+     * @param input with -Dstats=seen, the one file the results are from, so that merging can
+     *              check they're all from the same one.
+     */
+    public static void write(Path file, Results results, String input) throws IOException {
+        boolean histograms = false;
+        boolean statistics = Statistics.ENABLED;
+        for (int i = 0; i < results.size(); i++) {
+            histograms |= results.histogram(i) != null;
+        }
+        // write to a temporary file first, something may be polling for the finished file
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeShort(statistics ? VERSION : 1);
+            out.writeByte((histograms ? HAS_HISTOGRAMS : 0) | (statistics ? HAS_STATISTICS : 0));
+            if (statistics) {
+                out.writeUTF(Statistics.describe());
+                out.writeUTF(Statistics.SEEN ? input : "");
+            }
+            out.writeLong(results.totalCount());
+            out.writeInt(results.size());
+            for (int i = 0; i < results.size(); i++) {
+                byte[] name = results.name(i);
+                out.writeShort(name.length);
+                out.write(name);
+                out.writeLong(results.count(i));
+                out.writeLong(results.total(i));
+                out.writeInt(results.min(i));
+                out.writeInt(results.max(i));
+                if (histograms) {
+                    long[] h = results.histogram(i);
+                    out.writeShort(h == null ? 0 : h.length);
+                    if (h != null) {
+                        for (long c : h) {
+                            out.writeLong(c);
+                        }
+                    }
+                }
+                if (statistics) {
+                    long[] s = results.statistics(i);
+                    out.writeShort(s == null ? 0 : s.length);
+                    if (s != null) {
+                        for (long figure : s) {
+                            out.writeLong(figure);
+                        }
+                    }
+                }
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read and merge several partial files, checking that any first and last readings are all
+     * from the same input.
+     */
+    public static Results readAll(List<Path> files) throws IOException {
+        Results results = new Results();
+        String input = null;
+        Path inputFrom = null;
+        for (Path file : files) {
+            String[] fileInput = new String[1];
+            results.merge(read(file, fileInput));
+            if (Statistics.SEEN) {
+                if (input == null) {
+                    input = fileInput[0];
+                    inputFrom = file;
+                } else if (!input.equals(fileInput[0])) {
+                    throw new IOException("Can't merge the first and last readings of " + inputFrom + " (from "
+                            + input + ") and " + file + " (from " + fileInput[0] + "), they're for different inputs");
+                }
+            }
+        }
+        return results;
+    }
+
+    public static Results read(Path file) throws IOException {
+        return read(file, new String[1]);
+    }
+
+    // input[0] is set to the input the first and last readings are from, if there are any
+    private static Results read(Path file, String[] input) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a partial aggregate file");
+            }
+            int version = in.readUnsignedShort();
+            if (version > VERSION) {
+                throw new IOException(file + " is version " + version + ", we only understand up to " + VERSION);
+            }
+            int flags = in.readByte();
+            boolean histograms = (flags & HAS_HISTOGRAMS) != 0;
+            boolean statistics = (flags & HAS_STATISTICS) != 0;
+            if (statistics && version < 3) {
+                throw new IOException(file + " is version " + version + ", which doesn't say which statistics it has");
+            }
+            String stats = statistics ? in.readUTF() : "";
+            input[0] = statistics ? in.readUTF() : "";
+            if (!stats.equals(Statistics.describe())) {
+                throw new IOException(file + " was made with -Dstats=" + stats + " but this is running with -Dstats="
+                        + Statistics.describe() + ", they can't be merged");
+            }
+            long rows = in.readLong();
+            int stations = in.readInt();
+
+            Results results = new Results();
+            for (int s = 0; s < stations; s++) {
+                byte[] name = new byte[in.readUnsignedShort()];
+                in.readFully(name);
+                int index = results.add(name, in.readLong(), in.readLong(), in.readInt(), in.readInt());
+                if (histograms) {
+                    int buckets = in.readUnsignedShort();
+                    if (buckets > 0) {
+                        if (buckets != Results.HISTOGRAM_BUCKETS) {
+                            throw new IOException(file + " has histograms with " + buckets + " buckets");
+                        }
+                        long[] h = new long[buckets];
+                        for (int b = 0; b < buckets; b++) {
+                            h[b] = in.readLong();
+                        }
+                        results.addHistogram(index, h);
+                    }
+                }
+                if (statistics) {
+                    int figures = in.readUnsignedShort();
+                    if (figures > 0) {
+                        if (figures != Statistics.SIZE) {
+                            throw new IOException(file + " has " + figures + " statistics per station");
+                        }
+                        long[] values = new long[figures];
+                        for (int f = 0; f < figures; f++) {
+                            values[f] = in.readLong();
+                        }
+                        results.addStatistics(index, values, 0);
+                    }
+                }
+            }
+            if (results.totalCount() != rows) {
+                throw new IOException(file + " is corrupt, the station counts don't add up to " + rows);
+            }
+            return results;
+        }
+    }
+}
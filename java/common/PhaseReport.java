@@ -0,0 +1,94 @@
+package common;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads a flight recording and prints how long each phase took, as JSON, eg.
+ * <pre>
+ * {"wallMs": 1234.5, "phases": {
+ *   "read": {"events": 53, "threads": 4, "totalMs": 210.3, "maxMs": 9.1, "bytes": 55574528, "rows": 0, "collisions": 0},
+ *   ...
+ * }}
+ * </pre>
+ * totalMs adds up the time in every thread, so for phases running in parallel it can be more
+ * than wallMs, which is from the start of the first event to the end of the last.
+ */
+public class PhaseReport {
+
+    private static final Map<String, String> PHASES = new LinkedHashMap<>();
+
+    static {
+        PHASES.put("onebrc.ChunkRead", "read");
+        PHASES.put("onebrc.ChunkParsed", "parse");
+        PHASES.put("onebrc.FragmentsJoined", "stitch");
+        PHASES.put("onebrc.ResultsMerged", "merge");
+        PHASES.put("onebrc.OutputWritten", "output");
+    }
+
+    static class Phase {
+        long events;
+        long nanos;
+        long maxNanos;
+        long bytes;
+        long rows;
+        long collisions;
+        final Set<Long> threads = new HashSet<>();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("usage: PhaseReport <recording.jfr>");
+            System.exit(2);
+        }
+        Map<String, Phase> phases = new LinkedHashMap<>();
+        for (String phase : PHASES.values()) {
+            phases.put(phase, new Phase());
+        }
+        Instant first = null;
+        Instant last = null;
+        for (RecordedEvent e : RecordingFile.readAllEvents(Paths.get(args[0]))) {
+            String phaseName = PHASES.get(e.getEventType().getName());
+            if (phaseName == null) {
+                continue;
+            }
+            Phase phase = phases.get(phaseName);
+            long nanos = e.getDuration().toNanos();
+            phase.events++;
+            phase.nanos += nanos;
+            phase.maxNanos = Math.max(phase.maxNanos, nanos);
+            phase.bytes += e.hasField("bytes") ? e.getLong("bytes") : 0;
+            phase.rows += e.hasField("rows") ? e.getLong("rows") : 0;
+            phase.collisions += e.hasField("collisions") ? e.getLong("collisions") : 0;
+            if (e.getThread() != null) {
+                phase.threads.add(e.getThread().getJavaThreadId());
+            }
+            first = first == null || e.getStartTime().isBefore(first) ? e.getStartTime() : first;
+            last = last == null || e.getEndTime().isAfter(last) ? e.getEndTime() : last;
+        }
+
+        StringBuilder json = new StringBuilder();
+        double wall = first == null ? 0 : Duration.between(first, last).toNanos() / 1e6;
+        json.append(String.format(Locale.ROOT, "{\"wallMs\": %.1f, \"phases\": {", wall));
+        String separator = "\n";
+        for (Map.Entry<String, Phase> entry : phases.entrySet()) {
+            Phase p = entry.getValue();
+            json.append(separator).append(String.format(Locale.ROOT,
+                    "  \"%s\": {\"events\": %d, \"threads\": %d, \"totalMs\": %.1f, \"maxMs\": %.1f, \"bytes\": %d, \"rows\": %d, \"collisions\": %d}",
+                    entry.getKey(), p.events, p.threads.size(), p.nanos / 1e6, p.maxNanos / 1e6, p.bytes, p.rows, p.collisions));
+            separator = ",\n";
+        }
+        json.append("\n}}");
+        System.out.println(json);
+    }
+}
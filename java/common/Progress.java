@@ -0,0 +1,153 @@
+package common;
+
+import java.util.Locale;
+
+/**
+ * Counts the bytes and rows each worker has processed, so a long run can show it's getting
+ * somewhere instead of looking hung until the results come out.
+ * <p>
+ * Each worker only ever writes its own counters, once per block, using plain writes, and
+ * readers add them up whenever they want a total. The values they see may be slightly out of
+ * date but that doesn't matter for a progress display. The counters for different workers are
+ * 128 bytes apart in the array so no two workers share a cache line (or the pair of lines the
+ * CPU fetches together), otherwise every update would be fighting the other cores for it.
+ * <p>
+ * -Dprogress=true prints a line to stderr every -Dprogress.interval ms (default 1000) with the
+ * throughput and how long is left. -Dprogress.jmx=true makes the same numbers available as an
+ * MBean. -Dprogress.counters=false turns the counting off altogether, to measure what it costs.
+ */
+public class Progress implements ProgressMBean {
+
+    public static final boolean COUNTERS = !"false".equals(System.getProperty("progress.counters"));
+    private static final boolean PRINT = Boolean.getBoolean("progress");
+    private static final long INTERVAL = Long.getLong("progress.interval", 1000);
+    private static final boolean JMX = Boolean.getBoolean("progress.jmx");
+    private static final String MBEAN_NAME = "onebrc:type=Progress";
+
+    // 16 longs = 128 bytes between each worker's counters, and before the first one
+    private static final int STRIDE = 16;
+    private static final int BYTES = 0;
+    private static final int ROWS = 1;
+
+    private final long[] counters;
+    private final int workers;
+    private final long totalBytes;
+    private final long startTime = System.nanoTime();
+    private Thread printer;
+
+    public Progress(int workers, long totalBytes) {
+        this.workers = workers;
+        this.totalBytes = totalBytes;
+        this.counters = new long[(workers + 2) * STRIDE];
+    }
+
+    /**
+     * Called by a worker when it finishes a block. Only worker number 'worker' may call this.
+     */
+    public void add(int worker, long bytes, long rows) {
+        if (COUNTERS) {
+            int i = (worker + 1) * STRIDE;
+            counters[i + BYTES] += bytes;
+            counters[i + ROWS] += rows;
+        }
+    }
+
+    /**
+     * Start printing and/or registering the MBean, if they were asked for.
+     */
+    public Progress start() {
+        if (JMX) {
+            try {
+                java.lang.management.ManagementFactory.getPlatformMBeanServer()
+                        .registerMBean(this, new javax.management.ObjectName(MBEAN_NAME));
+            } catch (Exception e) {
+                System.err.println("Couldn't register " + MBEAN_NAME + ": " + e);
+            }
+        }
+        if (PRINT) {
+            printer = new Thread(() -> {
+                try {
+                    while (true) {
+                        Thread.sleep(INTERVAL);
+                        System.err.println(status());
+                    }
+                } catch (InterruptedException e) {
+                    // finished
+                }
+            }, "progress");
+            printer.setDaemon(true);
+            printer.start();
+        }
+        return this;
+    }
+
+    public void stop() {
+        if (printer != null) {
+            printer.interrupt();
+            System.err.println(status());
+        }
+        if (JMX) {
+            try {
+                java.lang.management.ManagementFactory.getPlatformMBeanServer()
+                        .unregisterMBean(new javax.management.ObjectName(MBEAN_NAME));
+            } catch (Exception e) {
+                // already gone
+            }
+        }
+    }
+
+    public String status() {
+        double eta = getEtaSeconds();
+        return String.format(Locale.ROOT, "%5.1f%%  %8.1f Mb/s  %7.2fM rows/s  ETA %s",
+                getPercentDone(), getBytesPerSecond() / (1024 * 1024), getRowsPerSecond() / 1e6,
+                eta < 0 ? "?" : String.format(Locale.ROOT, "%.0f s", eta));
+    }
+
+    private long sum(int counter) {
+        long total = 0;
+        for (int w = 0; w < workers; w++) {
+            total += counters[(w + 1) * STRIDE + counter];
+        }
+        return total;
+    }
+
+    private double seconds() {
+        return (System.nanoTime() - startTime) / 1e9;
+    }
+
+    @Override
+    public long getBytesProcessed() {
+        return sum(BYTES);
+    }
+
+    @Override
+    public long getRowsProcessed() {
+        return sum(ROWS);
+    }
+
+    @Override
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    @Override
+    public double getPercentDone() {
+        return totalBytes == 0 ? 100 : 100.0 * getBytesProcessed() / totalBytes;
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return getBytesProcessed() / seconds();
+    }
+
+    @Override
+    public double getRowsPerSecond() {
+        return getRowsProcessed() / seconds();
+    }
+
+    @Override
+    public double getEtaSeconds() {
+        long done = getBytesProcessed();
+        return done == 0 ? -1 : (totalBytes - done) / (done / seconds());
+    }
+}
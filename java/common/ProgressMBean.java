@@ -0,0 +1,24 @@
+package common;
+
+/**
+ * What Progress shows through JMX, eg. in JConsole or VisualVM under onebrc:type=Progress.
+ */
+public interface ProgressMBean {
+
+    long getBytesProcessed();
+
+    long getRowsProcessed();
+
+    long getTotalBytes();
+
+    double getPercentDone();
+
+    double getBytesPerSecond();
+
+    double getRowsPerSecond();
+
+    /**
+     * @return estimated seconds until the end, or -1 if we can't tell yet.
+     */
+    double getEtaSeconds();
+}
@@ -0,0 +1,218 @@
+package common;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the final results for input files we have already processed, so running the same
+ * query again on an unchanged dump doesn't have to re-read all 13Gb of it.
+ * <p>
+ * Files are identified by their path, size, modification time and inode, plus a fingerprint
+ * taken from a handful of small samples spread through the file. That's only a few reads,
+ * so checking the cache takes milliseconds, but it should catch a file being rewritten in
+ * place with the same size and a restored timestamp.
+ * <p>
+ * Each entry is a small binary file in the cache directory. After storing a new entry, any
+ * entries older than the maximum age are removed, then the least recently used ones until
+ * the directory is under the size limit.
+ * <p>
+ * Switched off unless a cache directory is given, eg.
+ * -Dcache.dir=/tmp/1brc-cache -Dcache.maxBytes=10000000 -Dcache.maxAgeDays=7
+ */
+public class ResultCache {
+
+    private static final int MAGIC = 0x31425243; // "1BRC"
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".results";
+
+    // fingerprint samples, spread evenly from the start to the end of the file
+    private static final int SAMPLES = 16;
+    private static final int SAMPLE_SIZE = 4096;
+
+    private final Path directory;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+
+    public ResultCache(Path directory, long maxBytes, long maxAgeMillis) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * @return the cache configured by the system properties, or null if caching is switched off.
+     */
+    public static ResultCache fromSystemProperties() {
+        String dir = System.getProperty("cache.dir");
+        if (dir == null) {
+            return null;
+        }
+        long maxBytes = Long.getLong("cache.maxBytes", 64L * 1024 * 1024);
+        long maxAgeDays = Long.getLong("cache.maxAgeDays", 30);
+        return new ResultCache(Paths.get(dir), maxBytes, maxAgeDays * 24 * 60 * 60 * 1000);
+    }
+
+    /**
+     * @return the stored results for this file, or null if we haven't seen this version of it.
+     */
+    public Results lookup(Path file) throws IOException {
+        Key key = Key.of(file);
+        Path entry = directory.resolve(key.fileName());
+        if (!Files.exists(entry)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !key.matches(in)) {
+                return null;
+            }
+            Results results = new Results();
+            int stations = in.readInt();
+            for (int i = 0; i < stations; i++) {
+                byte[] name = new byte[in.readUnsignedShort()];
+                in.readFully(name);
+                results.add(name, in.readLong(), in.readLong(), in.readInt(), in.readInt());
+            }
+            // touch the entry so eviction treats it as recently used
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            return results;
+        } catch (EOFException e) {
+            return null; // truncated entry, treat it as a miss and it'll be overwritten
+        }
+    }
+
+    public void store(Path file, Results results) throws IOException {
+        Files.createDirectories(directory);
+        Key key = Key.of(file);
+        Path temp = Files.createTempFile(directory, "entry", ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            key.write(out);
+            out.writeInt(results.size());
+            for (int i = 0; i < results.size(); i++) {
+                byte[] name = results.name(i);
+                out.writeShort(name.length);
+                out.write(name);
+                out.writeLong(results.count(i));
+                out.writeLong(results.total(i));
+                out.writeInt(results.min(i));
+                out.writeInt(results.max(i));
+            }
+        }
+        // other processes may be looking at the cache, so don't let them see half an entry
+        Files.move(temp, directory.resolve(key.fileName()),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        evict();
+    }
+
+    private void evict() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).forEach(entries::add);
+        }
+        long now = System.currentTimeMillis();
+        long totalSize = 0;
+        List<Path> kept = new ArrayList<>();
+        for (Path p : entries) {
+            if (now - Files.getLastModifiedTime(p).toMillis() > maxAgeMillis) {
+                Files.deleteIfExists(p);
+            } else {
+                totalSize += Files.size(p);
+                kept.add(p);
+            }
+        }
+        if (totalSize <= maxBytes) {
+            return;
+        }
+        kept.sort(Comparator.comparingLong(ResultCache::lastModified));
+        for (Path p : kept) {
+            if (totalSize <= maxBytes) {
+                break;
+            }
+            totalSize -= Files.size(p);
+            Files.deleteIfExists(p);
+        }
+    }
+
+    private static long lastModified(Path p) {
+        try {
+            return Files.getLastModifiedTime(p).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Everything we use to decide whether a file is the same as the one we cached.
+     */
+    record Key(String path, long size, long modified, long inode, long fingerprint) {
+
+        static Key of(Path file) throws IOException {
+            Path path = file.toAbsolutePath().normalize();
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            long inode;
+            try {
+                inode = ((Number) Files.getAttribute(path, "unix:ino")).longValue();
+            } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                Object fileKey = attributes.fileKey();
+                inode = fileKey == null ? 0 : fileKey.hashCode();
+            }
+            return new Key(path.toString(), attributes.size(),
+                    attributes.lastModifiedTime().toMillis(), inode,
+                    fingerprint(path, attributes.size()));
+        }
+
+        // FNV-1a over a few blocks spread through the file
+        static long fingerprint(Path path, long size) throws IOException {
+            long hash = 0xcbf29ce484222325L;
+            ByteBuffer sample = ByteBuffer.allocate(SAMPLE_SIZE);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long step = Math.max(0, size - SAMPLE_SIZE) / (SAMPLES - 1);
+                for (int s = 0; s < SAMPLES; s++) {
+                    sample.clear();
+                    channel.read(sample, s * step);
+                    sample.flip();
+                    while (sample.hasRemaining()) {
+                        hash ^= sample.get();
+                        hash *= 0x100000001b3L;
+                    }
+                }
+            }
+            return hash;
+        }
+
+        String fileName() {
+            long h = fingerprint;
+            for (byte b : path.getBytes(StandardCharsets.UTF_8)) {
+                h = 31 * h + b;
+            }
+            h = 31 * h + size;
+            h = 31 * h + modified;
+            h = 31 * h + inode;
+            return Long.toHexString(h) + SUFFIX;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(path);
+            out.writeLong(size);
+            out.writeLong(modified);
+            out.writeLong(inode);
+            out.writeLong(fingerprint);
+        }
+
+        // the file name is only a hash, so check the full key to rule out a clash
+        boolean matches(DataInputStream in) throws IOException {
+            return path.equals(in.readUTF()) && size == in.readLong() && modified == in.readLong()
+                    && inode == in.readLong() && fingerprint == in.readLong();
+        }
+    }
+}
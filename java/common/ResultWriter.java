@@ -0,0 +1,161 @@
+package common;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Writes the final results out in the same format as expected.1234.txt, eg.
+ * <pre>
+ * Abha=-34.5/18.0/67.1
+ * </pre>
+ * Stations are sorted on the raw UTF-8 bytes of their names, which gives the same order as
+ * sorting by code point, so we never need to turn the names into Strings.
+ * <p>
+ * The mean is worked out using integer arithmetic on the tenths and rounded half up, so there are
+ * no floating point rounding errors. All the output is built up in a single buffer and written
+ * to stdout in one go rather than a couple of System.out calls per station.
+ */
+public class ResultWriter {
+
+    // the longest line for a station: '=' + 3 numbers of up to 20 characters + 2 '/' + '\n'
+    private static final int MAX_LINE_OVERHEAD = 64;
+
+    private static boolean framed;
+
+    /**
+     * Used when running under the FastExit launcher. The output is preceded by its length so the
+     * launcher knows when it has all of it, and stdout is closed straight afterwards.
+     */
+    public static void useFramedOutput() {
+        framed = true;
+    }
+
+    public static void write(Results results) throws IOException {
+        Events.OutputWritten event = null;
+        if (Events.ENABLED) {
+            event = new Events.OutputWritten();
+            event.begin();
+        }
+        ByteBuffer output = format(results);
+        long bytes = output.remaining();
+        // anything still sitting in System.out needs to go first
+        System.out.flush();
+        FileChannel stdout = new FileOutputStream(FileDescriptor.out).getChannel();
+        if (framed) {
+            ByteBuffer header = ByteBuffer.allocate(Long.BYTES).putLong(0, output.remaining());
+            while (header.hasRemaining()) {
+                stdout.write(header);
+            }
+        }
+        while (output.hasRemaining()) {
+            stdout.write(output);
+        }
+        if (framed) {
+            stdout.close();
+        }
+        if (event != null && event.shouldCommit()) {
+            event.stations = results.size();
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    public static ByteBuffer format(Results results) {
+        int stations = results.size();
+        int[] order = sortedOrder(results);
+
+        int capacity = 0;
+        for (int i = 0; i < stations; i++) {
+            capacity += results.name(i).length + MAX_LINE_OVERHEAD;
+        }
+        byte[] out = new byte[capacity];
+        int position = 0;
+        for (int i : order) {
+            byte[] name = results.name(i);
+            System.arraycopy(name, 0, out, position, name.length);
+            position += name.length;
+            out[position++] = '=';
+            position = appendTenths(out, position, results.min(i));
+            out[position++] = '/';
+            position = appendTenths(out, position, mean(results.total(i), results.count(i)));
+            out[position++] = '/';
+            position = appendTenths(out, position, results.max(i));
+            out[position++] = '\n';
+        }
+        return ByteBuffer.wrap(out, 0, position);
+    }
+
+    /**
+     * Mean of the measurements in tenths, rounded half up, eg. 2.25 -> 2.3, -2.25 -> -2.2.
+     * floor((total / count) + 1/2) without going through a double.
+     */
+    static long mean(long total, long count) {
+        return Math.floorDiv(2 * total + count, 2 * count);
+    }
+
+    /**
+     * Write a number of tenths as a decimal with one place, eg. -123 becomes "-12.3".
+     *
+     * @return the position after the last character written.
+     */
+    static int appendTenths(byte[] out, int position, long tenths) {
+        if (tenths < 0) {
+            out[position++] = '-';
+            tenths = -tenths;
+        }
+        long whole = tenths / 10;
+        // count the digits so we can fill them in from the right
+        int digits = 1;
+        for (long w = whole; w >= 10; w /= 10) {
+            digits++;
+        }
+        int end = position + digits;
+        for (int p = end - 1; p >= position; p--) {
+            out[p] = (byte) ('0' + whole % 10);
+            whole /= 10;
+        }
+        out[end] = '.';
+        out[end + 1] = (byte) ('0' + tenths % 10);
+        return end + 2;
+    }
+
+    // Indexes of the stations in name order. A merge sort on the indexes so nothing gets boxed.
+    static int[] sortedOrder(Results results) {
+        int n = results.size();
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        int[] work = new int[n];
+        for (int width = 1; width < n; width *= 2) {
+            for (int left = 0; left < n; left += 2 * width) {
+                int middle = Math.min(left + width, n);
+                int right = Math.min(left + 2 * width, n);
+                int a = left;
+                int b = middle;
+                int w = left;
+                while (a < middle && b < right) {
+                    if (Arrays.compareUnsigned(results.name(order[a]), results.name(order[b])) <= 0) {
+                        work[w++] = order[a++];
+                    } else {
+                        work[w++] = order[b++];
+                    }
+                }
+                while (a < middle) {
+                    work[w++] = order[a++];
+                }
+                while (b < right) {
+                    work[w++] = order[b++];
+                }
+            }
+            int[] swap = order;
+            order = work;
+            work = swap;
+        }
+        return order;
+    }
+}
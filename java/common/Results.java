@@ -0,0 +1,220 @@
+package common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Final per-station aggregates in a compact form which doesn't depend on any one engine.
+ * Each engine copies its own Station table into one of these at the end of a run so the
+ * results can be cached, merged and written out the same way whichever engine made them.
+ * <p>
+ * Temperatures are held as tenths of a degree, as they are in the array-map engines.
+ * Unlike those tables, stations are matched on the full name rather than just the hash,
+ * since this is also used to combine results from files we didn't generate ourselves.
+ * The hash is the seeded one from NameHash rather than 31 * h + b, so nobody can pick a set of
+ * names which all end up in one long run of slots. The array maps send names they can't cope
+ * with here.
+ */
+public class Results {
+
+    /**
+     * Optional histograms have one bucket per whole degree from -100 to +99, anything outside
+     * that range goes in the first or last bucket.
+     */
+    public static final int HISTOGRAM_BUCKETS = 200;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private byte[][] names = new byte[INITIAL_CAPACITY][];
+    private long[] counts = new long[INITIAL_CAPACITY];
+    private long[] totals = new long[INITIAL_CAPACITY];
+    private int[] mins = new int[INITIAL_CAPACITY];
+    private int[] maxs = new int[INITIAL_CAPACITY];
+    private long[][] histograms; // only created if any station has one
+    private long[][] statistics; // the same, for the figures from Statistics
+    private int size;
+
+    // open-addressed index into the arrays above, -1 for an empty slot
+    private int[] slots = newSlots(INITIAL_CAPACITY * 2);
+
+    public int size() {
+        return size;
+    }
+
+    public byte[] name(int i) {
+        return names[i];
+    }
+
+    public long count(int i) {
+        return counts[i];
+    }
+
+    public long total(int i) {
+        return totals[i];
+    }
+
+    public int min(int i) {
+        return mins[i];
+    }
+
+    public int max(int i) {
+        return maxs[i];
+    }
+
+    public long[] histogram(int i) {
+        return histograms == null ? null : histograms[i];
+    }
+
+    /**
+     * @return the station's Statistics figures, or null if they weren't collected.
+     */
+    public long[] statistics(int i) {
+        return statistics == null ? null : statistics[i];
+    }
+
+    /**
+     * Merge in one station's Statistics figures, which start at s[at].
+     */
+    public void addStatistics(int i, long[] s, int at) {
+        if (statistics == null) {
+            statistics = new long[names.length][];
+        }
+        if (statistics[i] == null) {
+            statistics[i] = Statistics.create(1);
+        }
+        Statistics.merge(statistics[i], 0, s, at);
+    }
+
+    public static int histogramBucket(int tenths) {
+        int bucket = Math.floorDiv(tenths, 10) + HISTOGRAM_BUCKETS / 2;
+        return Math.max(0, Math.min(HISTOGRAM_BUCKETS - 1, bucket));
+    }
+
+    public void addHistogram(int i, long[] counts) {
+        if (histograms == null) {
+            histograms = new long[names.length][];
+        }
+        if (histograms[i] == null) {
+            histograms[i] = new long[HISTOGRAM_BUCKETS];
+        }
+        long[] h = histograms[i];
+        for (int b = 0; b < HISTOGRAM_BUCKETS; b++) {
+            h[b] += counts[b];
+        }
+    }
+
+    public long totalCount() {
+        long count = 0;
+        for (int i = 0; i < size; i++) {
+            count += counts[i];
+        }
+        return count;
+    }
+
+    public int add(byte[] name, long count, long total, int min, int max) {
+        return add(name, 0, name.length, count, total, min, max);
+    }
+
+    /**
+     * Add a set of measurements for a station, merging with any we already hold for that name.
+     * The name is only copied if it's a station we haven't seen before.
+     *
+     * @return the index of the station.
+     */
+    public int add(byte[] buffer, int offset, int length, long count, long total, int min, int max) {
+        int h = hash(buffer, offset, length);
+        int mask = slots.length - 1;
+        int slot = h & mask;
+        while (true) {
+            int index = slots[slot];
+            if (index == -1) {
+                break;
+            }
+            byte[] n = names[index];
+            if (Arrays.equals(n, 0, n.length, buffer, offset, offset + length)) {
+                counts[index] += count;
+                totals[index] += total;
+                if (min < mins[index]) {
+                    mins[index] = min;
+                }
+                if (max > maxs[index]) {
+                    maxs[index] = max;
+                }
+                return index;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == names.length) {
+            grow();
+            return add(buffer, offset, length, count, total, min, max);
+        }
+        names[size] = Arrays.copyOfRange(buffer, offset, offset + length);
+        counts[size] = count;
+        totals[size] = total;
+        mins[size] = min;
+        maxs[size] = max;
+        slots[slot] = size;
+        return size++;
+    }
+
+    public void merge(Results other) {
+        Events.ResultsMerged event = null;
+        if (Events.ENABLED) {
+            event = new Events.ResultsMerged();
+            event.begin();
+        }
+        for (int i = 0; i < other.size; i++) {
+            int index = add(other.names[i], other.counts[i], other.totals[i], other.mins[i], other.maxs[i]);
+            if (other.histogram(i) != null) {
+                addHistogram(index, other.histograms[i]);
+            }
+            if (other.statistics(i) != null) {
+                addStatistics(index, other.statistics[i], 0);
+            }
+        }
+        if (event != null && event.shouldCommit()) {
+            event.stations = other.size;
+            event.commit();
+        }
+    }
+
+    public String nameAsString(int i) {
+        return new String(names[i], StandardCharsets.UTF_8);
+    }
+
+    // keep the slot table at most half full so the probe sequences stay short
+    private void grow() {
+        int capacity = names.length * 2;
+        names = Arrays.copyOf(names, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        totals = Arrays.copyOf(totals, capacity);
+        mins = Arrays.copyOf(mins, capacity);
+        maxs = Arrays.copyOf(maxs, capacity);
+        if (histograms != null) {
+            histograms = Arrays.copyOf(histograms, capacity);
+        }
+        if (statistics != null) {
+            statistics = Arrays.copyOf(statistics, capacity);
+        }
+        slots = newSlots(capacity * 2);
+        int mask = slots.length - 1;
+        for (int index = 0; index < size; index++) {
+            int slot = hash(names[index], 0, names[index].length) & mask;
+            while (slots[slot] != -1) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = index;
+        }
+    }
+
+    private static int hash(byte[] buffer, int offset, int length) {
+        return NameHash.spread(NameHash.hash(buffer, offset, length));
+    }
+
+    private static int[] newSlots(int length) {
+        int[] s = new int[length];
+        Arrays.fill(s, -1);
+        return s;
+    }
+}
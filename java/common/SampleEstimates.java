@@ -0,0 +1,239 @@
+package common;
+
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Estimates of every station's mean, with a confidence interval, from a random sample of the
+ * chunks of a file.
+ * <p>
+ * The rows in a chunk aren't independent of each other (the file might be sorted, or written a
+ * day at a time) so the chunks are the sample rather than the rows. For each station the mean
+ * is the ratio of its total to its count over the chunks seen so far, and the interval comes
+ * from how much that ratio varies from chunk to chunk, the usual ratio estimator for cluster
+ * samples:
+ * <pre>
+ * mean = sum(y) / sum(x)
+ * var  = (1 - f) * sum((y - mean * x)^2) / (n - 1) / (n * xbar^2)
+ * </pre>
+ * where x and y are the station's count and total in each of the n chunks (0 for chunks it
+ * wasn't in), xbar is the average x and f the fraction of the file read so far, so the
+ * interval shrinks to nothing once every chunk has been read and the answer is exact. Only
+ * the sums of x^2, x*y and y^2 are kept, not the chunks themselves.
+ * <p>
+ * Only the chunks a station is actually in say anything about how much it varies, so a
+ * station in one chunk would have no variance at all and one in two or three hardly any
+ * to go on, however many chunks had been read. A station's interval is infinite until it's
+ * been in at least minPresent chunks, and then the interval uses Student's t with one fewer
+ * degrees of freedom than that, rather than the normal distribution, which would be too
+ * narrow when there are only a handful.
+ * <p>
+ * The min and max are the lowest and highest readings actually seen, and the count is the
+ * count in the sample scaled up by the fraction of the file it came from. Stations which
+ * aren't in any of the chunks read so far aren't in the estimates at all.
+ * <p>
+ * Not thread safe, the chunks have to be added from one thread at a time.
+ */
+public class SampleEstimates {
+
+    private final long totalBytes;
+    private final int minPresent;
+    private final double z;
+    // count, total, min and max of everything seen, which also numbers the stations
+    private final Results seen = new Results();
+    private double[] xx = new double[1024];
+    private double[] xy = new double[1024];
+    private double[] yy = new double[1024];
+    // how many chunks each station has been in
+    private int[] present = new int[1024];
+    private long chunks;
+    private long bytes;
+
+    /**
+     * @param totalBytes the size of everything the chunks are taken from.
+     * @param confidence how sure the intervals should be, eg. 0.95.
+     * @param minPresent how many chunks a station has to be in before it has an interval, at
+     *                   least 2.
+     */
+    public SampleEstimates(long totalBytes, double confidence, int minPresent) {
+        if (!(confidence > 0 && confidence < 1)) {
+            throw new IllegalArgumentException("The confidence has to be between 0 and 1, not " + confidence);
+        }
+        if (minPresent < 2) {
+            throw new IllegalArgumentException("A station has to be in at least 2 chunks to have an interval, not " + minPresent);
+        }
+        this.totalBytes = totalBytes;
+        this.minPresent = minPresent;
+        this.z = normalQuantile(0.5 + confidence / 2);
+    }
+
+    /**
+     * The point of the standard normal distribution with p of it below, eg. 1.96 for 0.975.
+     * Abramowitz and Stegun 26.2.23, which is good to 0.0005 - plenty for an interval.
+     */
+    static double normalQuantile(double p) {
+        double q = p > 0.5 ? 1 - p : p;
+        double t = Math.sqrt(-2 * Math.log(q));
+        double x = t - (2.515517 + t * (0.802853 + t * 0.010328))
+                / (1 + t * (1.432788 + t * (0.189269 + t * 0.001308)));
+        return p > 0.5 ? x : -x;
+    }
+
+    /**
+     * The point of Student's t distribution with df degrees of freedom which has the same
+     * share of it below as z has of the normal distribution, eg. 2.776 for 1.96 and 4. Exact
+     * for 1 and 2, and otherwise the Cornish-Fisher expansion in Abramowitz and Stegun 26.7.5,
+     * which is within 1% from 3 up.
+     */
+    static double tQuantile(double z, long df) {
+        if (df == 1) {
+            return Math.tan(Math.PI * (cumulativeNormal(z) - 0.5));
+        }
+        if (df == 2) {
+            double p = cumulativeNormal(z);
+            return (2 * p - 1) / Math.sqrt(2 * p * (1 - p));
+        }
+        double z2 = z * z;
+        double g1 = (z2 + 1) * z / 4;
+        double g2 = ((5 * z2 + 16) * z2 + 3) * z / 96;
+        double g3 = (((3 * z2 + 19) * z2 + 17) * z2 - 15) * z / 384;
+        double g4 = ((((79 * z2 + 776) * z2 + 1482) * z2 - 1920) * z2 - 945) * z / 92160;
+        double n = df;
+        return z + (g1 + (g2 + (g3 + g4 / n) / n) / n) / n;
+    }
+
+    // Abramowitz and Stegun 26.2.17, good to 7.5e-8
+    private static double cumulativeNormal(double x) {
+        double t = 1 / (1 + 0.2316419 * Math.abs(x));
+        double d = Math.exp(-x * x / 2) / Math.sqrt(2 * Math.PI);
+        double q = d * t * (0.319381530 + t * (-0.356563782 + t * (1.781477937 + t * (-1.821255978 + t * 1.330274429))));
+        return x > 0 ? 1 - q : q;
+    }
+
+    /**
+     * Add the results from one chunk of the sample.
+     *
+     * @param bytes the size of the chunk.
+     */
+    public void add(Results chunk, long bytes) {
+        for (int i = 0; i < chunk.size(); i++) {
+            int index = seen.add(chunk.name(i), chunk.count(i), chunk.total(i), chunk.min(i), chunk.max(i));
+            if (index == xx.length) {
+                xx = Arrays.copyOf(xx, index * 2);
+                xy = Arrays.copyOf(xy, index * 2);
+                yy = Arrays.copyOf(yy, index * 2);
+                present = Arrays.copyOf(present, index * 2);
+            }
+            double x = chunk.count(i);
+            double y = chunk.total(i);
+            xx[index] += x * x;
+            xy[index] += x * y;
+            yy[index] += y * y;
+            present[index]++;
+        }
+        chunks++;
+        this.bytes += bytes;
+    }
+
+    public long chunks() {
+        return chunks;
+    }
+
+    /**
+     * @return how much of the file the estimates are from, 1 once all of it has been read.
+     */
+    public double fraction() {
+        return totalBytes == 0 ? 1 : (double) bytes / totalBytes;
+    }
+
+    public int size() {
+        return seen.size();
+    }
+
+    /**
+     * @return the estimated mean of station i, in tenths.
+     */
+    public double mean(int i) {
+        return (double) seen.total(i) / seen.count(i);
+    }
+
+    /**
+     * @return half the width of station i's interval, in tenths. Infinite until it's been in
+     * minPresent chunks.
+     */
+    public double halfWidth(int i) {
+        double f = fraction();
+        if (f >= 1) {
+            return 0;
+        }
+        if (present[i] < minPresent) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double mean = mean(i);
+        double residuals = Math.max(0, yy[i] - 2 * mean * xy[i] + mean * mean * xx[i]);
+        double xbar = (double) seen.count(i) / chunks;
+        double variance = (1 - f) * residuals / (chunks - 1) / (chunks * xbar * xbar);
+        return tQuantile(z, present[i] - 1) * Math.sqrt(variance);
+    }
+
+    /**
+     * @return the station with the widest interval, or -1 if there aren't any.
+     */
+    public int widest() {
+        int widest = -1;
+        double width = -1;
+        for (int i = 0; i < seen.size(); i++) {
+            double w = halfWidth(i);
+            if (w > width) {
+                widest = i;
+                width = w;
+            }
+        }
+        return widest;
+    }
+
+    public String name(int i) {
+        return seen.nameAsString(i);
+    }
+
+    /**
+     * @return station i's count in the sample scaled up to the whole file.
+     */
+    public long estimatedCount(int i) {
+        return Math.round(seen.count(i) / fraction());
+    }
+
+    /**
+     * Write every station's estimates, in name order, one to a line:
+     * <pre>
+     * Abha: 18.0 +/- 0.21 (min -12.3, max 54.1, count ~5,234,000)
+     * </pre>
+     * The mean is rounded the same way as the exact answers, and the +/- is in degrees.
+     */
+    public void write(PrintStream out) {
+        byte[] number = new byte[24];
+        StringBuilder text = new StringBuilder();
+        for (int i : ResultWriter.sortedOrder(seen)) {
+            text.append(seen.nameAsString(i)).append(": ");
+            append(text, number, ResultWriter.mean(seen.total(i), seen.count(i)));
+            text.append(String.format(Locale.ROOT, " +/- %.2f (min ", halfWidth(i) / 10));
+            append(text, number, seen.min(i));
+            text.append(", max ");
+            append(text, number, seen.max(i));
+            text.append(String.format(Locale.ROOT, ", count %s%,d)%n", fraction() >= 1 ? "" : "~", estimatedCount(i)));
+        }
+        // the names are UTF-8 whatever the console thinks it is, the same as ResultWriter
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+        out.flush();
+    }
+
+    private static void append(StringBuilder text, byte[] number, long tenths) {
+        int length = ResultWriter.appendTenths(number, 0, tenths);
+        for (int i = 0; i < length; i++) {
+            text.append((char) number[i]);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package common;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the attempts with 1, 2, 4 ... threads, and at several chunk sizes for those which can
+ * change it, on a made up file, to see where they stop getting faster.
+ * <pre>
+ * java -cp 1brc.jar common.ScalingBenchmark [directory for the test file] [size in Mb]
+ * </pre>
+ * The thread count is set with -XX:ActiveProcessorCount, which is what availableProcessors()
+ * returns, as well as -Dthreads, so it works for every attempt. Each setting is timed
+ * -Dscaling.repeats times (default 3) keeping the fastest, then run once more with a flight
+ * recording (see Events) to find how long the threads spent waiting and how long the parts
+ * which only run on one thread took: joining fragments, merging the results and the output.
+ * The idle time is worked out for each thread which reads or parses, between the first block
+ * being read and the last one being parsed, so a thread which ran out of work early shows up.
+ * <p>
+ * Every attempt is run by default. mapped.MappedChunks is run with --enable-preview, and is
+ * skipped if it hasn't been compiled (it needs compiling separately, see its notes).
+ * streams.ParallelStreamGroups does all of its parsing inside one stream call, so the only
+ * thread its recording knows about is main, and its idle figures aren't worth much.
+ * <p>
+ * -Dscaling.engines, -Dscaling.threads (default 1, 2, 4 ... up to the number of cores) and
+ * -Dscaling.chunks (in Mb, default 1,4,16) take comma separated lists. The results go to
+ * scaling.csv, or -Dscaling.csv, with a chart of the speedups on stdout.
+ * -Dscaling.timeout (seconds, default 600) stops any run which gets stuck. Running more threads
+ * than there are cores works, but only shows the cost of the extra threads.
+ */
+public class ScalingBenchmark {
+
+    private static final long MB = 1024 * 1024;
+    // kill any run which takes longer than this, so one stuck attempt doesn't hold up the rest
+    private static final long TIMEOUT_SECONDS = Long.getLong("scaling.timeout", 600);
+
+    // the attempts to run and the property each uses for its chunk size, if it has one
+    static final Map<String, String> ENGINES = new LinkedHashMap<>();
+
+    static {
+        ENGINES.put("arraymaps.ArrayMapChunks", "chunk.size");
+        ENGINES.put("bytebuffer.ByteBufferLoadInThreads", "block.size");
+        ENGINES.put("bytebuffer.ByteBufferInlineFragments", null);
+        ENGINES.put("arraymaps.ArrayMapQueuedThreads", null);
+        ENGINES.put("unsafebuffer.CalculateUnsafeByteBuffer", null);
+        ENGINES.put("bytebuffer.CalculateByteBufferCharArray", null);
+        ENGINES.put("streams.ParallelStreamGroups", null);
+        ENGINES.put("mapped.MappedChunks", "chunk.size");
+    }
+
+    /**
+     * @param idleByThread how much of the time each thread which read or parsed something
+     *                     wasn't, by thread name, in the order they started.
+     */
+    record Result(String engine, long chunkSize, int threads, double seconds,
+                  double idleFraction, Map<String, Double> idleByThread,
+                  double stitchMs, double mergeMs, double outputMs) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path directory = Paths.get(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+        long size = (args.length > 1 ? Long.parseLong(args[1]) : 256) * MB;
+        int repeats = Integer.getInteger("scaling.repeats", 3);
+        List<String> engines = list("scaling.engines", defaultEngines());
+        List<String> threadCounts = list("scaling.threads", defaultThreads());
+        List<String> chunks = list("scaling.chunks", "1,4,16");
+        Path csv = Paths.get(System.getProperty("scaling.csv", "scaling.csv"));
+
+        // the attempts which don't take a file name look for measurements.txt where they're run
+        Path input = directory.resolve("measurements.txt");
+        if (!Files.exists(input) || Files.size(input) < size) {
+            System.err.println("Writing " + size / MB + "Mb to " + input);
+            SyntheticInput.write(input, size, 413, 1);
+        }
+        size = Files.size(input);
+
+        List<Result> results = new ArrayList<>();
+        for (String engine : engines) {
+            String chunkProperty = ENGINES.get(engine);
+            for (String chunk : chunkProperty == null ? List.of("0") : chunks) {
+                long chunkSize = Long.parseLong(chunk) * MB;
+                for (String t : threadCounts) {
+                    int threads = Integer.parseInt(t);
+                    List<String> options = new ArrayList<>();
+                    options.add("-XX:ActiveProcessorCount=" + threads);
+                    options.add("-Dthreads=" + threads);
+                    if (chunkProperty != null) {
+                        options.add("-D" + chunkProperty + "=" + chunkSize);
+                    }
+                    run(directory, engine, options, null); // warm up the page cache
+                    long best = Long.MAX_VALUE;
+                    for (int r = 0; r < repeats; r++) {
+                        best = Math.min(best, run(directory, engine, options, null));
+                    }
+                    Result result = profile(directory, engine, options, chunkSize, threads, best / 1e9);
+                    System.err.printf(Locale.ROOT, "%s %s %d threads: %.2f s%n",
+                            engine, chunkSize == 0 ? "" : chunkSize / MB + "Mb", threads, result.seconds());
+                    results.add(result);
+                }
+            }
+        }
+        writeCsv(csv, results, size);
+        chart(results, size);
+    }
+
+    // everything in ENGINES which has been compiled, the preview ones might not have been
+    static String defaultEngines() {
+        List<String> engines = new ArrayList<>();
+        for (String engine : ENGINES.keySet()) {
+            if (ClassLoader.getSystemResource(engine.replace('.', '/') + ".class") != null) {
+                engines.add(engine);
+            } else {
+                System.err.println("Skipping " + engine + ", it isn't on the classpath");
+            }
+        }
+        return String.join(",", engines);
+    }
+
+    private static String defaultThreads() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        StringBuilder threads = new StringBuilder("1");
+        for (int t = 2; t <= cores; t *= 2) {
+            threads.append(',').append(t);
+        }
+        if (Integer.bitCount(cores) != 1) {
+            threads.append(',').append(cores);
+        }
+        return threads.toString();
+    }
+
+    private static List<String> list(String property, String defaultValue) {
+        List<String> values = new ArrayList<>();
+        for (String value : System.getProperty(property, defaultValue).split(",")) {
+            if (!value.isBlank()) {
+                values.add(value.trim());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return how long the run took in ns, from starting the JVM to it exiting.
+     */
+    static long run(Path directory, String engine, List<String> options, Path recording)
+            throws IOException, InterruptedException {
+        List<String> command = CdsLauncher.javaCommand();
+        command.addAll(options);
+        if (recording != null) {
+            command.add("-XX:StartFlightRecording=filename=" + recording);
+        }
+        addEngine(command, engine);
+        long start = System.nanoTime();
+        Process p = new ProcessBuilder(command)
+                .directory(directory.toFile())
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        if (!p.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            p.destroyForcibly();
+            throw new IOException(engine + " didn't finish within " + TIMEOUT_SECONDS + " s with " + options);
+        }
+        if (p.exitValue() != 0) {
+            throw new IOException(engine + " failed with " + options);
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Add the attempt's class to a java command line, along with anything it needs to run.
+     */
+    static void addEngine(List<String> command, String engine) {
+        if (engine.startsWith("mapped.")) {
+            command.add("--enable-preview");
+            command.add("--enable-native-access=ALL-UNNAMED");
+        }
+        command.add(engine);
+    }
+
+    /**
+     * Run once more with a flight recording, and work out from it how much of the time the
+     * threads were waiting and how long the single threaded parts took.
+     */
+    static Result profile(Path directory, String engine, List<String> options, long chunkSize, int threads,
+                          double seconds) throws IOException, InterruptedException {
+        Path recording = Files.createTempFile("scaling", ".jfr");
+        try {
+            run(directory, engine, options, recording);
+            Instant first = null;
+            Instant last = null;
+            // by thread id, which go up in the order the threads were started
+            Map<Long, Long> busy = new TreeMap<>();
+            Map<Long, String> names = new HashMap<>();
+            double stitch = 0;
+            double merge = 0;
+            double output = 0;
+            for (RecordedEvent e : RecordingFile.readAllEvents(recording)) {
+                String name = e.getEventType().getName();
+                double ms = e.getDuration().toNanos() / 1e6;
+                switch (name) {
+                    case "onebrc.ChunkRead", "onebrc.ChunkParsed" -> {
+                        long thread = e.getThread() == null ? 0 : e.getThread().getJavaThreadId();
+                        busy.merge(thread, e.getDuration().toNanos(), Long::sum);
+                        names.putIfAbsent(thread, e.getThread() == null ? "?" : e.getThread().getJavaName());
+                        first = first == null || e.getStartTime().isBefore(first) ? e.getStartTime() : first;
+                        last = last == null || e.getEndTime().isAfter(last) ? e.getEndTime() : last;
+                    }
+                    case "onebrc.FragmentsJoined" -> stitch += ms;
+                    case "onebrc.ResultsMerged" -> merge += ms;
+                    case "onebrc.OutputWritten" -> output += ms;
+                    default -> {
+                    }
+                }
+            }
+            // of the time between the first read and the last block being parsed, how much
+            // of each thread's time wasn't spent reading or parsing
+            double idle = 0;
+            Map<String, Double> idleByThread = new LinkedHashMap<>();
+            if (first != null) {
+                long window = Math.max(1, java.time.Duration.between(first, last).toNanos());
+                long working = busy.values().stream().mapToLong(Long::longValue).sum();
+                idle = Math.max(0, 1 - (double) working / ((long) threads * window));
+                for (Map.Entry<Long, Long> thread : busy.entrySet()) {
+                    idleByThread.put(names.get(thread.getKey()), Math.max(0, 1 - (double) thread.getValue() / window));
+                }
+            }
+            return new Result(engine, chunkSize, threads, seconds, idle, idleByThread, stitch, merge, output);
+        } finally {
+            Files.deleteIfExists(recording);
+        }
+    }
+
+    private static double baseline(List<Result> results, Result r) {
+        for (Result other : results) {
+            if (other.engine().equals(r.engine()) && other.chunkSize() == r.chunkSize() && other.threads() == 1) {
+                return other.seconds();
+            }
+        }
+        return Double.NaN;
+    }
+
+    static void writeCsv(Path csv, List<Result> results, long size) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(csv))) {
+            out.println("engine,chunk_mb,threads,seconds,mb_per_s,speedup,efficiency,idle_pct,stitch_ms,merge_ms,output_ms,serial_pct,idle_pct_by_thread");
+            for (Result r : results) {
+                double speedup = baseline(results, r) / r.seconds();
+                out.printf(Locale.ROOT, "%s,%s,%d,%.3f,%.1f,%.2f,%.2f,%.1f,%.1f,%.1f,%.1f,%.1f,%s%n",
+                        r.engine(), r.chunkSize() == 0 ? "" : Long.toString(r.chunkSize() / MB), r.threads(),
+                        r.seconds(), size / MB / r.seconds(), speedup, speedup / r.threads(),
+                        100 * r.idleFraction(), r.stitchMs(), r.mergeMs(), r.outputMs(), serialPercent(r),
+                        idleByThread(r, "=", " "));
+            }
+        }
+        System.err.println("Results written to " + csv);
+    }
+
+    private static double serialPercent(Result r) {
+        return (r.stitchMs() + r.mergeMs() + r.outputMs()) / (r.seconds() * 10);
+    }
+
+    // one bar per thread count, as long as the speedup, against a scale up to the most threads
+    static void chart(List<Result> results, long size) {
+        int most = results.stream().mapToInt(Result::threads).max().orElse(1);
+        double scale = 50.0 / most;
+        String previous = null;
+        for (Result r : results) {
+            String heading = r.engine() + (r.chunkSize() == 0 ? "" : ", " + r.chunkSize() / MB + "Mb chunks");
+            if (!heading.equals(previous)) {
+                System.out.println();
+                System.out.println(heading);
+                previous = heading;
+            }
+            double speedup = baseline(results, r) / r.seconds();
+            int ideal = (int) Math.round(r.threads() * scale);
+            StringBuilder bar = new StringBuilder();
+            for (int i = 0; i < Math.max(ideal, (int) Math.round(speedup * scale)); i++) {
+                bar.append(i < Math.round(speedup * scale) ? '#' : i == ideal - 1 ? '|' : ' ');
+            }
+            System.out.printf(Locale.ROOT, "%4d %-52s %5.2fx %4.0f%% eff %6.0f Mb/s  idle %4.1f%%  serial %4.1f%%%s%n",
+                    r.threads(), bar, speedup, 100 * speedup / r.threads(), size / MB / r.seconds(),
+                    100 * r.idleFraction(), serialPercent(r), serialNote(r));
+            if (!r.idleByThread().isEmpty()) {
+                System.out.println("     idle by thread: " + idleByThread(r, " ", ", "));
+            }
+        }
+    }
+
+    // eg. "pool-1-thread-1 3.2%, pool-1-thread-2 11.0%"
+    private static String idleByThread(Result r, String between, String separator) {
+        List<String> threads = new ArrayList<>();
+        for (Map.Entry<String, Double> thread : r.idleByThread().entrySet()) {
+            threads.add(String.format(Locale.ROOT, "%s%s%.1f%%", thread.getKey(), between, 100 * thread.getValue()));
+        }
+        return String.join(separator, threads);
+    }
+
+    // point out which of the single threaded parts was the biggest, if it's worth mentioning
+    private static String serialNote(Result r) {
+        double serial = r.stitchMs() + r.mergeMs() + r.outputMs();
+        if (serialPercent(r) < 1) {
+            return "";
+        }
+        String biggest = r.stitchMs() == Math.max(r.stitchMs(), Math.max(r.mergeMs(), r.outputMs())) ? "stitching"
+                : r.mergeMs() >= r.outputMs() ? "merge" : "output";
+        return String.format(Locale.ROOT, "  (%s %.0f of %.0f ms)", biggest,
+                Math.max(r.stitchMs(), Math.max(r.mergeMs(), r.outputMs())), serial);
+    }
+}
@@ -0,0 +1,95 @@
+package common;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Compares ArrayMapChunks starting with and without an AppCDS archive, see CdsLauncher, on made
+ * up files of 1 Mb, 100 Mb and 1 Gb.
+ * <pre>
+ * java -cp 1brc.jar common.StartupBenchmark [directory for the test files] [repeats]
+ * </pre>
+ * For each run we time from starting the JVM until the first chunk is ready to be parsed,
+ * which is almost all JVM startup and class loading, and until the JVM exits. The test files
+ * are kept, so they only need making once. Both ways run from the same jar, packed from the
+ * classes directory if that's what we were started with, and if the training run doesn't write
+ * an archive it stops there with exit code 1 rather than timing the same thing twice.
+ */
+public class StartupBenchmark {
+
+    private static final String ATTEMPT = "arraymaps.ArrayMapChunks";
+    private static final long MB = 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        Path directory = Paths.get(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+        int repeats = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Path archive = Files.createTempFile("1brc-startup", ".jsa");
+        Files.delete(archive);
+        if (!CdsLauncher.train(archive, ATTEMPT)) {
+            Files.deleteIfExists(CdsLauncher.failed(archive));
+            System.err.println("No archive was written, so there's nothing to compare");
+            System.exit(1);
+        }
+        String classpath = CdsLauncher.classpath();
+
+        System.out.printf("%-8s %-12s %18s %12s%n", "size", "", "first byte ms", "total ms");
+        for (long size : new long[]{MB, 100 * MB, 1024 * MB}) {
+            Path input = directory.resolve("startup-" + size / MB + "mb.txt");
+            if (!Files.exists(input) || Files.size(input) < size) {
+                SyntheticInput.write(input, size, 413, size);
+            }
+            run(classpath, input, null); // warm the page cache
+            for (String mode : new String[]{"default", "AppCDS"}) {
+                long firstByteTotal = 0;
+                long total = 0;
+                for (int r = 0; r < repeats; r++) {
+                    long[] times = run(classpath, input, mode.equals("AppCDS") ? archive : null);
+                    firstByteTotal += times[0];
+                    total += times[1];
+                }
+                System.out.printf("%-8s %-12s %18d %12d%n",
+                        size / MB + "Mb", mode, firstByteTotal / repeats, total / repeats);
+            }
+        }
+        Files.deleteIfExists(archive);
+    }
+
+    /**
+     * @return milliseconds from starting the JVM until the first byte is parsed, and until it finished.
+     */
+    static long[] run(String classpath, Path input, Path archive) throws IOException, InterruptedException {
+        List<String> command = CdsLauncher.javaCommand(classpath);
+        if (archive != null) {
+            command.add("-XX:SharedArchiveFile=" + archive);
+        }
+        command.add("-Dreport.firstByte=true");
+        command.add(ATTEMPT);
+        command.add(input.toString());
+
+        long start = System.currentTimeMillis();
+        Process p = new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        long firstByte = -1;
+        try (BufferedReader err = new BufferedReader(new InputStreamReader(p.getErrorStream()))) {
+            String line;
+            while ((line = err.readLine()) != null) {
+                if (line.startsWith("first byte ")) {
+                    firstByte = Long.parseLong(line.substring("first byte ".length())) - start;
+                } else {
+                    System.err.println(line);
+                }
+            }
+        }
+        if (p.waitFor() != 0) {
+            throw new IOException(String.join(" ", command) + " failed");
+        }
+        return new long[]{firstByte, System.currentTimeMillis() - start};
+    }
+}
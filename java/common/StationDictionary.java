@@ -0,0 +1,183 @@
+package common;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A perfect hash over a fixed list of station names, so the main loop can go straight from
+ * the name's hash to its own slot in a plain array, with no probing for a free slot and no
+ * collisions to deal with.
+ * <p>
+ * The names are read from a file with one name per line, which can be written at the end of
+ * a normal run with record(). The hash is the same NameHash the engines already work out
+ * while looking for the ';', so nothing extra is done per byte. That is split into a bucket,
+ * and each bucket has a 'pilot' value which was picked when the table was built so that
+ * every name in the bucket lands in a slot nobody else has:
+ * <pre>
+ * slot = mix(h ^ pilot[bucket(h)]) & mask
+ * </pre>
+ * Like the array maps, names are only told apart by their hash, so the slot's hash is checked
+ * against the one we have and anything which doesn't match (a station which wasn't in the
+ * file) returns -1 for the caller to handle the slow way.
+ */
+public class StationDictionary {
+
+    // about 4 names per bucket and the slot table at most half full keeps the build quick
+    private static final int NAMES_PER_BUCKET = 4;
+    private static final int MAX_PILOT = 1 << 20;
+
+    private final byte[][] names;
+    private final long[] hashes;
+    private final int[] pilots;
+    private final int bucketShift;
+    private final int mask;
+
+    private StationDictionary(List<byte[]> stations) {
+        int slotCount = Integer.highestOneBit(Math.max(1, stations.size()) * 2 - 1) << 1;
+        int bucketCount = Integer.highestOneBit(Math.max(2, stations.size() / NAMES_PER_BUCKET) * 2 - 1);
+        mask = slotCount - 1;
+        bucketShift = 64 - Integer.numberOfTrailingZeros(bucketCount);
+        names = new byte[slotCount][];
+        hashes = new long[slotCount];
+        pilots = new int[bucketCount];
+
+        // group the names by bucket. Two names with the same hash can't both have a slot, so
+        // the second one is left out and goes through the engine's usual map instead.
+        Map<Long, byte[]> byHash = new HashMap<>();
+        List<List<Long>> buckets = new ArrayList<>();
+        for (int b = 0; b < bucketCount; b++) {
+            buckets.add(new ArrayList<>());
+        }
+        for (byte[] name : stations) {
+            long h = NameHash.hash(name);
+            if (byHash.putIfAbsent(h, name) != null) {
+                continue;
+            }
+            buckets.get(bucket(h)).add(h);
+        }
+
+        // place the biggest buckets first, while there's still plenty of room
+        Integer[] order = new Integer[bucketCount];
+        for (int b = 0; b < bucketCount; b++) {
+            order[b] = b;
+        }
+        Arrays.sort(order, (a, b) -> buckets.get(b).size() - buckets.get(a).size());
+        boolean[] used = new boolean[slotCount];
+        int[] trial = new int[NAMES_PER_BUCKET * 4];
+        for (int b : order) {
+            List<Long> bucket = buckets.get(b);
+            if (bucket.isEmpty()) {
+                break;
+            }
+            if (trial.length < bucket.size()) {
+                trial = new int[bucket.size()];
+            }
+            int pilot = findPilot(bucket, used, trial);
+            pilots[b] = pilot;
+            for (long h : bucket) {
+                int slot = slot(h, pilot);
+                used[slot] = true;
+                hashes[slot] = h;
+                names[slot] = byHash.get(h);
+            }
+        }
+        // give the empty slots a hash none of the stations have, so slotOf() only needs one check
+        long unused = 0;
+        while (byHash.containsKey(unused)) {
+            unused++;
+        }
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (!used[slot]) {
+                hashes[slot] = unused;
+            }
+        }
+    }
+
+    private int findPilot(List<Long> bucket, boolean[] used, int[] trial) {
+        for (int pilot = 0; pilot < MAX_PILOT; pilot++) {
+            int placed = 0;
+            for (long h : bucket) {
+                int slot = slot(h, pilot);
+                if (used[slot] || contains(trial, placed, slot)) {
+                    break;
+                }
+                trial[placed++] = slot;
+            }
+            if (placed == bucket.size()) {
+                return pilot;
+            }
+        }
+        throw new IllegalStateException("Couldn't build a perfect hash for the station names");
+    }
+
+    private static boolean contains(int[] values, int count, int value) {
+        for (int i = 0; i < count; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static StationDictionary load(Path file) throws IOException {
+        List<byte[]> stations = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (!line.isEmpty()) {
+                stations.add(line.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return new StationDictionary(stations);
+    }
+
+    /**
+     * Write the stations from a run to a file which load() can read next time.
+     */
+    public static void record(Results results, Path file) throws IOException {
+        List<String> lines = new ArrayList<>(results.size());
+        for (int i = 0; i < results.size(); i++) {
+            lines.add(results.nameAsString(i));
+        }
+        lines.sort(null);
+        Files.write(file, lines, StandardCharsets.UTF_8);
+    }
+
+    private int bucket(long h) {
+        return (int) ((h * 0x9E3779B97F4A7C15L) >>> bucketShift);
+    }
+
+    private int slot(long h, int pilot) {
+        long x = h ^ pilot;
+        x = (x ^ (x >>> 32)) * 0xD6E8FEB86659FD93L;
+        return (int) (x ^ (x >>> 32)) & mask;
+    }
+
+    /**
+     * @param h the NameHash of the name
+     * @return where the station goes, from 0 to size() - 1, or -1 if it isn't in the dictionary.
+     */
+    public int slotOf(long h) {
+        int slot = slot(h, pilots[bucket(h)]);
+        return hashes[slot] == h ? slot : -1;
+    }
+
+    /**
+     * The number of slots, which is more than the number of stations as some are left empty.
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * @return the name in a slot, or null if it's one of the empty ones.
+     */
+    public byte[] name(int slot) {
+        return names[slot];
+    }
+}
@@ -0,0 +1,72 @@
+package common;
+
+import java.util.Arrays;
+
+/**
+ * Gives each station a small number, the same one in every thread, the first time any thread
+ * sees it. Threads can then keep their totals in plain arrays indexed by that number and
+ * combining them at the end is just adding up arrays, however long the names are.
+ * <p>
+ * Stations are matched on the NameHash of the name, like the array maps. Each thread
+ * should remember the numbers it's been given, as intern() takes a lock: it's only called
+ * once per station per thread, so there's nothing to gain from anything cleverer.
+ */
+public class StationIds {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private byte[][] names = new byte[INITIAL_CAPACITY][];
+    private long[] hashes = new long[INITIAL_CAPACITY];
+    private int size;
+
+    // open-addressed index into the arrays above, holding the id + 1 so 0 is an empty slot
+    private int[] slots = new int[INITIAL_CAPACITY * 2];
+
+    /**
+     * @return the id for the station whose name is buffer[start] to buffer[end - 1], and whose
+     * hash is h, adding it if this is the first time we've seen it.
+     */
+    public synchronized int intern(long h, byte[] buffer, int start, int end) {
+        int mask = slots.length - 1;
+        int slot = NameHash.spread(h) & mask;
+        int id;
+        while ((id = slots[slot]) != 0) {
+            if (hashes[id - 1] == h) {
+                return id - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size == names.length) {
+            grow();
+            return intern(h, buffer, start, end);
+        }
+        names[size] = Arrays.copyOfRange(buffer, start, end);
+        hashes[size] = h;
+        slots[slot] = size + 1;
+        return size++;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized byte[] name(int id) {
+        return names[id];
+    }
+
+    // keep the slot table at most half full so the probe sequences stay short
+    private void grow() {
+        int capacity = names.length * 2;
+        names = Arrays.copyOf(names, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        slots = new int[capacity * 2];
+        int mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = NameHash.spread(hashes[id]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id + 1;
+        }
+    }
+}
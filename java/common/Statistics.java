@@ -0,0 +1,240 @@
+package common;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Extra per-station figures, worked out in the same pass as the count, sum, min and max, so
+ * there's no need to read the file again to get a standard deviation. Chosen with -Dstats, a
+ * comma separated list of any of:
+ * <ul>
+ * <li>variance: the sum of the squares of the readings, from which the variance and standard
+ * deviation are worked out exactly at the end. All integers, in tenths of a degree, so it
+ * doesn't matter what order the rows were added in.</li>
+ * <li>above:t and below:t: how many readings were more than, or less than, t degrees.</li>
+ * <li>seen: the first and last readings, in the order they are in the file (or the files, in
+ * the order they were given). ScaleOut workers would each number their own files, so it
+ * refuses seen for more than one file, and PartialAggregates won't merge partial files made
+ * from different ones.</li>
+ * </ul>
+ * -Dstats.file (default stats.csv) is where they're written at the end.
+ * <p>
+ * Each station's figures are a long[SIZE], or SIZE longs of a bigger array, which add() updates
+ * and merge() combines. The switches are static final so the JIT drops the code for any which
+ * aren't wanted, and everything when there aren't any, the same way as the histograms.
+ */
+public final class Statistics {
+
+    public static final boolean VARIANCE;
+    public static final boolean ABOVE;
+    public static final boolean BELOW;
+    public static final boolean SEEN;
+    public static final boolean ENABLED;
+    public static final int ABOVE_TENTHS;
+    public static final int BELOW_TENTHS;
+
+    // where each figure lives in a station's SIZE longs
+    static final int SQUARES = 0;
+    static final int ABOVE_COUNT = 1;
+    static final int BELOW_COUNT = 2;
+    static final int FIRST_POSITION = 3;
+    static final int FIRST = 4;
+    static final int LAST_POSITION = 5;
+    static final int LAST = 6;
+    public static final int SIZE = 7;
+
+    static {
+        boolean variance = false;
+        boolean above = false;
+        boolean below = false;
+        boolean seen = false;
+        int aboveTenths = 0;
+        int belowTenths = 0;
+        for (String stat : System.getProperty("stats", "").split(",")) {
+            String[] parts = stat.trim().split(":");
+            switch (parts[0]) {
+                case "" -> {
+                }
+                case "variance" -> variance = true;
+                case "above" -> {
+                    above = true;
+                    aboveTenths = tenths(parts);
+                }
+                case "below" -> {
+                    below = true;
+                    belowTenths = tenths(parts);
+                }
+                case "seen" -> seen = true;
+                default -> throw new IllegalArgumentException("Unknown statistic " + stat
+                        + ", expected variance, above:t, below:t or seen");
+            }
+        }
+        VARIANCE = variance;
+        ABOVE = above;
+        BELOW = below;
+        SEEN = seen;
+        ENABLED = variance || above || below || seen;
+        ABOVE_TENTHS = aboveTenths;
+        BELOW_TENTHS = belowTenths;
+    }
+
+    private Statistics() {
+    }
+
+    /**
+     * @return the statistics being worked out, the same whatever order -Dstats gave them in,
+     * eg. "variance,above:30.0,seen", or "" if there aren't any. PartialAggregates keeps this
+     * with the figures so it can tell if they mean the same thing.
+     */
+    public static String describe() {
+        StringBuilder stats = new StringBuilder();
+        if (VARIANCE) {
+            stats.append(",variance");
+        }
+        if (ABOVE) {
+            stats.append(",above:").append(tenthsToString(ABOVE_TENTHS));
+        }
+        if (BELOW) {
+            stats.append(",below:").append(tenthsToString(BELOW_TENTHS));
+        }
+        if (SEEN) {
+            stats.append(",seen");
+        }
+        return stats.isEmpty() ? "" : stats.substring(1);
+    }
+
+    private static int tenths(String[] parts) {
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("-Dstats=" + parts[0] + " needs a temperature, eg. " + parts[0] + ":30");
+        }
+        return new BigDecimal(parts[1]).movePointRight(1).intValueExact();
+    }
+
+    /**
+     * @return room for the figures of this many stations, ready for add().
+     */
+    public static long[] create(int stations) {
+        long[] s = new long[stations * SIZE];
+        for (int at = 0; at < s.length; at += SIZE) {
+            s[at + FIRST_POSITION] = Long.MAX_VALUE;
+            s[at + LAST_POSITION] = -1;
+        }
+        return s;
+    }
+
+    /**
+     * Add one reading to the station whose figures start at s[at].
+     *
+     * @param position where the row is in the input, only used by seen.
+     */
+    public static void add(long[] s, int at, int tenths, long position) {
+        if (VARIANCE) {
+            s[at + SQUARES] += (long) tenths * tenths;
+        }
+        if (ABOVE && tenths > ABOVE_TENTHS) {
+            s[at + ABOVE_COUNT]++;
+        }
+        if (BELOW && tenths < BELOW_TENTHS) {
+            s[at + BELOW_COUNT]++;
+        }
+        if (SEEN) {
+            if (position < s[at + FIRST_POSITION]) {
+                s[at + FIRST_POSITION] = position;
+                s[at + FIRST] = tenths;
+            }
+            if (position > s[at + LAST_POSITION]) {
+                s[at + LAST_POSITION] = position;
+                s[at + LAST] = tenths;
+            }
+        }
+    }
+
+    /**
+     * Combine the figures for the same station from two threads, or two runs.
+     */
+    public static void merge(long[] into, int at, long[] from, int fromAt) {
+        into[at + SQUARES] += from[fromAt + SQUARES];
+        into[at + ABOVE_COUNT] += from[fromAt + ABOVE_COUNT];
+        into[at + BELOW_COUNT] += from[fromAt + BELOW_COUNT];
+        if (from[fromAt + FIRST_POSITION] < into[at + FIRST_POSITION]) {
+            into[at + FIRST_POSITION] = from[fromAt + FIRST_POSITION];
+            into[at + FIRST] = from[fromAt + FIRST];
+        }
+        if (from[fromAt + LAST_POSITION] > into[at + LAST_POSITION]) {
+            into[at + LAST_POSITION] = from[fromAt + LAST_POSITION];
+            into[at + LAST] = from[fromAt + LAST];
+        }
+    }
+
+    /**
+     * The variance of the readings in square degrees, from n * sum(x^2) - sum(x)^2 over n^2,
+     * with x in tenths. Done with BigIntegers as n * sum(x^2) doesn't fit in a long for a
+     * billion rows, but it's only once per station.
+     */
+    public static BigDecimal variance(long count, long total, long squares) {
+        BigInteger n = BigInteger.valueOf(count);
+        BigInteger numerator = n.multiply(BigInteger.valueOf(squares))
+                .subtract(BigInteger.valueOf(total).pow(2));
+        BigInteger denominator = n.multiply(n).multiply(BigInteger.valueOf(100));
+        return new BigDecimal(numerator).divide(new BigDecimal(denominator), 4, RoundingMode.HALF_UP);
+    }
+
+    /**
+     * Write the chosen figures for every station to a CSV file, in the same order as the
+     * normal output.
+     */
+    public static void write(Results results, Path file) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            StringBuilder heading = new StringBuilder("station,count,min,mean,max");
+            if (VARIANCE) {
+                heading.append(",variance,stddev");
+            }
+            if (ABOVE) {
+                heading.append(",above_").append(tenthsToString(ABOVE_TENTHS));
+            }
+            if (BELOW) {
+                heading.append(",below_").append(tenthsToString(BELOW_TENTHS));
+            }
+            if (SEEN) {
+                heading.append(",first,last");
+            }
+            out.println(heading);
+            for (int i : ResultWriter.sortedOrder(results)) {
+                long[] s = results.statistics(i);
+                StringBuilder line = new StringBuilder();
+                String name = results.nameAsString(i);
+                line.append(name.contains(",") || name.contains("\"") ? '"' + name.replace("\"", "\"\"") + '"' : name)
+                        .append(',').append(results.count(i))
+                        .append(',').append(tenthsToString(results.min(i)))
+                        .append(',').append(tenthsToString(ResultWriter.mean(results.total(i), results.count(i))))
+                        .append(',').append(tenthsToString(results.max(i)));
+                if (VARIANCE) {
+                    BigDecimal variance = variance(results.count(i), results.total(i), s[SQUARES]);
+                    line.append(',').append(variance.toPlainString())
+                            .append(',').append(variance.sqrt(MathContext.DECIMAL64).setScale(4, RoundingMode.HALF_UP));
+                }
+                if (ABOVE) {
+                    line.append(',').append(s[ABOVE_COUNT]);
+                }
+                if (BELOW) {
+                    line.append(',').append(s[BELOW_COUNT]);
+                }
+                if (SEEN) {
+                    line.append(',').append(tenthsToString(s[FIRST])).append(',').append(tenthsToString(s[LAST]));
+                }
+                out.println(line);
+            }
+        }
+    }
+
+    private static String tenthsToString(long tenths) {
+        byte[] b = new byte[24];
+        return new String(b, 0, ResultWriter.appendTenths(b, 0, tenths));
+    }
+}
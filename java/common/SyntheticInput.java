@@ -0,0 +1,58 @@
+package common;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Writes a file of made up measurements in the usual format, for when we need some input of a
+ * particular size and don't care what's in it, eg. training runs and startup benchmarks.
+ * The same seed always gives the same file.
+ */
+public class SyntheticInput {
+
+    public static void write(Path file, long size, int stations, long seed) throws IOException {
+        Random random = new Random(seed);
+        byte[][] names = new byte[stations][];
+        int[] means = new int[stations];
+        for (int s = 0; s < stations; s++) {
+            int length = 4 + random.nextInt(13);
+            byte[] name = new byte[length + 1];
+            name[0] = (byte) ('A' + random.nextInt(26));
+            for (int i = 1; i < length; i++) {
+                name[i] = (byte) ('a' + random.nextInt(26));
+            }
+            name[length] = ';';
+            names[s] = name;
+            means[s] = random.nextInt(400) - 100; // -10.0 to 30.0
+        }
+
+        byte[] number = new byte[8];
+        long written = 0;
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16)) {
+            while (written < size) {
+                int s = random.nextInt(stations);
+                int tenths = (int) Math.max(-999, Math.min(999, means[s] + random.nextGaussian() * 100));
+                out.write(names[s]);
+                int p = number.length;
+                number[--p] = '\n';
+                int t = Math.abs(tenths);
+                number[--p] = (byte) ('0' + t % 10);
+                number[--p] = '.';
+                t /= 10;
+                do {
+                    number[--p] = (byte) ('0' + t % 10);
+                    t /= 10;
+                } while (t > 0);
+                if (tenths < 0) {
+                    number[--p] = '-';
+                }
+                out.write(number, p, number.length - p);
+                written += names[s].length + number.length - p;
+            }
+        }
+    }
+}
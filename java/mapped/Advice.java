@@ -0,0 +1,130 @@
+package mapped;
+
+import java.lang.foreign.*;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import static java.lang.foreign.ValueLayout.*;
+
+/**
+ * Tells the kernel how we are going to read a file, using madvise on the mapping and
+ * posix_fadvise on the file, called directly through the foreign function API.
+ * <p>
+ * Left to itself the kernel guesses the read-ahead for a mapping from the page faults, which
+ * is fine once the file is cached but slow the first time. We say up front that the mapping is
+ * read sequentially, ask for the next chunks before we get to them, and once a chunk is done
+ * drop its pages from both our mapping and the page cache, so a scan doesn't push out other
+ * people's data.
+ * <p>
+ * Linux only. If the functions can't be found, eg. on another OS, every call does nothing.
+ */
+public class Advice implements AutoCloseable {
+
+    // from <sys/mman.h> and <fcntl.h> on Linux
+    private static final int MADV_SEQUENTIAL = 2;
+    private static final int MADV_WILLNEED = 3;
+    private static final int MADV_DONTNEED = 4;
+    private static final int POSIX_FADV_DONTNEED = 4;
+    private static final int O_RDONLY = 0;
+
+    private static final MethodHandle MADVISE;
+    private static final MethodHandle POSIX_FADVISE;
+    private static final MethodHandle OPEN;
+    private static final MethodHandle CLOSE;
+    static final long PAGE_SIZE;
+
+    static {
+        Linker linker = Linker.nativeLinker();
+        SymbolLookup libc = linker.defaultLookup();
+        MADVISE = find(linker, libc, "madvise", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_LONG, JAVA_INT));
+        POSIX_FADVISE = find(linker, libc, "posix_fadvise", FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_LONG, JAVA_LONG, JAVA_INT));
+        OPEN = find(linker, libc, "open", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT));
+        CLOSE = find(linker, libc, "close", FunctionDescriptor.of(JAVA_INT, JAVA_INT));
+        MethodHandle getPageSize = find(linker, libc, "getpagesize", FunctionDescriptor.of(JAVA_INT));
+        long pageSize = 4096;
+        if (getPageSize != null) {
+            try {
+                pageSize = (int) getPageSize.invokeExact();
+            } catch (Throwable e) {
+                // keep the default
+            }
+        }
+        PAGE_SIZE = pageSize;
+    }
+
+    private static MethodHandle find(Linker linker, SymbolLookup lookup, String name, FunctionDescriptor descriptor) {
+        Optional<MemorySegment> symbol = lookup.find(name);
+        return symbol.map(s -> linker.downcallHandle(s, descriptor)).orElse(null);
+    }
+
+    private final MemorySegment mapping;
+    // our own file descriptor for posix_fadvise, FileChannel doesn't give us its one
+    private final int fd;
+
+    public Advice(Path file, MemorySegment mapping) {
+        this.mapping = mapping;
+        int fd = -1;
+        if (OPEN != null) {
+            try (Arena arena = Arena.ofConfined()) {
+                fd = (int) OPEN.invokeExact(arena.allocateUtf8String(file.toString()), O_RDONLY);
+            } catch (Throwable e) {
+                fd = -1;
+            }
+        }
+        this.fd = fd;
+        madvise(0, mapping.byteSize(), MADV_SEQUENTIAL);
+    }
+
+    /**
+     * Start reading these bytes in now, we'll want them soon.
+     */
+    public void willNeed(long start, long end) {
+        // widen to whole pages
+        long from = start & -PAGE_SIZE;
+        madvise(from, end - from, MADV_WILLNEED);
+    }
+
+    /**
+     * We've finished with these bytes. Only whole pages inside the range are dropped, the
+     * pages at either end may still be in use by whoever has the neighbouring chunk.
+     */
+    public void dontNeed(long start, long end) {
+        long from = (start + PAGE_SIZE - 1) & -PAGE_SIZE;
+        long to = end == mapping.byteSize() ? end : end & -PAGE_SIZE;
+        if (to <= from) {
+            return;
+        }
+        madvise(from, to - from, MADV_DONTNEED);
+        if (POSIX_FADVISE != null && fd >= 0) {
+            try {
+                int ignored = (int) POSIX_FADVISE.invokeExact(fd, from, to - from, POSIX_FADV_DONTNEED);
+            } catch (Throwable e) {
+                // only a hint
+            }
+        }
+    }
+
+    private void madvise(long offset, long length, int advice) {
+        if (MADVISE == null || length <= 0) {
+            return;
+        }
+        length = Math.min(length, mapping.byteSize() - offset);
+        try {
+            int ignored = (int) MADVISE.invokeExact(mapping.asSlice(offset, length), length, advice);
+        } catch (Throwable e) {
+            // only a hint
+        }
+    }
+
+    @Override
+    public void close() {
+        if (CLOSE != null && fd >= 0) {
+            try {
+                int ignored = (int) CLOSE.invokeExact(fd);
+            } catch (Throwable e) {
+                // nothing we can do
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package mapped;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Times MappedChunks reading a file straight off the disk, with and without the Advice hints,
+ * against ArrayMapChunks' normal reads and a run with the file already cached.
+ * <pre>
+ * java --enable-preview -cp out mapped.ColdCacheBenchmark measurements.txt [repeats]
+ * </pre>
+ * Each run is in a new JVM. Before each cold run the page cache is emptied by writing to
+ * /proc/sys/vm/drop_caches, which needs root. We also report how much the page cache grew
+ * during the run, which is the damage done to everything else on the machine.
+ */
+public class ColdCacheBenchmark {
+
+    record Mode(String name, boolean cold, String... command) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path file = Paths.get(args.length > 0 ? args[0] : "measurements.txt");
+        int repeats = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        long size = Files.size(file);
+
+        Mode[] modes = {
+                new Mode("read, cold", true, "arraymaps.ArrayMapChunks"),
+                new Mode("mapped, cold", true, "--enable-preview", "--enable-native-access=ALL-UNNAMED", "mapped.MappedChunks"),
+                new Mode("mapped + advise, cold", true, "--enable-preview", "--enable-native-access=ALL-UNNAMED", "-Dadvise=true", "mapped.MappedChunks"),
+                new Mode("mapped, warm", false, "--enable-preview", "--enable-native-access=ALL-UNNAMED", "mapped.MappedChunks"),
+        };
+        System.out.printf("%-24s %10s %10s %16s%n", "", "seconds", "Mb/s", "page cache +Mb");
+        for (Mode mode : modes) {
+            for (int r = 0; r < repeats; r++) {
+                if (mode.cold) {
+                    dropCaches();
+                } else {
+                    run(mode, file); // make sure it's all cached
+                }
+                long cachedBefore = cachedKb();
+                long start = System.nanoTime();
+                run(mode, file);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                long cacheGrowth = (cachedKb() - cachedBefore) / 1024;
+                System.out.printf("%-24s %10.2f %10.0f %16d%n",
+                        mode.name, seconds, size / seconds / (1024 * 1024), cacheGrowth);
+            }
+        }
+    }
+
+    static void run(Mode mode, Path file) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.addAll(List.of(mode.command));
+        command.add(file.toString());
+        Process p = new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        if (p.waitFor() != 0) {
+            throw new IOException(String.join(" ", command) + " failed");
+        }
+    }
+
+    static void dropCaches() throws IOException, InterruptedException {
+        new ProcessBuilder("sync").inheritIO().start().waitFor();
+        try {
+            Files.writeString(Paths.get("/proc/sys/vm/drop_caches"), "3");
+        } catch (IOException e) {
+            System.err.println("Couldn't empty the page cache, the cold runs won't be cold: " + e);
+        }
+    }
+
+    // "Cached:" from /proc/meminfo
+    static long cachedKb() throws IOException {
+        for (String line : Files.readAllLines(Paths.get("/proc/meminfo"))) {
+            if (line.startsWith("Cached:")) {
+                return Long.parseLong(line.replaceAll("[^0-9]", ""));
+            }
+        }
+        return 0;
+    }
+}
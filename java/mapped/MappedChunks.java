@@ -0,0 +1,271 @@
+package mapped;
+
+import common.*;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+/**
+ * The same chunk queue as ArrayMapChunks, but each file is memory mapped as a MemorySegment and
+ * parsed where it is instead of being read into a buffer. Segments don't have the 2Gb limit of
+ * MappedByteBuffer so each file only needs mapping once.
+ * <p>
+ * -Dadvise=true uses Advice to give the kernel read-ahead hints: the whole mapping is marked as
+ * sequential, each thread asks for the chunk it will probably get next before starting on
+ * the current one, and drops the pages of each chunk from the mapping and the page cache once
+ * it's done with them.
+ * <p>
+ * Uses the foreign function and memory API, which is a preview feature in Java 21, so this
+ * package needs compiling and running with --enable-preview.
+ * <pre>
+ * javac --release 21 --enable-preview -d out common/*.java mapped/*.java
+ * java --enable-preview --enable-native-access=ALL-UNNAMED -Dadvise=true -cp out mapped.MappedChunks measurements.txt
+ * </pre>
+ */
+public class MappedChunks {
+
+    static final int THREADS = Integer.getInteger("threads", Runtime.getRuntime().availableProcessors());
+    static final long CHUNK_SIZE = Long.getLong("chunk.size", 4 * 1024 * 1024);
+    static final boolean ADVISE = Boolean.getBoolean("advise");
+
+    public static void main(String[] args) throws Exception {
+        long startTime = System.currentTimeMillis();
+        List<Path> files = InputFiles.resolve(args.length == 0 ? new String[]{"measurements.txt"} : args);
+        ResultWriter.write(new MappedChunks().go(files));
+        long endTime = System.currentTimeMillis();
+        System.out.printf("Took %.2f s\n", (endTime - startTime) / 1000.0);
+    }
+
+    Results go(List<Path> files) throws Exception {
+        Chunk[][] tasks = ChunkPlanner.plan(files, CHUNK_SIZE);
+        Map<Path, MemorySegment> segments = new HashMap<>();
+        Map<Path, Advice> advice = new HashMap<>();
+        ProcessData[] processors = new ProcessData[THREADS];
+
+        try (Arena arena = Arena.ofShared()) {
+            for (Path file : files) {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    MemorySegment segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+                    segments.put(file, segment);
+                    if (ADVISE) {
+                        advice.put(file, new Advice(file, segment));
+                    }
+                }
+            }
+
+            AtomicInteger nextTask = new AtomicInteger();
+            Future<?>[] runningThreads = new Future<?>[THREADS];
+            try (ExecutorService threadPoolExecutor = Executors.newFixedThreadPool(THREADS)) {
+                for (int i = 0; i < THREADS; i++) {
+                    ProcessData p = new ProcessData(segments, advice);
+                    processors[i] = p;
+                    runningThreads[i] = threadPoolExecutor.submit(() -> p.run(tasks, nextTask));
+                }
+                for (Future<?> f : runningThreads) {
+                    f.get();
+                }
+            } finally {
+                advice.values().forEach(Advice::close);
+            }
+        }
+
+        Events.ResultsMerged event = null;
+        if (Events.ENABLED) {
+            event = new Events.ResultsMerged();
+            event.begin();
+        }
+        Results results = new Results();
+        for (ProcessData p : processors) {
+            p.addTo(results);
+        }
+        if (event != null && event.shouldCommit()) {
+            event.stations = results.size();
+            event.commit();
+        }
+        return results;
+    }
+
+    // one instance per thread, takes chunks from the queue until there are none left.
+    static class ProcessData {
+
+        private static final int HASH_SPACE = 8192;
+        private static final int COLLISION = 2; // number of extra spaces needed for hash collisions
+        private final Station[] records = new Station[HASH_SPACE + COLLISION];
+        // stations which didn't fit in records, only needed if we're very unlucky
+        private Results overflow;
+
+        private final Map<Path, MemorySegment> segments;
+        private final Map<Path, Advice> advice;
+        // lookups which didn't find the station in its first slot, for the flight recorder
+        private long collisions;
+        // the furthest past its first slot a lookup went in this chunk, and the rows which went in
+        // the overflow table, also for the flight recorder
+        private int longestProbe;
+        private long overflowed;
+
+        ProcessData(Map<Path, MemorySegment> segments, Map<Path, Advice> advice) {
+            this.segments = segments;
+            this.advice = advice;
+        }
+
+        Void run(Chunk[][] tasks, AtomicInteger nextTask) {
+            int task;
+            while ((task = nextTask.getAndIncrement()) < tasks.length) {
+                if (ADVISE && task + THREADS < tasks.length) {
+                    // the other threads are busy with the tasks in between, so this is
+                    // roughly the one we'll get next
+                    for (Chunk upcoming : tasks[task + THREADS]) {
+                        advice.get(upcoming.file()).willNeed(upcoming.start(), upcoming.end());
+                    }
+                }
+                for (Chunk chunk : tasks[task]) {
+                    process(segments.get(chunk.file()), chunk.start(), chunk.end());
+                    if (ADVISE) {
+                        advice.get(chunk.file()).dontNeed(chunk.start(), chunk.end());
+                    }
+                }
+            }
+            return null;
+        }
+
+        void process(MemorySegment segment, long position, long limit) {
+            Events.ChunkParsed parseEvent = null;
+            if (Events.ENABLED) {
+                parseEvent = new Events.ChunkParsed();
+                parseEvent.begin();
+            }
+            long chunkStart = position;
+            long collisionsBefore = collisions;
+            long overflowedBefore = overflowed;
+            longestProbe = 0;
+            int rows = 0;
+            long nameStart = position;
+            long nameEnd = position;
+            boolean readingName = true;
+            long h = NameHash.SEED;
+            // inlining the decimal conversion
+            int sign = 1;
+            int temperature = 0;
+
+            while (position < limit) {
+                byte b = segment.get(JAVA_BYTE, position++);
+                // read until we get to the delimiter and the newline
+                if (b == ';') {
+                    readingName = false;
+                    nameEnd = position - 1;
+                } else if (readingName) {
+                    h = (h ^ b) * NameHash.PRIME; // calculate the hash of the name, see NameHash
+                } else if (b != '\n') {
+                    if (b == '-') {
+                        sign = -1;
+                    } else if (b != '.') {
+                        temperature = temperature * 10 + (b - '0');
+                    }
+                } else {    // end of line
+                    addOrMerge(h, segment, nameStart, nameEnd, sign * temperature);
+                    rows++;
+                    temperature = 0;
+                    sign = 1;
+                    nameStart = position;
+                    readingName = true;
+                    h = NameHash.SEED;
+                }
+            }
+            if (!readingName) {
+                // last row of a file which doesn't end with a newline
+                addOrMerge(h, segment, nameStart, nameEnd, sign * temperature);
+                rows++;
+            }
+            if (parseEvent != null && parseEvent.shouldCommit()) {
+                parseEvent.offset = chunkStart;
+                parseEvent.bytes = limit - chunkStart;
+                parseEvent.rows = rows;
+                parseEvent.collisions = collisions - collisionsBefore;
+                parseEvent.longestProbe = longestProbe;
+                parseEvent.overflowed = overflowed - overflowedBefore;
+                parseEvent.commit();
+            }
+        }
+
+        private void addOrMerge(long nameHash, MemorySegment segment, long startIndex, long endIndex, int temperature) {
+            int key = NameHash.spread(nameHash) & (HASH_SPACE - 1);
+            Station[] r = records;
+            // Search forwards look for the entry or a gap
+            for (int probe = 0; probe <= COLLISION; probe++, key++) {
+                Station entry = r[key];
+                if (entry == null) {
+                    byte[] nameArray = segment.asSlice(startIndex, endIndex - startIndex).toArray(JAVA_BYTE);
+                    r[key] = new Station(nameArray, nameHash, temperature);
+                    return;
+                }
+                if (entry.hash == nameHash) {
+                    entry.add_measurement(temperature);
+                    return;
+                }
+                collisions++;
+                if (probe < COLLISION && probe >= longestProbe) {
+                    longestProbe = probe + 1;
+                }
+            }
+            // Too many names wanting the same few slots, put them somewhere which can cope, the
+            // same as ArrayMapChunks.
+            overflowed++;
+            if (overflow == null) {
+                overflow = new Results();
+            }
+            byte[] name = segment.asSlice(startIndex, endIndex - startIndex).toArray(JAVA_BYTE);
+            overflow.add(name, 1, temperature, temperature, temperature);
+        }
+
+        void addTo(Results results) {
+            for (Station s : records) {
+                if (s != null) {
+                    results.add(s.name, s.measurements, s.total, s.minT, s.maxT);
+                }
+            }
+            if (overflow != null) {
+                results.merge(overflow);
+            }
+        }
+    }
+
+    static class Station {
+        public final byte[] name;
+        public long measurements;
+        public long total;
+        public int maxT;
+        public int minT;
+        public final long hash;
+
+        Station(byte[] name, long hash, int temp) {
+            this.name = name;
+            this.hash = hash;
+            this.total = temp;
+            this.measurements = 1;
+            this.minT = temp;
+            this.maxT = temp;
+        }
+
+        void add_measurement(int temp) {
+            total += temp;
+            measurements++;
+            if (temp > maxT) {
+                maxT = temp;
+            } else if (temp < minT) {
+                minT = temp;
+            }
+        }
+    }
+}
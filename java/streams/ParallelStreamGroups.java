@@ -1,10 +1,14 @@
 package streams;
 
+import common.Events;
+import common.ResultWriter;
+import common.Results;
+
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.Collection;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -21,20 +25,32 @@ public class ParallelStreamGroups {
     private void go() throws IOException {
         try (Stream<String> lines = Files.lines(Path.of(file))) {
 //        try(Stream<String> lines = new BufferedReader(new FileReader(file)).lines()) {
-            Set<City> overallResults =
-                    new TreeSet<>(lines.parallel().
+            // reading and parsing happen together inside the stream, so there's one event for the lot
+            Events.ChunkParsed parseEvent = null;
+            if (Events.ENABLED) {
+                parseEvent = new Events.ChunkParsed();
+                parseEvent.begin();
+            }
+            Collection<City> overallResults =
+                    lines.parallel().
                             map(City::newCity).collect(
                                     Collectors.groupingBy(
                                             City::getName,
                                             CityCollector.toCityList())
-                            ).values());
+                            ).values();
+            if (parseEvent != null && parseEvent.shouldCommit()) {
+                parseEvent.bytes = Files.size(Path.of(file));
+                parseEvent.rows = overallResults.stream().mapToLong(c -> c.measurements).sum();
+                parseEvent.commit();
+            }
+            // the shared writer takes care of the sorting, and wants tenths rather than doubles
+            Results results = new Results();
             for (City city : overallResults) {
-                System.out.printf("%s;%.1f;%.1f;%.1f\n",
-                        city.name,
-                        city.minT,
-                        city.total / city.measurements,
-                        city.maxT);
+                results.add(city.name.getBytes(StandardCharsets.UTF_8), city.measurements,
+                        Math.round(city.total * 10), (int) Math.round(city.minT * 10),
+                        (int) Math.round(city.maxT * 10));
             }
+            ResultWriter.write(results);
         }
     }
 }
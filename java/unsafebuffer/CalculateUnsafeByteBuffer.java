@@ -1,5 +1,10 @@
 package unsafebuffer;
 
+import common.Events;
+import common.FragmentJoiner;
+import common.NameHash;
+import common.ResultWriter;
+import common.Results;
 import sun.misc.Unsafe;
 
 import java.io.FileNotFoundException;
@@ -8,9 +13,8 @@ import java.io.RandomAccessFile;
 import java.lang.reflect.Field;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.charset.StandardCharsets;
-import java.util.Map;
-import java.util.TreeMap;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -19,6 +23,11 @@ import java.util.concurrent.Future;
  * Reads the file into a set of ByteBuffers
  * Use byte arrays instead of Strings for the City names.
  * <p>
+ * Names are hashed with NameHash, and any station which can't find room in the few slots it
+ * wants goes in an overflow table instead of stopping the run, the same as ArrayMapChunks. If
+ * a block fails anyway the threads are stopped, so the exception ends the run rather than
+ * leaving it waiting for them.
+ * <p>
  * Add -ea to VM options to enable the asserts.
  */
 public class CalculateUnsafeByteBuffer {
@@ -28,16 +37,17 @@ public class CalculateUnsafeByteBuffer {
     static final String file = "measurements.txt";
 
     final int threads = Runtime.getRuntime().availableProcessors();
-    RowFragments rf;
+    FragmentJoiner fragments;
     static final int BUFFERSIZE = 1024 * 1024;
     ProcessData[] processors;
 
-    // text file is >13Gb
-    static final int NUM_BLOCKS = (int) (14_000_000_000L / BUFFERSIZE);
+    // worked out from the file size rather than assuming it is around 13Gb
+    static int NUM_BLOCKS;
 
 
     public static void main(String[] args) throws Exception {
         long startTime = System.currentTimeMillis();
+        NUM_BLOCKS = Math.toIntExact(1 + Files.size(Paths.get(file)) / BUFFERSIZE);
         new CalculateUnsafeByteBuffer().go();
         long endTime = System.currentTimeMillis();
         System.out.printf("Took %.2f s\n", (endTime - startTime) / 1000.0);
@@ -49,11 +59,20 @@ public class CalculateUnsafeByteBuffer {
         threadPoolExecutor = Executors.newFixedThreadPool(threads);
         Future<?>[] runningThreads = new Future<?>[threads];
         processors = new ProcessData[threads];
-        rf = new RowFragments();
+        fragments = new FragmentJoiner();
 
         for (int i = 0; i < threads; i++) {
             processors[i] = new ProcessData(ByteBuffer.allocate(BUFFERSIZE), i);
         }
+        try {
+            readBlocks(runningThreads);
+        } finally {
+            // the pool's threads would keep the JVM going after an exception
+            threadPoolExecutor.shutdownNow();
+        }
+    }
+
+    private void readBlocks(Future<?>[] runningThreads) throws Exception {
         boolean weStillHaveData = true;
         int blockNumber = 0;
 
@@ -79,22 +98,10 @@ public class CalculateUnsafeByteBuffer {
         ListOfCities overallResults = new ListOfCities(0);
         waitForThreads(runningThreads, overallResults);
 
-        processFragments(overallResults);
-        sortAndDisplay(overallResults);
-        threadPoolExecutor.shutdown();
-        threadPoolExecutor.close();
+        sortAndDisplay(overallResults, fragments.finish());
     }
 
 
-    private void processFragments(ListOfCities overallResults) {
-        for (int f = 0; f < NUM_BLOCKS; f++) {
-            String line = rf.getJoinedFragments(f);
-            if (!line.isEmpty()) {
-                overallResults.addCity(line);
-            }
-        }
-    }
-
     private void waitForThreads(Future<?>[] runningThreads, ListOfCities overallResults) throws Exception {
         for (int i = 0; i < threads; i++) {
             if (runningThreads[i] != null) {
@@ -110,94 +117,51 @@ public class CalculateUnsafeByteBuffer {
         }
     }
 
+    // has to be done before the thread is given its next block, which is read into the same buffer
     private void storeFragments(ListOfCities resultToAdd) {
-        if (resultToAdd.endFragment != null) {
-            rf.addStart(resultToAdd.blockNumber + 1, resultToAdd.endFragment);
-        }
-        if (resultToAdd.startFragment != null) {
-            rf.addEnd(resultToAdd.blockNumber, resultToAdd.startFragment);
-        }
+        fragments.add(resultToAdd.blockNumber, resultToAdd.block, resultToAdd.startLength,
+                resultToAdd.endFrom, resultToAdd.endTo);
     }
 
     private void mergeAndStoreResults(ListOfCities resultToAdd, ListOfCities overallResults) {
-        if (resultToAdd.endFragment != null) {
-            rf.addStart(resultToAdd.blockNumber + 1, resultToAdd.endFragment);
+        Events.ResultsMerged event = null;
+        if (Events.ENABLED) {
+            event = new Events.ResultsMerged();
+            event.begin();
         }
-        if (resultToAdd.startFragment != null) {
-            rf.addEnd(resultToAdd.blockNumber, resultToAdd.startFragment);
-        }
-        for (ListOfCities.MapEntry m : resultToAdd.records) {
-            if (m != null) {
-                overallResults.mergeCity(m.value);
+        int stations = 0;
+        for (Station c : resultToAdd.records) {
+            if (c != null) {
+                overallResults.mergeCity(c);
+                stations++;
             }
         }
-    }
-
-    private static void sortAndDisplay(ListOfCities overallResults) {
-        TreeMap<String, Station> sortedCities = new TreeMap<>();
-        for (ListOfCities.MapEntry m : overallResults.records) {
-            if (m != null) {
-                Station c = m.value;
-                sortedCities.put(
-                        new String(c.name, StandardCharsets.UTF_8),
-                        c);
-            }
+        if (resultToAdd.overflow != null) {
+            overallResults.mergeOverflow(resultToAdd.overflow);
+            stations += resultToAdd.overflow.size();
         }
-
-//        Station city = new Station("Dummy".getBytes(), -1, 0);
-//        int count = 0;
-        for (Map.Entry<String, Station> e : sortedCities.entrySet()) {
-            Station city = e.getValue();
-            AppendableByteArray output = new AppendableByteArray();
-            output.addDelimiter();
-            output.appendArray(numberToString(city.minT));
-            output.addDelimiter();
-            // todo: sort out average calculation rounding errors using ints..
-            output.appendArray(String.format("%.1f;", city.total / (city.measurements * 10.0)).getBytes(StandardCharsets.UTF_8));
-            output.appendArray(numberToString(city.maxT));
-            System.out.print(e.getKey());
-//            System.out.printf(" (%d)", city.measurements);
-            System.out.println(output.asString());
-//            count += city.measurements;
+        if (event != null && event.shouldCommit()) {
+            event.stations = stations;
+            event.commit();
         }
-//        System.out.println("length = " + sortedCities.size());
-//        System.out.println("count = " + count);
-//        assert (sortedCities.size() == 413);
-//        assert city.minT == -290;
-//        assert city.maxT == 675;
-//        assert count == 1_000_000_000;
-//        assert city.measurements == 2420468;
     }
 
-    static byte[] numberToString(int number) {
-        int length;
-        byte[] bytes;
-        if (number < 0) { // eg. -9 (-0.9), -99 (-9.9), -999 (-99.9)
-            number = -number;  // negative
-            if (number >= 100) {
-                length = 5;
-                bytes = new byte[5]; // 3 digits, 5 characters
-            } else {
-                length = 4;
-                bytes = new byte[4];
+    private static void sortAndDisplay(ListOfCities overallResults, Results joined) throws IOException {
+        Results results = new Results();
+        for (Station c : overallResults.records) {
+            if (c != null) {
+                results.add(c.name, c.measurements, c.total, c.minT, c.maxT);
             }
-            bytes[0] = (byte) '-';
-        } else { // positive
-            length = number >= 100 ? 4 : 3;
-            bytes = new byte[length];
         }
-        bytes[length - 1] = (byte) ('0' + (number % 10));
-        number /= 10;
-        bytes[length - 2] = '.';
-        bytes[length - 3] = (byte) ('0' + (number % 10));
-        if (number >= 10) {
-            number /= 10;
-            bytes[length - 4] = (byte) ('0' + (number % 10));
+        if (overallResults.overflow != null) {
+            results.merge(overallResults.overflow);
         }
-        return bytes;
+        results.merge(joined);
+        ResultWriter.write(results);
+//        assert results.size() == 413;
+//        assert results.totalCount() == 1_000_000_000;
     }
 
-
     static class ProcessData {
 
         ByteBuffer innerBuffer;
@@ -240,36 +204,52 @@ public class CalculateUnsafeByteBuffer {
         }
 
         ListOfCities process() throws IOException {
+            Events.ChunkRead readEvent = null;
+            if (Events.ENABLED) {
+                readEvent = new Events.ChunkRead();
+                readEvent.begin();
+            }
             channel.position((long) blockNumber * BUFFERSIZE);
             int status = channel.read(innerBuffer);
             if (status == -1) {
                 return null;
             }
             innerBuffer.flip();
+            if (readEvent != null && readEvent.shouldCommit()) {
+                readEvent.offset = (long) blockNumber * BUFFERSIZE;
+                readEvent.bytes = innerBuffer.limit();
+                readEvent.commit();
+            }
+            Events.ChunkParsed parseEvent = null;
+            if (Events.ENABLED) {
+                parseEvent = new Events.ChunkParsed();
+                parseEvent.begin();
+            }
+            long collisionsBefore = results.collisions;
+            long overflowedBefore = results.overflowed;
+            results.longestProbe = 0;
+            int rows = 0;
 
             this.limit = innerBuffer.limit();
             this.array = innerBuffer.array();
             this.bufferPosition = unsafe.arrayBaseOffset(byte[].class);
             results.blockNumber = blockNumber;
-            results.startFragment = null;
-            results.endFragment = null;
+            results.block = array;
 
-            // Read up to the first newline and add it as a fragment (potential end of previous block)
-            ByteArrayWindow baw = new ByteArrayWindow(array, bufferPosition);
+            // Read up to the first newline, everything before it is a fragment (potential end of previous block)
             byte b = unsafe.getByte(array, bufferPosition++);
             int start = 0;
             while (b != '\n') {
-                baw.endIndex++;
                 b = unsafe.getByte(array, bufferPosition++);
                 start++;
             }
-            results.startFragment = baw.getArray().array;
+            results.startLength = start;
 
             // Main loop through block
             ByteArrayWindow name = new ByteArrayWindow(array, bufferPosition);
             ByteArrayWindow value = new ByteArrayWindow(array, bufferPosition);
             boolean readingName = true;
-            int h = 0;
+            long h = NameHash.SEED;
             for (int i = start; i < limit; i++) {
                 b = unsafe.getByte(array, bufferPosition++);
                 // read until we get to the delimiter and the newline
@@ -279,23 +259,30 @@ public class CalculateUnsafeByteBuffer {
                     value.startIndex = bufferPosition;
                 } else if (readingName) {
                     name.endIndex++;
-                    h = 31 * h + b;
+                    h = (h ^ b) * NameHash.PRIME; // see NameHash
                 } else if (b != '\n') { // only consider chr=13 while reading numbers
                     value.endIndex++;
                 } else {    // end of line
                     value.endIndex = bufferPosition - 1;
                     results.addOrMerge(h, name, value.parseCharsToDouble());
+                    rows++;
                     name.rewind(bufferPosition);
                     value.rewind(bufferPosition);
                     readingName = true;
-                    h = 0;
+                    h = NameHash.SEED;
                 }
             } // end for
-            // If we get to the end and there is still data left, add it to the fragments as the start of the next block
-            if (name.length() > 0) {
-                ByteArrayWindow fragment = new ByteArrayWindow(array, name.startIndex);
-                fragment.endIndex = bufferPosition - 1;
-                results.endFragment = fragment.getArray().array;
+            // If we get to the end and there is still data left, it's the start of a row in the next block
+            results.endFrom = name.startIndex - arrayOffset;
+            results.endTo = limit;
+            if (parseEvent != null && parseEvent.shouldCommit()) {
+                parseEvent.offset = (long) blockNumber * BUFFERSIZE;
+                parseEvent.bytes = limit;
+                parseEvent.rows = rows;
+                parseEvent.collisions = results.collisions - collisionsBefore;
+                parseEvent.longestProbe = results.longestProbe;
+                parseEvent.overflowed = results.overflowed - overflowedBefore;
+                parseEvent.commit();
             }
             innerBuffer.clear();
             return results;
@@ -325,47 +312,15 @@ public class CalculateUnsafeByteBuffer {
     }
 
 
-    static class RowFragments {
-        byte[][] lineEnds = new byte[NUM_BLOCKS][];
-        byte[][] lineStarts = new byte[NUM_BLOCKS][];
-
-        // spare characters at the end of a block will be the start of a row in the next block.
-        void addStart(int blockNumber, byte[] s) {
-            lineStarts[blockNumber] = s;
-        }
-
-        void addEnd(int blockNumber, byte[] s) {
-            lineEnds[blockNumber] = s;
-        }
-
-        String getJoinedFragments(int number) {
-            // turn the start and end fragments into a string
-            byte[] start = lineStarts[number];
-            byte[] end = lineEnds[number];
-            if (start == null && end == null) {
-                return "";
-            } else if (start == null) {
-                return new String(end, StandardCharsets.UTF_8);
-            } else if (end == null) {
-                return new String(start, StandardCharsets.UTF_8);
-            } else {
-                AppendableByteArray combined = new AppendableByteArray();
-                combined.appendArray(start);
-                combined.appendArray(end);
-                return combined.asString();
-            }
-        }
-    }
-
     static class Station {
         public final byte[] name;
-        public int measurements;
-        public int total;
+        public long measurements;
+        public long total;
         public int maxT;
         public int minT;
-        public final int hashCode;
+        public final long hashCode;
 
-        Station(byte[] name, int hash, int temp) {
+        Station(byte[] name, long hash, int temp) {
             this.name = name;
             this.hashCode = hash;
             this.total = temp;
@@ -398,111 +353,86 @@ public class CalculateUnsafeByteBuffer {
     }
 
 
-    // class which takes City entries and stores/updates them
+    // class which takes City entries and stores/updates them. The Stations go straight in the
+    // table, they've got their hash in them already
     static class ListOfCities {
-        public record MapEntry(int hash, Station value) {
-        }
-
         static final int HASH_SPACE = 8192;
         static final int COLLISION = 2;
-        public MapEntry[] records = new MapEntry[HASH_SPACE + COLLISION];
-
-        // startFragment is at the start of the block (or the end of the previous block)
-        public byte[] startFragment;
-        public byte[] endFragment;
+        public Station[] records = new Station[HASH_SPACE + COLLISION];
+        // stations which didn't fit in records, only needed if we're very unlucky
+        Results overflow;
+
+        // the block, which the start fragment is the first startLength bytes of (the end of the
+        // previous block's last row) and the end fragment goes from endFrom to endTo
+        public byte[] block;
+        public int startLength;
+        public int endFrom;
+        public int endTo;
         public int blockNumber;
+        // lookups which didn't find the station in its first slot, for the flight recorder
+        long collisions;
+        // the furthest past its first slot a lookup went in this block, and the rows which went in
+        // the overflow table, also for the flight recorder
+        int longestProbe;
+        long overflowed;
 
         public ListOfCities(int blockNumber) {
             this.blockNumber = blockNumber;
         }
 
-        // Only called at the end on the line fragments - doesn't need to be as optimised
-        void addCity(String line) {
-            String[] bits = line.split(";");
-            byte[] number = bits[1].getBytes(StandardCharsets.UTF_8);
-            byte[] name = bits[0].getBytes(StandardCharsets.UTF_8);
-            int temperature = parseCharsToDouble(number, number.length);
-
-            // inlined hashcode for tiny speed increase
-            int h = 0;
-            for (byte b : name) {
-                h = 31 * h + b;
-            }
-            Station city = new Station(name, h, temperature);
-            mergeCity(city);
-        }
-
-        void addOrMerge(int key, ByteArrayWindow name, int temperature) {
-            int hash = key & (HASH_SPACE - 1);
+        void addOrMerge(long key, ByteArrayWindow name, int temperature) {
+            int hash = NameHash.spread(key) & (HASH_SPACE - 1);
             // Search forwards search for the entry or a gap
-            MapEntry entry = records[hash];
-            if (entry == null) {
-                records[hash] = new MapEntry(key, new Station(name.getArray().array, key, temperature));
-                return;
-            }
-            if (entry.hash == key) {
-                entry.value.add_measurement(temperature);
-                return;
-            }
-
-            entry = records[++hash];
-            if (entry == null) {
-                records[hash] = new MapEntry(key, new Station(name.getArray().array, key, temperature));
-                return;
-            }
-
-            if (entry.hash == key) {
-                entry.value.add_measurement(temperature);
-                return;
-            }
-
-            entry = records[++hash];
-            if (entry == null) {
-                records[hash] = new MapEntry(key, new Station(name.getArray().array, key, temperature));
-                return;
+            for (int probe = 0; probe <= COLLISION; probe++, hash++) {
+                Station entry = records[hash];
+                if (entry == null) {
+                    records[hash] = new Station(name.getArray().array, key, temperature);
+                    return;
+                }
+                if (entry.hashCode == key) {
+                    entry.add_measurement(temperature);
+                    return;
+                }
+                collisions++;
+                if (probe < COLLISION && probe >= longestProbe) {
+                    longestProbe = probe + 1;
+                }
             }
-
-            if (entry.hash == key) {
-                entry.value.add_measurement(temperature);
+            // Too many names wanting the same few slots, put them somewhere which can cope
+            overflowed++;
+            if (overflow == null) {
+                overflow = new Results();
             }
-            throw new RuntimeException("Map Collision Error (merge)");
+            overflow.add(name.getArray().array, 1, temperature, temperature, temperature);
         }
 
 
         void mergeCity(Station city) {
             // add a city, or if already present combine two sets of measurements
-            int h = city.hashCode;
-            int hash = h & (HASH_SPACE - 1);
-
-            MapEntry entry = records[hash];
-            if (entry == null) {
-                records[hash] = new MapEntry(h, city);
-                return;
-            }
+            int hash = NameHash.spread(city.hashCode) & (HASH_SPACE - 1);
             // Search forward looking for the city, merge if we find it, add it if we find a null
-            if (entry.hash == h) {
-                entry.value.combine_results(city);
-                return;
-            }
-            entry = records[++hash];
-            if (entry == null) {
-                records[hash] = new MapEntry(h, city);
-                return;
-            }
-            if (entry.hash == h) {
-                entry.value.combine_results(city);
-                return;
+            for (int probe = 0; probe <= COLLISION; probe++, hash++) {
+                Station entry = records[hash];
+                if (entry == null) {
+                    records[hash] = city;
+                    return;
+                }
+                if (entry.hashCode == city.hashCode) {
+                    entry.combine_results(city);
+                    return;
+                }
             }
-            entry = records[++hash];
-            if (entry == null) {
-                records[hash] = new MapEntry(h, city);
-                return;
+            if (overflow == null) {
+                overflow = new Results();
             }
-            if (entry.hash == h) {
-                entry.value.combine_results(city);
-                return;
+            overflow.add(city.name, city.measurements, city.total, city.minT, city.maxT);
+        }
+
+        void mergeOverflow(Results other) {
+            if (overflow == null) {
+                overflow = new Results();
             }
-            throw new RuntimeException("Map Collision Error (merge/put)");
+            overflow.merge(other);
         }
     }
 }
@@ -574,54 +504,3 @@ class ByteArrayWindow {
         return endIndex - startIndex;
     }
 }
-
-/**
- * Holds a byte array along with methods to add bytes and concatenate arrays.
- * Not using it in the main loop any more but still currently using it to build up
- * the output.
- */
-class AppendableByteArray {
-    static final Unsafe unsafe;
-    static final int bufferStart;
-
-    static {
-        try {
-            Field unsafeField = Unsafe.class.getDeclaredField("theUnsafe");
-            unsafeField.setAccessible(true);
-            unsafe = (Unsafe) unsafeField.get(null);
-            bufferStart = unsafe.arrayBaseOffset(byte[].class);
-        } catch (NoSuchFieldException | IllegalAccessException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    int length;
-    byte[] buffer;
-    static final int INITIAL_BUFF_SIZE = 32;
-
-    /*
-     32 bytes should be enough for anyone, right? The longest place name in the world
-     (Taumatawhakatangihangakoauauotamateaturipukakapikimaungahoronukupokaiwhenuakitanatahu)
-     is 85 characters and I hope that doesn't appear in the test data.
-     And that place in Wales (Llanfairpwllgwyngyllgogerychwyrndrobwllllantysiliogogogoch)
-     if 58 but I don't think that's in the data either.
-     */
-    AppendableByteArray() {
-        length = 0;
-        buffer = new byte[INITIAL_BUFF_SIZE];
-    }
-
-    void addDelimiter() {
-        unsafe.putByte(buffer, bufferStart + length, (byte) ';');
-        length++;
-    }
-
-    void appendArray(byte[] bytes) {
-        unsafe.copyMemory(bytes, bufferStart, buffer, bufferStart + length, bytes.length);
-        length += bytes.length;
-    }
-
-    public String asString() {
-        return new String(buffer, 0, length, StandardCharsets.UTF_8);
-    }
-}